@@ -15,7 +15,10 @@ import pt.ulisboa.tecnico.sec.candeeiros.shared.Signatures;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Iterator;
+import java.util.function.Consumer;
 
 public class BankClient {
     private final ManagedChannel channel;
@@ -201,12 +204,37 @@ public class BankClient {
         return response;
     }
 
+    /**
+     * Whole history of the account, fetched page by page. The response holds every transaction; its signature
+     * and nonce are those of the last page, each page having been checked as it arrived.
+     */
     public Bank.AuditResponse audit(PublicKey publicKey) throws FailedChallengeException, FailedAuthenticationException {
+        Bank.AuditResponse page = audit(publicKey, 0, 0);
+        Bank.AuditResponse.Builder whole = page.toBuilder();
+        while (page.getStatus() == Bank.AuditResponse.Status.SUCCESS && page.getHasMore()) {
+            page = audit(publicKey, page.getNextOffset(), 0);
+            whole.addAllTransactions(page.getTransactionsList())
+                    .setStatus(page.getStatus())
+                    .setChallengeNonce(page.getChallengeNonce())
+                    .setSignature(page.getSignature())
+                    .setNextOffset(page.getNextOffset())
+                    .setHasMore(page.getHasMore());
+        }
+        return whole.build();
+    }
+
+    /**
+     * One page of the account's history, starting at offset (the number of transactions already seen). A page
+     * size of 0 lets the server choose. Continue from the returned nextOffset while hasMore is set.
+     */
+    public Bank.AuditResponse audit(PublicKey publicKey, long offset, int pageSize) throws FailedChallengeException, FailedAuthenticationException {
         Nonce challengeNonce = Nonce.newNonce();
 
         Bank.AuditRequest request = Bank.AuditRequest.newBuilder()
                 .setPublicKey(Crypto.encodePublicKey(publicKey))
                 .setChallengeNonce(challengeNonce.encode())
+                .setOffset(offset)
+                .setPageSize(pageSize)
                 .build();
 
         Bank.AuditResponse response = stub.audit(request);
@@ -217,6 +245,9 @@ public class BankClient {
         if (!Signatures.verifyAuditResponseSignature(response.getSignature().getSignatureBytes().toByteArray(), serverPublicKey,
                 response.getChallengeNonce().getNonceBytes().toByteArray(),
                 response.getStatus().name(),
+                offset,
+                response.getNextOffset(),
+                response.getHasMore(),
                 response.getTransactionsList()))
             throw new FailedAuthenticationException();
 
@@ -226,6 +257,54 @@ public class BankClient {
         return response;
     }
 
+    /**
+     * Audits the account from offset on through the streaming RPC, handing each transaction to the consumer as it
+     * arrives, so the history is never held whole. The signature covers every chunk and is only checked after the last one:
+     * if this throws, the transactions already handed over must be discarded.
+     */
+    public Bank.AuditResponse.Status auditStream(PublicKey publicKey, long offset, Consumer<Bank.NonRepudiableTransaction> consumer) throws FailedChallengeException, FailedAuthenticationException {
+        Nonce challengeNonce = Nonce.newNonce();
+
+        Bank.AuditRequest request = Bank.AuditRequest.newBuilder()
+                .setPublicKey(Crypto.encodePublicKey(publicKey))
+                .setChallengeNonce(challengeNonce.encode())
+                .setOffset(offset)
+                .build();
+
+        Iterator<Bank.AuditStreamResponse> chunks = stub.auditStream(request);
+        try {
+            Signature verifier = null;
+            while (chunks.hasNext()) {
+                Bank.AuditStreamResponse chunk = chunks.next();
+                if (chunk.getStatus() == Bank.AuditResponse.Status.INVALID_MESSAGE_FORMAT)
+                    return chunk.getStatus();
+                if (!challengeNonce.equals(Nonce.decode(chunk.getChallengeNonce())))
+                    throw new FailedChallengeException();
+
+                if (verifier == null) {
+                    // the bounds are checked by the signature, which covers the requested offset
+                    verifier = Crypto.newVerifier(serverPublicKey);
+                    Signatures.updateAuditHeader(verifier, chunk.getChallengeNonce().getNonceBytes().toByteArray(), chunk.getStatus().name(),
+                            offset, chunk.getNextOffset(), false);
+                }
+                for (Bank.NonRepudiableTransaction transaction : chunk.getTransactionsList()) {
+                    Signatures.updateAuditTransaction(verifier, transaction);
+                    consumer.accept(transaction);
+                }
+
+                if (chunk.getLast()) {
+                    if (!verifier.verify(chunk.getSignature().getSignatureBytes().toByteArray()))
+                        throw new FailedAuthenticationException();
+                    return chunk.getStatus();
+                }
+            }
+        } catch (InvalidKeyException | SignatureException e) {
+            throw new FailedAuthenticationException();
+        }
+        // the stream ended before the signed chunk
+        throw new FailedAuthenticationException();
+    }
+
 
     private boolean isNextNonce(Nonce sent, Nonce received) {
         return sent.nextNonce().equals(received);
@@ -1,12 +1,22 @@
 package pt.ulisboa.tecnico.sec.candeeiros.server;
 
-import io.grpc.BindableService;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import pt.ulisboa.tecnico.sec.candeeiros.BankServiceGrpc;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.BftBank;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.LedgerManager;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.KeyManager;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,19 +53,131 @@ public class BankServer {
 
 		keyManager = new KeyManager(key_path, keyStore_path, "0".toCharArray(), "0".toCharArray(), server_name + "key", cert_path);
 
+		// How long a client write waits for the replicas to apply it before failing
+		long responseTimeout = Long.getLong("bank.responseTimeout", 10000);
+		// How long a streamed audit may take, end to end
+		long auditStreamDeadline = Long.getLong("bank.audit.streamDeadline", 60000);
+
+		// Deadline of each call between replicas, how often idle connections are checked, and when a replica that
+		// cannot be reached is skipped and probed again
+		long callDeadline = Long.getLong("bank.peer.callDeadline", 5000);
+		long keepAlive = Long.getLong("bank.peer.keepAlive", 10000);
+		int failureThreshold = Integer.getInteger("bank.peer.failureThreshold", 3);
+		long probeInterval = Long.getLong("bank.peer.probeInterval", 1000);
+
+		// Where the replicas are; without a cluster file, replica i listens on localhost at port + i
+		String clusterFile = System.getProperty("bank.cluster");
+		ClusterConfig cluster;
+		try {
+			cluster = clusterFile == null ? ClusterConfig.localhost(port, totalServers) : ClusterConfig.load(clusterFile);
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Invalid cluster configuration {}: {}", clusterFile, e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (id < 0 || id >= cluster.size()) {
+			logger.error("Replica {} is not in the cluster of {} replicas", id, cluster.size());
+			System.exit(1);
+			return;
+		}
+		ClusterConfig.Member self = cluster.get(id);
+
+		final PeerManager peers = new PeerManager(cluster, id, callDeadline, keepAlive, failureThreshold, probeInterval);
+
 		final LightSwitch lSwitch = new LightSwitch();
 
-		final BindableService impl = (BindableService) new BankServiceImpl(keyManager,
-				"localhost:" + (port + id), lSwitch);
-		final BindableService implSync = (BindableService) new SyncBanksServiceImpl(ledgeFileName, keyManager,
-				totalServers, "localhost:" + (port + id), port);
+		final BankServiceImpl impl = new BankServiceImpl(keyManager, peers, lSwitch, responseTimeout, auditStreamDeadline);
+		// Requests a replica groups under a single timestamp, and how long it waits to fill a batch
+		int batchSize = Integer.getInteger("bank.batch.size", 1);
+		long batchLinger = Long.getLong("bank.batch.linger", 5);
+
+		// How many consensus rounds a replica keeps in flight, and how long an undecided slot may hold back the
+		// ones after it
+		int pipelineWindow = Integer.getInteger("bank.pipeline.window", 16);
+		long gapTimeout = Long.getLong("bank.pipeline.gapTimeout", 2000);
 
-		// Create a new server to listen on port.
-		Server server = ServerBuilder.forPort(port+id).addService(impl).addService(implSync).build();
+		// When writes are forced to the ledger file, and how often under the periodic policy
+		LedgerManager.Durability durability = LedgerManager.Durability.fromString(System.getProperty("bank.ledger.durability", "group"));
+		long syncInterval = Long.getLong("bank.ledger.syncInterval", 100);
+		// Ledger records between checkpoints, which bound how much is replayed on startup
+		long checkpointInterval = Long.getLong("bank.ledger.checkpointInterval", 10000);
+		final BftBank bank = new BftBank(ledgeFileName, durability, syncInterval, checkpointInterval);
+
+		// Most transactions returned by one audit call
+		int auditPageSize = Integer.getInteger("bank.audit.pageSize", 500);
+		// Bytes of encoded check account answers kept for accounts that have not changed since they were read
+		long readCacheBytes = Long.getLong("bank.readCache.maxBytes", 32 * 1024 * 1024);
+		// How often the state of consensus rounds that are over is discarded
+		long gcInterval = Long.getLong("bank.gc.interval", 10000);
+
+		final SyncBanksServiceImpl implSync = new SyncBanksServiceImpl(bank, keyManager, peers,
+				self.getReplicaAddress(), batchSize, batchLinger, pipelineWindow, gapTimeout,
+				auditPageSize, readCacheBytes, gcInterval);
+
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new ConsensusState(implSync, impl),
+				new ObjectName("pt.ulisboa.tecnico.sec.candeeiros:type=ConsensusState,replica=" + id));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(Crypto.publicKeyCache(),
+				new ObjectName("pt.ulisboa.tecnico.sec.candeeiros:type=PublicKeyCache,replica=" + id));
+
+		// Threads and queued calls of the pools serving clients and replicas, and whether the threads are virtual.
+		// The pools are apart so that client calls, which wait on consensus, cannot take the threads it needs.
+		int clientThreads = Integer.getInteger("bank.executor.client.threads", 16);
+		int clientQueue = Integer.getInteger("bank.executor.client.queue", 1000);
+		int syncThreads = Integer.getInteger("bank.executor.sync.threads", 32);
+		int syncQueue = Integer.getInteger("bank.executor.sync.queue", 10000);
+		boolean virtualThreads = Boolean.getBoolean("bank.executor.virtual");
+		ServiceExecutor clientExecutor = new ServiceExecutor("bank-client", clientThreads, clientQueue, virtualThreads);
+		ServiceExecutor syncExecutor = new ServiceExecutor("bank-sync", syncThreads, syncQueue, virtualThreads);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(clientExecutor,
+				new ObjectName("pt.ulisboa.tecnico.sec.candeeiros:type=ServiceExecutor,replica=" + id + ",service=client"));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(syncExecutor,
+				new ObjectName("pt.ulisboa.tecnico.sec.candeeiros:type=ServiceExecutor,replica=" + id + ",service=sync"));
+
+		// The bank notifications of the sync service complete client writes, so they run with the replica traffic
+		ServerServiceDefinition bankService = ServerInterceptors.intercept(impl, new ExecutorInterceptor(clientExecutor)
+				.route(BankServiceGrpc.getOpenAccountSyncRequestMethod(), syncExecutor)
+				.route(BankServiceGrpc.getSendAmountSyncRequestMethod(), syncExecutor)
+				.route(BankServiceGrpc.getReceiveAmountSyncRequestMethod(), syncExecutor));
+		ServerServiceDefinition syncService = ServerInterceptors.intercept(implSync, new ExecutorInterceptor(syncExecutor));
+
+		// HTTP/2 flow control window of each call, most calls a client connection may have open at once, and
+		// largest message accepted
+		int flowControlWindow = Integer.getInteger("bank.server.flowControlWindow", 1024 * 1024);
+		int maxConcurrentCalls = Integer.getInteger("bank.server.maxConcurrentCallsPerConnection", Integer.MAX_VALUE);
+		int maxInboundMessageSize = Integer.getInteger("bank.server.maxInboundMessageSize", 4 * 1024 * 1024);
+
+		// Create a new server to listen on the replica's address, on that host's interface only. Replicas ping each other every keepAlive, which
+		// the server they connect to must allow. With a dedicated replica address, a second server takes the traffic
+		// between replicas (which includes the bank notifications of this replica's own sync service). Calls are
+		// handed to the service executors straight from the transport threads.
+		NettyServerBuilder serverBuilder = NettyServerBuilder.forAddress(self.getSocketAddress())
+				.executor(MoreExecutors.directExecutor())
+				.flowControlWindow(flowControlWindow)
+				.maxConcurrentCallsPerConnection(maxConcurrentCalls)
+				.maxInboundMessageSize(maxInboundMessageSize)
+				.addService(bankService);
+		NettyServerBuilder replicaServerBuilder = serverBuilder;
+		if (self.hasDedicatedReplicaAddress()) {
+			replicaServerBuilder = NettyServerBuilder.forAddress(self.getReplicaSocketAddress())
+					.executor(MoreExecutors.directExecutor())
+					.flowControlWindow(flowControlWindow)
+					.maxInboundMessageSize(maxInboundMessageSize)
+					.addService(bankService);
+		}
+		replicaServerBuilder.addService(syncService);
+		if (keepAlive > 0)
+			replicaServerBuilder.permitKeepAliveTime(keepAlive, TimeUnit.MILLISECONDS).permitKeepAliveWithoutCalls(true);
+		Server server = serverBuilder.build();
 		// Start the server.
 		server.start();
+		if (self.hasDedicatedReplicaAddress()) {
+			replicaServerBuilder.build().start();
+			logger.info("Replica server started on {}", self.getReplicaAddress());
+		}
 		// Server threads are running in the background.
-		logger.info("Server started");
+		logger.info("Server started on {}", self.getAddress());
+		// Proposals wait until the other replicas tell where this one's slot numbering resumes
+		implSync.resume();
 
 		// Do not exit the main thread. Wait until server is terminated.
 		server.awaitTermination();
@@ -1,8 +1,12 @@
 package pt.ulisboa.tecnico.sec.candeeiros.server;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ulisboa.tecnico.sec.candeeiros.Bank;
@@ -14,6 +18,9 @@ import pt.ulisboa.tecnico.sec.candeeiros.server.model.Transaction;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.KeyManager;
 
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.sec.candeeiros.server.model.BftBank;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
@@ -26,51 +33,43 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 	private static final Logger logger = LoggerFactory.getLogger(BankServiceImpl.class);
 	private final KeyManager keyManager;
-	private final List<String> SyncBanksTargets;
+	// the SyncBanks service of this replica is reached through the replica's own peer
+	private final PeerManager peers;
 
-	private final ArrayList<SyncBanksServiceGrpc.SyncBanksServiceBlockingStub> SyncBanksStubs;
-
-	private final ConcurrentHashMap<Integer, Bank.OpenAccountResponse> OpenAccountResponses;
-	private final ConcurrentHashMap<Integer, Bank.SendAmountResponse> SendAmountResponses;
-	private final ConcurrentHashMap<Integer, Bank.ReceiveAmountResponse> ReceiveAmountResponses;
+	private final ResponseRegistry<Bank.OpenAccountResponse> OpenAccountResponses;
+	private final ResponseRegistry<Bank.SendAmountResponse> SendAmountResponses;
+	private final ResponseRegistry<Bank.ReceiveAmountResponse> ReceiveAmountResponses;
 
 	private final LightSwitch lightSwitch;
+	// how long a streamed audit may take, which unlike the other calls to the SyncBanks service depends on the history
+	private final long auditStreamDeadline;
 
-	public BankServiceImpl(KeyManager keyManager, String SyncBankTarget, LightSwitch lswitch) {
+	public BankServiceImpl(KeyManager keyManager, PeerManager peers, LightSwitch lswitch, long responseTimeout, long auditStreamDeadline) {
 		super();
 		this.keyManager = keyManager;
-		this.SyncBanksTargets = new ArrayList<>();
-		this.SyncBanksStubs = new ArrayList<>();
-		this.SyncBanksTargets.add(SyncBankTarget);
+		this.peers = peers;
+		this.auditStreamDeadline = auditStreamDeadline;
 
-		this.OpenAccountResponses = new ConcurrentHashMap<>();
-		this.SendAmountResponses = new ConcurrentHashMap<>();
-		this.ReceiveAmountResponses = new ConcurrentHashMap<>();
+		this.OpenAccountResponses = new ResponseRegistry<>(responseTimeout);
+		this.SendAmountResponses = new ResponseRegistry<>(responseTimeout);
+		this.ReceiveAmountResponses = new ResponseRegistry<>(responseTimeout);
 
 		this.lightSwitch = lswitch;
-		CreateStubs();
 	}
 
 	public Bank.Ack buildAck() {
 		return Bank.Ack.newBuilder().build();
 	}
 
-	public void CreateStubs() {
-		ManagedChannel channel;
-		for (String target : SyncBanksTargets) {
-			channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-			SyncBanksStubs.add(SyncBanksServiceGrpc.newBlockingStub(channel));
-		}
-	}
-
 	private boolean blockRequest(PublicKey pubKey, StreamObserver<?> responseObserver) {
 		if (!lightSwitch.isLightOn(pubKey)) {
 			responseObserver.onError(new RuntimeException("Blocked by DDOS protection"));
@@ -81,6 +80,72 @@ public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 
 	// ***** Authenticated procedures *****
 
+	/**
+	 * Client writes waiting for their result, and results no client has collected yet.
+	 */
+	int awaitingResponses() {
+		return OpenAccountResponses.size() + SendAmountResponses.size() + ReceiveAmountResponses.size();
+	}
+
+	private SyncBanksServiceGrpc.SyncBanksServiceFutureStub localSyncStub() {
+		return peers.stub(peers.self());
+	}
+
+	/**
+	 * Waits, without holding a thread, for the SyncBanks service to report the result of the consensus round
+	 * whose timestamp is returned in the ack of the sync call.
+	 */
+	private <T> void awaitSyncResponse(ListenableFuture<Bank.Ack> syncCall, ResponseRegistry<T> registry,
+			BiConsumer<T, Throwable> onResponse) {
+		Futures.addCallback(syncCall, new FutureCallback<Bank.Ack>() {
+			@Override
+			public void onSuccess(Bank.Ack ack) {
+				registry.await(ack.getTimestamp(), ack.getBatchIndex()).whenComplete(onResponse);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				onResponse.accept(null, t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * Answers the client with the reply of the SyncBanks service once it arrives, without holding a thread meanwhile.
+	 */
+	private <T> void relay(ListenableFuture<T> syncCall, StreamObserver<T> responseObserver) {
+		Futures.addCallback(syncCall, new FutureCallback<T>() {
+			@Override
+			public void onSuccess(T response) {
+				responseObserver.onNext(response);
+				responseObserver.onCompleted();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// the SyncBanks service's own error, such as the replicas not agreeing, is passed on as it is
+				if (t instanceof StatusRuntimeException)
+					responseObserver.onError(Status.fromThrowable(t).asRuntimeException());
+				else
+					failRequest(responseObserver, t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private void failRequest(StreamObserver<?> responseObserver, Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		if (error instanceof TimeoutException) {
+			logger.warn("Timed out waiting for replicas to apply request");
+			responseObserver.onError(Status.DEADLINE_EXCEEDED
+					.withDescription("Timed out waiting for replicas").asRuntimeException());
+		} else {
+			logger.warn("Failed to reach Sync Bank Server: {}", error.getMessage());
+			responseObserver.onError(Status.UNAVAILABLE.withCause(error)
+					.withDescription("Failed to reach Sync Bank Server").asRuntimeException());
+		}
+	}
+
 	@Override
 	public void openAccount(Bank.OpenAccountRequest request,
 			StreamObserver<Bank.OpenAccountResponse> responseObserver) {
@@ -94,65 +159,54 @@ public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 			return;
 		}
 
-		int currentTS = 0;
-		SyncBanks.OpenAccountIntentRequest.Builder intentRequest = null;
-
-		Bank.OpenAccountResponse responseSync = null;
+		submitOpenAccount(request, responseObserver);
+	}
 
-		do {
-			intentRequest = SyncBanks.OpenAccountIntentRequest.newBuilder();
-			intentRequest.setOpenAccountRequest(request);
-			// send intents to all servers
-			for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-				logger.info("Bank Service: Sent Open Account Sync");
-				currentTS = stub.openAccountSync(intentRequest.build()).getTimestamp();
-			}
-			logger.info("Bank Service: Waiting for Open Account Response");
-			while (OpenAccountResponses.get(currentTS) == null) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	private void submitOpenAccount(Bank.OpenAccountRequest request,
+			StreamObserver<Bank.OpenAccountResponse> responseObserver) {
+		SyncBanks.OpenAccountIntentRequest intentRequest = SyncBanks.OpenAccountIntentRequest.newBuilder()
+				.setOpenAccountRequest(request)
+				.build();
+
+		logger.info("Bank Service: Sent Open Account Sync");
+		awaitSyncResponse(localSyncStub().openAccountSync(intentRequest), OpenAccountResponses, (responseSync, e) -> {
+			if (e != null) {
+				failRequest(responseObserver, e);
+				return;
 			}
-			responseSync = OpenAccountResponses.get(currentTS);
-		} while(responseSync.getStatus() == Bank.OpenAccountResponse.Status.INVALID_TIMESTAMP);
 
-		Bank.OpenAccountResponse.Builder response = Bank.OpenAccountResponse.newBuilder()
-				.setStatus(responseSync.getStatus());
-		response.setChallengeNonce(request.getChallengeNonce());
-		try {
-			response.setSignature(Bank.Signature.newBuilder()
-					.setSignatureBytes(ByteString.copyFrom(Signatures.signOpenAccountResponse(keyManager.getKey(),
-							request.getChallengeNonce().getNonceBytes().toByteArray(),
-							responseSync.getStatus().name())))
-					.build());
-		} catch (InvalidKeyException | SignatureException e) {
-			// Should never happen
-			e.printStackTrace();
-		}
+			Bank.OpenAccountResponse.Builder response = Bank.OpenAccountResponse.newBuilder()
+					.setStatus(responseSync.getStatus());
+			response.setChallengeNonce(request.getChallengeNonce());
+			try {
+				response.setSignature(Bank.Signature.newBuilder()
+						.setSignatureBytes(ByteString.copyFrom(Signatures.signOpenAccountResponse(keyManager.getKey(),
+								request.getChallengeNonce().getNonceBytes().toByteArray(),
+								responseSync.getStatus().name())))
+						.build());
+			} catch (InvalidKeyException | SignatureException ex) {
+				// Should never happen
+				ex.printStackTrace();
+			}
 
-		responseObserver.onNext(response.build());
-		responseObserver.onCompleted();
-		logger.info("Open Account Finished");
+			responseObserver.onNext(response.build());
+			responseObserver.onCompleted();
+			logger.info("Open Account Finished");
+		});
 	}
 
 	@Override
 	public void openAccountSyncRequest(Bank.OpenAccountSync request, StreamObserver<Bank.Ack> responseObserver) {
 		logger.info("Got Sync Request: " + request.getTimestamp() + " and status: " + request.getOpenAccountResponse().getStatus());
-		Bank.OpenAccountResponse response = request.getOpenAccountResponse();
-		OpenAccountResponses.put(request.getTimestamp(), response);
 		responseObserver.onNext(buildAck());
 		responseObserver.onCompleted();
+		OpenAccountResponses.complete(request.getTimestamp(), request.getBatchIndex(), request.getOpenAccountResponse());
 	}
 
 	@Override
 	public void nonceNegotiation(Bank.NonceNegotiationRequest request,
 			StreamObserver<Bank.NonceNegotiationResponse> responseObserver) {
-		for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-			responseObserver.onNext(stub.nonceNegotiation(request));
-			responseObserver.onCompleted();
-		}
+		relay(localSyncStub().nonceNegotiation(request), responseObserver);
 	}
 
 	@Override
@@ -168,54 +222,47 @@ public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 			return;
 		}
 
-		int currentTS = 0;
-		SyncBanks.SendAmountIntentRequest.Builder intentRequest = null;
-		Bank.SendAmountResponse responseSync = null;
+		submitSendAmount(request, responseObserver);
+	}
 
-		do {
-			intentRequest = SyncBanks.SendAmountIntentRequest.newBuilder();
-			intentRequest.setSendAmountRequest(request);
-			// send intents to all servers
-			for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-				currentTS = stub.sendAmountSync(intentRequest.build()).getTimestamp();
-			}
+	private void submitSendAmount(Bank.SendAmountRequest request,
+			StreamObserver<Bank.SendAmountResponse> responseObserver) {
+		SyncBanks.SendAmountIntentRequest intentRequest = SyncBanks.SendAmountIntentRequest.newBuilder()
+				.setSendAmountRequest(request)
+				.build();
 
-			while (SendAmountResponses.get(currentTS) == null) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		awaitSyncResponse(localSyncStub().sendAmountSync(intentRequest), SendAmountResponses, (responseSync, e) -> {
+			if (e != null) {
+				failRequest(responseObserver, e);
+				return;
 			}
-			responseSync = SendAmountResponses.get(currentTS);
-		} while (responseSync.getStatus() == Bank.SendAmountResponse.Status.INVALID_TIMESTAMP);
 
-		Bank.SendAmountResponse.Builder response = Bank.SendAmountResponse.newBuilder()
-				.setStatus(responseSync.getStatus());
-		response.setNonce(request.getNonce());
-		try {
-			response.setSignature(Bank.Signature.newBuilder()
-					.setSignatureBytes(ByteString.copyFrom(Signatures.signSendAmountResponse(keyManager.getKey(),
-							request.getNonce().getNonceBytes().toByteArray(),
-							responseSync.getStatus().name())))
-					.build());
-		} catch (InvalidKeyException | SignatureException e) {
-			// Should never happen
-			e.printStackTrace();
-		}
+			Bank.SendAmountResponse.Builder response = Bank.SendAmountResponse.newBuilder()
+					.setStatus(responseSync.getStatus());
+			response.setNonce(request.getNonce());
+			try {
+				response.setSignature(Bank.Signature.newBuilder()
+						.setSignatureBytes(ByteString.copyFrom(Signatures.signSendAmountResponse(keyManager.getKey(),
+								request.getNonce().getNonceBytes().toByteArray(),
+								responseSync.getStatus().name())))
+						.build());
+			} catch (InvalidKeyException | SignatureException ex) {
+				// Should never happen
+				ex.printStackTrace();
+			}
 
-		responseObserver.onNext(response.build());
-		responseObserver.onCompleted();
-		logger.info("Send Amount Finished");
+			responseObserver.onNext(response.build());
+			responseObserver.onCompleted();
+			logger.info("Send Amount Finished");
+		});
 	}
 
 	@Override
 	public void sendAmountSyncRequest(Bank.SendAmountSync request, StreamObserver<Bank.Ack> responseObserver) {
 		logger.info("Got Sync Request: " + request.getTimestamp());
-		Bank.SendAmountResponse response = request.getSendAmountResponse();
-		SendAmountResponses.put(request.getTimestamp(), response);
 		responseObserver.onNext(buildAck());
 		responseObserver.onCompleted();
+		SendAmountResponses.complete(request.getTimestamp(), request.getBatchIndex(), request.getSendAmountResponse());
 	}
 
 	@Override
@@ -232,55 +279,47 @@ public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 			return;
 		}
 
-		int currentTS = 0;
-		SyncBanks.ReceiveAmountIntentRequest.Builder intentRequest = null;
-		Bank.ReceiveAmountResponse responseSync = null;
+		submitReceiveAmount(request, responseObserver);
+	}
 
-		do {
-			intentRequest = SyncBanks.ReceiveAmountIntentRequest.newBuilder();
-			intentRequest.setReceiveAmountRequest(request);
-			// send intents to all servers
-			for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-				currentTS = stub.receiveAmountSync(intentRequest.build()).getTimestamp();
-			}
+	private void submitReceiveAmount(Bank.ReceiveAmountRequest request,
+			StreamObserver<Bank.ReceiveAmountResponse> responseObserver) {
+		SyncBanks.ReceiveAmountIntentRequest intentRequest = SyncBanks.ReceiveAmountIntentRequest.newBuilder()
+				.setReceiveAmountRequest(request)
+				.build();
 
-			while (ReceiveAmountResponses.get(currentTS) == null) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		awaitSyncResponse(localSyncStub().receiveAmountSync(intentRequest), ReceiveAmountResponses, (responseSync, e) -> {
+			if (e != null) {
+				failRequest(responseObserver, e);
+				return;
 			}
-			responseSync = ReceiveAmountResponses.get(currentTS);
-		} while (responseSync.getStatus() == Bank.ReceiveAmountResponse.Status.INVALID_TIMESTAMP);
 
-		Bank.ReceiveAmountResponse.Builder response = Bank.ReceiveAmountResponse.newBuilder()
-				.setStatus(responseSync.getStatus());
-		response.setNonce(request.getNonce());
-		try {
-			response.setSignature(Bank.Signature.newBuilder()
-					.setSignatureBytes(ByteString.copyFrom(Signatures.signReceiveAmountResponse(keyManager.getKey(),
-							request.getNonce().getNonceBytes().toByteArray(),
-							responseSync.getStatus().name())))
-					.build());
-		} catch (InvalidKeyException | SignatureException e) {
-			// Should never happen
-			e.printStackTrace();
-		}
+			Bank.ReceiveAmountResponse.Builder response = Bank.ReceiveAmountResponse.newBuilder()
+					.setStatus(responseSync.getStatus());
+			response.setNonce(request.getNonce());
+			try {
+				response.setSignature(Bank.Signature.newBuilder()
+						.setSignatureBytes(ByteString.copyFrom(Signatures.signReceiveAmountResponse(keyManager.getKey(),
+								request.getNonce().getNonceBytes().toByteArray(),
+								responseSync.getStatus().name())))
+						.build());
+			} catch (InvalidKeyException | SignatureException ex) {
+				// Should never happen
+				ex.printStackTrace();
+			}
 
-		responseObserver.onNext(response.build());
-		responseObserver.onCompleted();
-		logger.info("Receive Amount Finished");
+			responseObserver.onNext(response.build());
+			responseObserver.onCompleted();
+			logger.info("Receive Amount Finished");
+		});
 	}
 
 	@Override
 	public void receiveAmountSyncRequest(Bank.ReceiveAmountSync request, StreamObserver<Bank.Ack> responseObserver) {
 		logger.info("Got Sync Request: " + request.getTimestamp());
-		Bank.ReceiveAmountResponse response = request.getReceiveAmountResponse();
-		ReceiveAmountResponses.put(request.getTimestamp(), response);
 		responseObserver.onNext(buildAck());
 		responseObserver.onCompleted();
-
+		ReceiveAmountResponses.complete(request.getTimestamp(), request.getBatchIndex(), request.getReceiveAmountResponse());
 	}
 
 	// ***** Unauthenticated procedures *****
@@ -289,18 +328,75 @@ public class BankServiceImpl extends BankServiceGrpc.BankServiceImplBase {
 	public void checkAccount(Bank.CheckAccountRequest request,
 			StreamObserver<Bank.CheckAccountResponse> responseObserver) {
 		logger.info("Sending Check Account Request to Sync");
-		for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-			responseObserver.onNext(stub.checkAccount(request));
-			responseObserver.onCompleted();
-		}
+		relay(localSyncStub().checkAccount(request), responseObserver);
 	}
 
 	@Override
 	public void audit(Bank.AuditRequest request, StreamObserver<Bank.AuditResponse> responseObserver) {
 		logger.info("Sending Audit Request to Sync");
-		for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-			responseObserver.onNext(stub.audit(request));
-			responseObserver.onCompleted();
+		relay(localSyncStub().audit(request), responseObserver);
+	}
+
+	@Override
+	public void auditStream(Bank.AuditRequest request, StreamObserver<Bank.AuditStreamResponse> responseObserver) {
+		logger.info("Sending Audit Stream Request to Sync");
+		AuditRelay relay = new AuditRelay((ServerCallStreamObserver<Bank.AuditStreamResponse>) responseObserver);
+		SyncBanksServiceGrpc.newStub(peers.channel(peers.self()))
+				.withDeadlineAfter(auditStreamDeadline, TimeUnit.MILLISECONDS)
+				.auditStream(request, relay);
+	}
+
+	/**
+	 * Passes the chunks of a streamed audit on to the client as they arrive. The next chunk is only asked of the
+	 * SyncBanks service once the client's call can take the last one, so a slow client slows the stream down
+	 * instead of having it pile up here.
+	 */
+	private static final class AuditRelay implements ClientResponseObserver<Bank.AuditRequest, Bank.AuditStreamResponse> {
+		private final ServerCallStreamObserver<Bank.AuditStreamResponse> call;
+		private ClientCallStreamObserver<Bank.AuditRequest> sync;
+		// a chunk was asked for and has not arrived yet; guarded by this
+		private boolean requested;
+
+		private AuditRelay(ServerCallStreamObserver<Bank.AuditStreamResponse> call) {
+			this.call = call;
+		}
+
+		@Override
+		public void beforeStart(ClientCallStreamObserver<Bank.AuditRequest> sync) {
+			this.sync = sync;
+			requested = true;
+			sync.disableAutoRequestWithInitial(1);
+			call.setOnReadyHandler(this::requestNext);
+			call.setOnCancelHandler(() -> sync.cancel("Audit stream cancelled by the client", null));
+		}
+
+		private synchronized void requestNext() {
+			if (!requested && call.isReady()) {
+				requested = true;
+				sync.request(1);
+			}
+		}
+
+		@Override
+		public void onNext(Bank.AuditStreamResponse chunk) {
+			synchronized (this) {
+				requested = false;
+			}
+			call.onNext(chunk);
+			requestNext();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			if (call.isCancelled())
+				return;
+			logger.warn("Audit stream failed: {}", t.getMessage());
+			call.onError(Status.fromThrowable(t).asRuntimeException());
+		}
+
+		@Override
+		public void onCompleted() {
+			call.onCompleted();
 		}
 	}
 }
@@ -0,0 +1,137 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import pt.ulisboa.tecnico.sec.candeeiros.Bank;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.AccountSnapshot;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.Transaction;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Signatures;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Encoded check account payloads (balance and pending transactions) and their digests, by account. An entry is
+ * only used for the account version it was built from; any change to the account publishes a new version, and
+ * the next read replaces the entry. The cache is bounded by the encoded size of its entries, and the least
+ * recently read accounts are evicted first.
+ */
+class CheckAccountCache {
+    // rough cost of an entry besides its transactions
+    private static final int ENTRY_OVERHEAD = 128;
+
+    static final class Payload {
+        private final long version;
+        private final String balance;
+        private final List<Bank.NonRepudiableTransaction> transactions;
+        private final byte[] digest;
+        private final long size;
+
+        private Payload(long version, String balance, List<Bank.NonRepudiableTransaction> transactions, byte[] digest) {
+            this.version = version;
+            this.balance = balance;
+            this.transactions = transactions;
+            this.digest = digest;
+            long size = ENTRY_OVERHEAD + balance.length();
+            for (Bank.NonRepudiableTransaction transaction : transactions)
+                size += transaction.getSerializedSize();
+            this.size = size;
+        }
+
+        String getBalance() {
+            return balance;
+        }
+
+        List<Bank.NonRepudiableTransaction> getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * Digest of the payload, as signed with the challenge nonce (see Signatures.checkAccountPayloadDigest).
+         */
+        byte[] getDigest() {
+            return digest;
+        }
+    }
+
+    private final long maxBytes;
+    private final Function<Transaction, Bank.NonRepudiableTransaction> encoder;
+    // payloads of the answers that carry no account; they never change
+    private final Map<Bank.CheckAccountResponse.Status, Payload> failures;
+    // guarded by itself; access ordered, so the eldest entry is the least recently read
+    private final LinkedHashMap<PublicKey, Payload> entries;
+    private long bytes;
+
+    CheckAccountCache(long maxBytes, Function<Transaction, Bank.NonRepudiableTransaction> encoder) {
+        this.maxBytes = maxBytes;
+        this.encoder = encoder;
+        this.failures = new EnumMap<>(Bank.CheckAccountResponse.Status.class);
+        for (Bank.CheckAccountResponse.Status status : Bank.CheckAccountResponse.Status.values()) {
+            if (status != Bank.CheckAccountResponse.Status.UNRECOGNIZED)
+                failures.put(status, new Payload(-1, "", Collections.emptyList(),
+                        Signatures.checkAccountPayloadDigest(status.name(), "", Collections.emptyList())));
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Payload of a successful check of the account, encoded from this snapshot unless it already was.
+     */
+    Payload get(PublicKey key, AccountSnapshot account) {
+        synchronized (entries) {
+            Payload cached = entries.get(key);
+            if (cached != null && cached.version == account.getVersion())
+                return cached;
+        }
+
+        // encoded outside the lock; a snapshot never changes
+        Payload payload = encode(account);
+        synchronized (entries) {
+            Payload cached = entries.get(key);
+            // a reader of a newer version may have got here first
+            if (cached != null && cached.version >= payload.version)
+                return payload;
+            if (cached != null)
+                bytes -= cached.size;
+            if (payload.size > maxBytes) {
+                entries.remove(key);
+                return payload;
+            }
+            entries.put(key, payload);
+            bytes += payload.size;
+            evict();
+        }
+        return payload;
+    }
+
+    /**
+     * Payload of an answer with this status, which carries no balance nor transactions.
+     */
+    Payload failure(Bank.CheckAccountResponse.Status status) {
+        return failures.get(status);
+    }
+
+    private Payload encode(AccountSnapshot account) {
+        String balance = Money.toString(account.getBalance());
+        List<Bank.NonRepudiableTransaction> transactions = new ArrayList<>(account.getTransactionQueue().size());
+        for (Transaction t : account.getTransactionQueue())
+            transactions.add(encoder.apply(t));
+        return new Payload(account.getVersion(), balance, Collections.unmodifiableList(transactions),
+                Signatures.checkAccountPayloadDigest(Bank.CheckAccountResponse.Status.SUCCESS.name(), balance, transactions));
+    }
+
+    // guarded by entries
+    private void evict() {
+        Iterator<Map.Entry<PublicKey, Payload>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().size;
+            eldest.remove();
+        }
+    }
+}
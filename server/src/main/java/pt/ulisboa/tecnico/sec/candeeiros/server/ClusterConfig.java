@@ -0,0 +1,166 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The replicas of the cluster and where each one is reached. Loaded from a properties file with, for each replica
+ * id from 0 up:
+ * <pre>
+ * replica.0.address=10.0.0.1:4200
+ * replica.0.replicaAddress=10.0.1.1:4300
+ * </pre>
+ * address is where clients connect. replicaAddress, if set, is a dedicated port for the traffic between replicas,
+ * so it can be served apart from the clients' (another interface, other threads); otherwise replicas use address
+ * too. A replica listens on the host of its own addresses, so only that interface is bound.
+ * Without a file, replica i is at localhost:(port + i), as before.
+ */
+public class ClusterConfig {
+    private static final Set<String> FIELDS = Set.of("address", "replicaAddress");
+
+    public static final class Member {
+        private final int id;
+        private final String address;
+        private final String replicaAddress;
+
+        private Member(int id, String address, String replicaAddress) {
+            this.id = id;
+            this.address = address;
+            this.replicaAddress = replicaAddress;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * host:port clients connect to.
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * host:port other replicas connect to, which is the client address unless a dedicated one is set.
+         */
+        public String getReplicaAddress() {
+            return replicaAddress != null ? replicaAddress : address;
+        }
+
+        public boolean hasDedicatedReplicaAddress() {
+            return replicaAddress != null;
+        }
+
+        /**
+         * Socket address to listen on for clients.
+         */
+        public InetSocketAddress getSocketAddress() {
+            return socketAddressOf(address);
+        }
+
+        /**
+         * Socket address to listen on for other replicas.
+         */
+        public InetSocketAddress getReplicaSocketAddress() {
+            return socketAddressOf(getReplicaAddress());
+        }
+    }
+
+    private final List<Member> members;
+
+    private ClusterConfig(List<Member> members) {
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    /**
+     * totalServers replicas on this host, replica i listening on port + i.
+     */
+    public static ClusterConfig localhost(int port, int totalServers) {
+        List<Member> members = new ArrayList<>(totalServers);
+        for (int id = 0; id < totalServers; id++)
+            members.add(new Member(id, "localhost:" + (port + id), null));
+        return new ClusterConfig(members);
+    }
+
+    /**
+     * Reads the cluster from a properties file. Throws IllegalArgumentException if it is not a valid configuration.
+     */
+    public static ClusterConfig load(String file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+
+        List<Member> members = new ArrayList<>();
+        for (int id = 0; properties.containsKey("replica." + id + ".address"); id++) {
+            String address = properties.getProperty("replica." + id + ".address").trim();
+            String replicaAddress = properties.getProperty("replica." + id + ".replicaAddress");
+            portOf(address);
+            if (replicaAddress != null) {
+                replicaAddress = replicaAddress.trim();
+                portOf(replicaAddress);
+            }
+            members.add(new Member(id, address, replicaAddress));
+        }
+        if (members.isEmpty())
+            throw new IllegalArgumentException("No replica.0.address");
+        // ids must go from 0 to n - 1 with no gaps, since slots are interleaved by replica id
+        for (String key : properties.stringPropertyNames()) {
+            String[] parts = key.split("\\.");
+            if (parts.length != 3 || !parts[0].equals("replica") || !FIELDS.contains(parts[2])
+                    || !isMemberId(parts[1], members.size()))
+                throw new IllegalArgumentException("Unexpected key " + key + " with replicas 0 to " + (members.size() - 1));
+        }
+        return new ClusterConfig(members);
+    }
+
+    private static boolean isMemberId(String id, int size) {
+        try {
+            int value = Integer.parseInt(id);
+            return value >= 0 && value < size && id.equals(Integer.toString(value));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // host:port, with an IPv6 host in brackets
+    private static InetSocketAddress socketAddressOf(String address) {
+        String host = address.substring(0, address.lastIndexOf(':'));
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, portOf(address));
+    }
+
+    private static int portOf(String address) {
+        int colon = address.lastIndexOf(':');
+        try {
+            if (colon <= 0)
+                throw new NumberFormatException();
+            int port = Integer.parseInt(address.substring(colon + 1));
+            if (port < 0 || port > 65535)
+                throw new NumberFormatException();
+            return port;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid address, expected host:port: " + address);
+        }
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public Member get(int id) {
+        return members.get(id);
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+}
@@ -0,0 +1,44 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+/**
+ * Reads the gauges of ConsensusStateMXBean from the services that hold the state.
+ */
+class ConsensusState implements ConsensusStateMXBean {
+    private final SyncBanksServiceImpl syncService;
+    private final BankServiceImpl bankService;
+
+    ConsensusState(SyncBanksServiceImpl syncService, BankServiceImpl bankService) {
+        this.syncService = syncService;
+        this.bankService = bankService;
+    }
+
+    @Override
+    public int getLiveIntents() {
+        return syncService.liveIntents();
+    }
+
+    @Override
+    public int getLiveResults() {
+        return syncService.liveResults();
+    }
+
+    @Override
+    public int getLiveOriginals() {
+        return syncService.liveOriginals();
+    }
+
+    @Override
+    public int getLiveAppliedCounters() {
+        return syncService.liveAppliedCounters();
+    }
+
+    @Override
+    public int getAwaitingClients() {
+        return bankService.awaitingResponses();
+    }
+
+    @Override
+    public long getDiscardedEntries() {
+        return syncService.discardedEntries();
+    }
+}
@@ -0,0 +1,33 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+/**
+ * Gauges of the consensus state a replica holds, published over JMX so memory can be watched under load.
+ */
+public interface ConsensusStateMXBean {
+    /**
+     * Slots with intents or statuses waiting for their intent.
+     */
+    int getLiveIntents();
+
+    /**
+     * Decided results not yet reported back to the bank service.
+     */
+    int getLiveResults();
+
+    /**
+     * Requests this replica proposed whose rounds are not yet discarded.
+     */
+    int getLiveOriginals();
+
+    int getLiveAppliedCounters();
+
+    /**
+     * Client writes waiting for their result, and results no client has collected yet.
+     */
+    int getAwaitingClients();
+
+    /**
+     * Entries discarded by garbage collection since startup.
+     */
+    long getDiscardedEntries();
+}
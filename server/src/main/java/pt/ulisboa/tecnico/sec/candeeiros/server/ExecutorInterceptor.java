@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the calls of a service on an executor of its own instead of the server's, so that services on different
+ * executors do not compete for threads. The server is built with a direct executor, and this moves the events of
+ * each call onto the executor of its method, one at a time and in order, in the call's context. A call whose
+ * executor is full is closed with RESOURCE_EXHAUSTED.
+ */
+class ExecutorInterceptor implements ServerInterceptor {
+    private final Executor executor;
+    // by full method name; only written before the server starts
+    private final Map<String, Executor> methodExecutors;
+
+    ExecutorInterceptor(Executor executor) {
+        this.executor = executor;
+        this.methodExecutors = new HashMap<>();
+    }
+
+    /**
+     * Runs the calls of this method on another executor.
+     */
+    ExecutorInterceptor route(MethodDescriptor<?, ?> method, Executor executor) {
+        methodExecutors.put(method.getFullMethodName(), executor);
+        return this;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        Executor executor = methodExecutors.getOrDefault(call.getMethodDescriptor().getFullMethodName(), this.executor);
+        return new DispatchingListener<>(call, next.startCall(call, headers), MoreExecutors.newSequentialExecutor(executor));
+    }
+
+    private static final class DispatchingListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final ServerCall<ReqT, ?> call;
+        private final ServerCall.Listener<ReqT> delegate;
+        private final Executor events;
+        // events come from the transport one at a time
+        private boolean rejected;
+
+        private DispatchingListener(ServerCall<ReqT, ?> call, ServerCall.Listener<ReqT> delegate, Executor events) {
+            this.call = call;
+            this.delegate = delegate;
+            this.events = events;
+        }
+
+        /**
+         * Queues the event. If the executor is full the call is closed, unless it is already over, and its
+         * remaining events are dropped.
+         */
+        private void dispatch(Runnable event, boolean callOver) {
+            if (rejected)
+                return;
+            try {
+                events.execute(Context.current().wrap(event));
+            } catch (RejectedExecutionException e) {
+                rejected = true;
+                if (!callOver)
+                    call.close(Status.RESOURCE_EXHAUSTED.withDescription(e.getMessage()), new Metadata());
+            }
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            dispatch(() -> delegate.onMessage(message), false);
+        }
+
+        @Override
+        public void onHalfClose() {
+            dispatch(delegate::onHalfClose, false);
+        }
+
+        @Override
+        public void onReady() {
+            dispatch(delegate::onReady, false);
+        }
+
+        @Override
+        public void onCancel() {
+            dispatch(delegate::onCancel, true);
+        }
+
+        @Override
+        public void onComplete() {
+            dispatch(delegate::onComplete, true);
+        }
+    }
+}
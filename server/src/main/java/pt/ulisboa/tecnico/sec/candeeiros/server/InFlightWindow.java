@@ -0,0 +1,122 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Hands out the slots (timestamps) this replica proposes and bounds how many of them are in flight.
+ * Slots are interleaved between replicas (slot = sequence * totalServers + replicaId), so two replicas never
+ * propose the same slot and no consensus round is lost to a timestamp collision.
+ * A proposal that does not fit in the window waits, in order, until an earlier slot is released.
+ * Slots are applied in global order, so a slot of this replica that is never proposed would hold back everything
+ * above it: once another replica proposes a higher slot, skipBelow gives up the ones left below it, which the
+ * replicas then decide empty without a round (Mencius style).
+ * The window starts closed, as the replica must first find out where its numbering resumes after a restart (see
+ * open); proposals submitted before then wait.
+ */
+public class InFlightWindow {
+    private final int size;
+    private final int totalServers;
+    private final int replicaId;
+
+    private int nextSequence;
+    private boolean open;
+    private final Set<Integer> inFlight;
+    private final Queue<IntConsumer> waiting;
+
+    public InFlightWindow(int size, int totalServers, int replicaId) {
+        this.size = size;
+        this.totalServers = totalServers;
+        this.replicaId = replicaId;
+        this.nextSequence = 0;
+        this.inFlight = new HashSet<>();
+        this.waiting = new ArrayDeque<>();
+    }
+
+    private int nextSlot() {
+        int slot = nextSequence++ * totalServers + replicaId;
+        inFlight.add(slot);
+        return slot;
+    }
+
+    /**
+     * Runs the proposal with its slot as soon as the window has room for it.
+     */
+    public void submit(IntConsumer proposal) {
+        int slot;
+        synchronized (this) {
+            if (!open || inFlight.size() >= size) {
+                waiting.add(proposal);
+                return;
+            }
+            slot = nextSlot();
+        }
+        proposal.accept(slot);
+    }
+
+    /**
+     * Starts handing out slots from the given sequence on, and runs the proposals that were waiting for it.
+     */
+    public void open(int firstSequence) {
+        List<IntConsumer> started = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        synchronized (this) {
+            nextSequence = Math.max(nextSequence, firstSequence);
+            open = true;
+            while (inFlight.size() < size && !waiting.isEmpty()) {
+                started.add(waiting.poll());
+                slots.add(nextSlot());
+            }
+        }
+        for (int i = 0; i < started.size(); i++)
+            started.get(i).accept(slots.get(i));
+    }
+
+    /**
+     * Frees the slot once it is done with, starting the oldest waiting proposal. Slots that are not in flight
+     * (proposed by other replicas, or already released) are ignored.
+     */
+    public void release(int slot) {
+        IntConsumer proposal;
+        int next;
+        synchronized (this) {
+            if (!inFlight.remove(slot))
+                return;
+            proposal = waiting.poll();
+            if (proposal == null)
+                return;
+            next = nextSlot();
+        }
+        proposal.accept(next);
+    }
+
+    /**
+     * Gives up the slots of this replica below the given one that were never handed out: they will never be
+     * proposed, and take no room in the window. Returns them, or null if there are none.
+     */
+    public synchronized SyncBanks.SlotSkip skipBelow(int slot) {
+        // the slots left below are not known until the window is open
+        if (!open)
+            return null;
+        int from = nextSequence;
+        int to = Math.max(from, (slot - replicaId + totalServers - 1) / totalServers);
+        if (to == from)
+            return null;
+        nextSequence = to;
+        return SyncBanks.SlotSkip.newBuilder()
+                .setFrom(from * totalServers + replicaId)
+                .setTo(to * totalServers + replicaId)
+                .build();
+    }
+
+    public synchronized int inFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,76 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.LedgerManager;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.LedgerRecordHandler;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.TextLedgerReader;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+
+/**
+ * Converts a ledger written in the old text format to the binary format.
+ * With only the text ledger given, the conversion is done in place and the old file is kept next to it with a
+ * .txt suffix.
+ */
+public class LedgerMigration {
+	private static final Logger logger = LoggerFactory.getLogger(LedgerMigration.class);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			logger.error("Argument(s) missing!");
+			logger.error("Usage: java {} text_ledger_file [binary_ledger_file]", LedgerMigration.class.getName());
+			return;
+		}
+
+		Path textLedger = Paths.get(args[0]);
+		boolean inPlace = args.length < 2;
+		Path binaryLedger = inPlace ? Paths.get(args[0] + ".migrating") : Paths.get(args[1]);
+
+		if (Files.exists(binaryLedger) && new File(binaryLedger.toString()).length() > 0) {
+			logger.error("{} already exists", binaryLedger);
+			return;
+		}
+
+		LedgerManager ledger = new LedgerManager(binaryLedger.toString(), LedgerManager.Durability.PERIODIC, 1000);
+		// the new ledger is empty, so opening it replays nothing
+		LedgerRecordHandler writer = new LedgerRecordHandler() {
+			@Override
+			public void createAccount(PublicKey key, Nonce nonce) throws IOException {
+				ledger.createAccount(key, nonce);
+			}
+
+			@Override
+			public void addTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+				ledger.addTransaction(source, destination, amount, decimal, nonce, signature);
+			}
+
+			@Override
+			public void acceptTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+				ledger.acceptTransaction(source, destination, amount, decimal, nonce, signature);
+			}
+
+			@Override
+			public void rejectTransaction(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) throws IOException {
+				ledger.rejectTransaction(source, destination, amount, nonce, signature);
+			}
+		};
+		ledger.parseLedger(writer, 0, -1);
+
+		int count = TextLedgerReader.read(textLedger.toString(), writer);
+		ledger.close();
+
+		if (inPlace) {
+			Files.move(textLedger, Paths.get(args[0] + ".txt"));
+			Files.move(binaryLedger, textLedger);
+			binaryLedger = textLedger;
+		}
+		logger.info("Converted {} operations from {} to {}", count, args[0], binaryLedger);
+	}
+}
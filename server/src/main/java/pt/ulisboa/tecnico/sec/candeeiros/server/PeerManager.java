@@ -0,0 +1,185 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Channel;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanksServiceGrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Channels to the replicas (this one included), kept for the life of the server, and what is known of their health.
+ * Every call gets a deadline, and channels send keepalive pings so a peer that vanished is noticed without waiting
+ * for a call to it. After failureThreshold consecutive calls to a replica fail because it could not be reached, it
+ * is considered down: calls to it fail at once without being sent, so a dead replica costs no latency. Down replicas
+ * are probed in the background, and one whose channel connects again is given its calls back; a single failure then
+ * takes it down again.
+ */
+public class PeerManager {
+    private static final Logger logger = LoggerFactory.getLogger(PeerManager.class);
+
+    private static final class Peer {
+        private final String target;
+        private final ManagedChannel channel;
+        private final SyncBanksServiceGrpc.SyncBanksServiceFutureStub stub;
+        // consecutive calls that could not reach the replica; guarded by the peer
+        private int failures;
+        private volatile boolean down;
+
+        private Peer(String target, ManagedChannel channel) {
+            this.target = target;
+            this.channel = channel;
+            this.stub = SyncBanksServiceGrpc.newFutureStub(channel);
+        }
+    }
+
+    private final List<Peer> peers;
+    private final int self;
+    private final long callDeadlineMillis;
+    private final int failureThreshold;
+    private final ScheduledExecutorService prober;
+
+    public PeerManager(ClusterConfig cluster, int self, long callDeadlineMillis, long keepAliveMillis,
+                       int failureThreshold, long probeIntervalMillis) {
+        this.self = self;
+        this.callDeadlineMillis = callDeadlineMillis;
+        this.failureThreshold = failureThreshold;
+        this.peers = new ArrayList<>(cluster.size());
+        for (ClusterConfig.Member member : cluster.getMembers()) {
+            String target = member.getReplicaAddress();
+            ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(target).usePlaintext();
+            if (keepAliveMillis > 0) {
+                builder.keepAliveTime(keepAliveMillis, TimeUnit.MILLISECONDS)
+                        .keepAliveTimeout(keepAliveMillis, TimeUnit.MILLISECONDS)
+                        .keepAliveWithoutCalls(true);
+            }
+            peers.add(new Peer(target, builder.build()));
+            logger.info("Added SyncServer {}", target);
+        }
+
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "peer-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    public int self() {
+        return self;
+    }
+
+    /**
+     * The channel to the replica's replica address, for services other than SyncBanks served on the same port.
+     */
+    public Channel channel(int replica) {
+        return peers.get(replica).channel;
+    }
+
+    /**
+     * Stub for a single call to the replica, with the call deadline starting now.
+     */
+    public SyncBanksServiceGrpc.SyncBanksServiceFutureStub stub(int replica) {
+        return peers.get(replica).stub.withDeadlineAfter(callDeadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether calls to the replica are sent. This replica is never considered down.
+     */
+    public boolean isUp(int replica) {
+        return !peers.get(replica).down;
+    }
+
+    /**
+     * Makes a call to the replica with the call deadline, and records whether the replica could be reached.
+     * If the replica is down, the call is not sent and the future fails at once with UNAVAILABLE.
+     */
+    public <T> ListenableFuture<T> call(int replica, Function<SyncBanksServiceGrpc.SyncBanksServiceFutureStub, ListenableFuture<T>> call) {
+        Peer peer = peers.get(replica);
+        if (peer.down)
+            return Futures.immediateFailedFuture(Status.UNAVAILABLE
+                    .withDescription("Replica " + replica + " is down").asRuntimeException());
+
+        ListenableFuture<T> future = call.apply(stub(replica));
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                reached(replica);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Status.Code code = Status.fromThrowable(t).getCode();
+                // a cancelled call or an error returned by the replica says nothing about whether it is up
+                if (code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED)
+                    unreachable(replica);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private void reached(int replica) {
+        Peer peer = peers.get(replica);
+        synchronized (peer) {
+            peer.failures = 0;
+            if (peer.down) {
+                peer.down = false;
+                logger.info("Replica {} ({}) is back up", replica, peer.target);
+            }
+        }
+    }
+
+    private void unreachable(int replica) {
+        if (replica == self)
+            return;
+        Peer peer = peers.get(replica);
+        synchronized (peer) {
+            peer.failures++;
+            if (!peer.down && peer.failures >= failureThreshold) {
+                peer.down = true;
+                logger.warn("Replica {} ({}) is down, skipping it until it can be reached again", replica, peer.target);
+            }
+        }
+    }
+
+    private void probe() {
+        for (int replica = 0; replica < peers.size(); replica++) {
+            Peer peer = peers.get(replica);
+            if (!peer.down)
+                continue;
+            try {
+                ConnectivityState state = peer.channel.getState(true);
+                if (state == ConnectivityState.READY) {
+                    synchronized (peer) {
+                        // on probation: the next call that fails takes it down again
+                        peer.failures = failureThreshold - 1;
+                        peer.down = false;
+                    }
+                    logger.info("Replica {} ({}) can be reached again", replica, peer.target);
+                } else if (state == ConnectivityState.TRANSIENT_FAILURE) {
+                    // retry now rather than after the channel's reconnect backoff
+                    peer.channel.resetConnectBackoff();
+                }
+            } catch (RuntimeException e) {
+                logger.error("Failed to probe replica {}", replica, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanksServiceGrpc;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.ReadIntent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A read sent to every replica at once. This replica is asked for the full answer and the others only for a
+ * digest of theirs. The read completes as soon as a majority agrees on a digest and a full answer with that
+ * digest is at hand, and the calls still outstanding are then cancelled, so the read takes as long as the
+ * fastest majority and a replica that is down only costs its vote. If this replica's answer is not the one
+ * agreed on, the full answer is fetched from the replicas that voted for it, one at a time.
+ */
+class QuorumRead<R> {
+    private static final Logger logger = LoggerFactory.getLogger(QuorumRead.class);
+
+    static final class Reply<R> {
+        private final R payload;
+        private final ByteString digest;
+
+        Reply(R payload, ByteString digest) {
+            this.payload = payload;
+            this.digest = digest;
+        }
+    }
+
+    interface Call<R> {
+        ListenableFuture<Reply<R>> read(SyncBanksServiceGrpc.SyncBanksServiceFutureStub stub, boolean digestOnly);
+    }
+
+    private final PeerManager peers;
+    private final int self;
+    private final Call<R> call;
+    private final Function<R, ByteString> unsignedDigest;
+    private final CompletableFuture<R> result;
+
+    // guarded by this
+    private final ReadIntent<R> intent;
+    private final ByteString[] votes;
+    private final List<ListenableFuture<Reply<R>>> calls;
+    private int answered;
+    private boolean selfAnswered;
+    private boolean fetching;
+
+    private QuorumRead(PeerManager peers, Call<R> call, Function<R, ByteString> unsignedDigest) {
+        this.peers = peers;
+        this.self = peers.self();
+        this.call = call;
+        this.unsignedDigest = unsignedDigest;
+        this.result = new CompletableFuture<>();
+        this.intent = new ReadIntent<>(peers.size());
+        this.votes = new ByteString[peers.size()];
+        this.calls = new ArrayList<>();
+    }
+
+    /**
+     * Starts the read. The future completes with the answer a majority agreed on, or with null if the replicas
+     * did not agree or too few of them answered. unsignedDigest computes the digest of a full answer, which is
+     * what the answer is counted as, whatever digest its replica claims. Replicas known to be down are not asked,
+     * and count as having answered nothing.
+     */
+    static <R> CompletableFuture<R> start(PeerManager peers, Call<R> call, Function<R, ByteString> unsignedDigest) {
+        QuorumRead<R> read = new QuorumRead<>(peers, call, unsignedDigest);
+        read.start();
+        return read.result;
+    }
+
+    private void start() {
+        synchronized (this) {
+            for (int replica = 0; replica < peers.size(); replica++) {
+                int from = replica;
+                boolean digestOnly = replica != self;
+                ListenableFuture<Reply<R>> reply = peers.call(replica, stub -> call.read(stub, digestOnly));
+                calls.add(reply);
+                Futures.addCallback(reply, new FutureCallback<Reply<R>>() {
+                    @Override
+                    public void onSuccess(Reply<R> reply) {
+                        onReply(from, reply);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        if (!(t instanceof CancellationException) && peers.isUp(from))
+                            logger.info("Replica {} did not answer the read: {}", from, t.getMessage());
+                        onReply(from, null);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+        result.whenComplete((answer, e) -> cancelOutstanding());
+    }
+
+    private synchronized void cancelOutstanding() {
+        for (ListenableFuture<Reply<R>> outstanding : calls)
+            outstanding.cancel(true);
+    }
+
+    private synchronized void onReply(int replica, Reply<R> reply) {
+        answered++;
+        if (replica == self)
+            selfAnswered = true;
+        if (reply != null) {
+            ByteString digest = reply.digest;
+            if (reply.payload != null) {
+                digest = unsignedDigest.apply(reply.payload);
+                intent.addPayload(digest, reply.payload);
+            }
+            votes[replica] = digest;
+            intent.addVote(digest);
+        }
+        progress();
+    }
+
+    private void progress() {
+        if (result.isDone())
+            return;
+
+        ByteString decided = intent.getDecided();
+        if (decided == null) {
+            if (answered == votes.length)
+                result.complete(null);
+            return;
+        }
+
+        R payload = intent.getPayload(decided);
+        if (payload != null) {
+            result.complete(payload);
+        } else if (selfAnswered && !fetching) {
+            logger.info("Read: this replica's answer was not the majority's, fetching it");
+            fetching = true;
+            fetch(decided, 0);
+        }
+    }
+
+    // Asks the next replica, from the given one on, that voted for the decided digest for its full answer
+    private void fetch(ByteString decided, int from) {
+        int replica = from;
+        while (replica < votes.length && !decided.equals(votes[replica]))
+            replica++;
+        if (replica == votes.length) {
+            result.complete(null);
+            return;
+        }
+
+        int next = replica + 1;
+        Futures.addCallback(peers.call(replica, stub -> call.read(stub, false)), new FutureCallback<Reply<R>>() {
+            @Override
+            public void onSuccess(Reply<R> reply) {
+                synchronized (QuorumRead.this) {
+                    if (reply.payload != null && decided.equals(unsignedDigest.apply(reply.payload)))
+                        result.complete(reply.payload);
+                    else
+                        fetch(decided, next);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                synchronized (QuorumRead.this) {
+                    fetch(decided, next);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+}
@@ -0,0 +1,132 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.Watermark;
+
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Applies decided slots to the bank in global slot order, even though consensus rounds finish out of order, so
+ * every replica applies the same slots in the same order. A slot is held back until every lower slot has been
+ * applied; no slot is ever skipped. If the lowest missing slot is not decided within gapTimeoutMillis (its
+ * proposer crashed halfway through, or the replicas split), onStall is called for the missing slots up to the
+ * highest one known, so they can be settled by the cluster (see SlotRecovery) rather than passed over here.
+ */
+public class ReorderBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(ReorderBuffer.class);
+    // most missing slots handed to onStall per check
+    private static final int MAX_STALLED = 256;
+
+    private final long gapTimeoutMillis;
+    private final IntConsumer onDone;
+    private final IntConsumer onStall;
+    private final ScheduledExecutorService timer;
+
+    // next slot to apply, and the decided slots waiting behind it
+    private int next;
+    private final TreeMap<Integer, Runnable> pending;
+    // highest slot a proposal was seen for
+    private int highestKnown;
+    // when next last changed, or the buffer started waiting
+    private long waitingSince;
+
+    public ReorderBuffer(int first, long gapTimeoutMillis, IntConsumer onDone, IntConsumer onStall) {
+        this.gapTimeoutMillis = gapTimeoutMillis;
+        this.onDone = onDone;
+        this.onStall = onStall;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reorder-buffer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.next = first;
+        this.pending = new TreeMap<>();
+        this.highestKnown = first - 1;
+        this.waitingSince = System.nanoTime();
+        timer.scheduleWithFixedDelay(this::checkStalled, gapTimeoutMillis, gapTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a proposal for the slot exists, so the slots below it are waited for.
+     */
+    public synchronized void expect(int slot) {
+        highestKnown = Math.max(highestKnown, slot);
+    }
+
+    /**
+     * Runs apply once every lower slot has been applied. A slot that was already delivered is ignored.
+     */
+    public synchronized void deliver(int slot, Runnable apply) {
+        if (slot < next || pending.containsKey(slot))
+            return;
+        expect(slot);
+        pending.put(slot, apply);
+        drain();
+    }
+
+    /**
+     * Highest slot a proposal was seen for, or the last one applied if it is higher.
+     */
+    public synchronized int highestKnown() {
+        return highestKnown;
+    }
+
+    /**
+     * The slots applied so far.
+     */
+    public synchronized Watermark applied() {
+        return new Watermark(next);
+    }
+
+    private void drain() {
+        Runnable apply;
+        while ((apply = pending.remove(next)) != null) {
+            run(next++, apply);
+            waitingSince = System.nanoTime();
+        }
+    }
+
+    private void checkStalled() {
+        int from;
+        int to;
+        synchronized (this) {
+            if (next > highestKnown) {
+                waitingSince = System.nanoTime();
+                return;
+            }
+            if (System.nanoTime() - waitingSince < TimeUnit.MILLISECONDS.toNanos(gapTimeoutMillis))
+                return;
+            from = next;
+            to = Math.min(highestKnown, next + MAX_STALLED - 1);
+        }
+
+        logger.warn("Slot {} was not decided in time, settling slots {} to {}", from, from, to);
+        for (int slot = from; slot <= to; slot++) {
+            boolean missing;
+            synchronized (this) {
+                missing = slot >= next && !pending.containsKey(slot);
+            }
+            if (missing) {
+                try {
+                    onStall.accept(slot);
+                } catch (RuntimeException e) {
+                    logger.error("Failed to settle slot {}", slot, e);
+                }
+            }
+        }
+    }
+
+    private void run(int slot, Runnable apply) {
+        try {
+            apply.run();
+        } catch (RuntimeException e) {
+            logger.error("Failed to apply slot {}", slot, e);
+        }
+        onDone.accept(slot);
+    }
+}
@@ -0,0 +1,63 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Groups requests into batches that are ordered and applied as a unit.
+ * A batch is sealed when it holds maxSize requests or when its first request has waited lingerMillis. The
+ * requests of a batch are applied in the order they were submitted, so they may depend on each other.
+ * Batches are handed to the flush callback in the order they were sealed.
+ */
+public class RequestBatcher<T> {
+    private final int maxSize;
+    private final long lingerMillis;
+    private final Consumer<List<T>> flush;
+    private final ScheduledExecutorService timer;
+
+    private List<T> current;
+    // bumped on every seal so a late linger timer does not seal the next batch early
+    private long generation;
+
+    public RequestBatcher(int maxSize, long lingerMillis, Consumer<List<T>> flush) {
+        this.maxSize = maxSize;
+        this.lingerMillis = lingerMillis;
+        this.flush = flush;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "request-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.current = new ArrayList<>();
+        this.generation = 0;
+    }
+
+    public synchronized void submit(T request) {
+        current.add(request);
+
+        if (current.size() >= maxSize) {
+            seal();
+        } else if (current.size() == 1) {
+            long batch = generation;
+            timer.schedule(() -> lingerExpired(batch), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void lingerExpired(long batch) {
+        if (batch == generation)
+            seal();
+    }
+
+    private void seal() {
+        if (current.isEmpty())
+            return;
+        List<T> batch = current;
+        current = new ArrayList<>();
+        generation++;
+        flush.accept(batch);
+    }
+}
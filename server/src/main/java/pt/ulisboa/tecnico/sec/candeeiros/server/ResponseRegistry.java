@@ -0,0 +1,57 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the results reported back by the SyncBanks service, keyed by the timestamp of the consensus round
+ * and the position of the request in the batch ordered at that timestamp (0 when batching is off).
+ * Whichever side shows up first (the waiting client call or the result) creates the future, so a result
+ * that arrives before anyone is waiting for it is not lost. A result nobody waits for (its client gave up, or
+ * it was reported again) is dropped once a client waiting for it would have timed out.
+ */
+public class ResponseRegistry<T> {
+    private final ConcurrentHashMap<Long, CompletableFuture<T>> responses;
+    private final long timeoutMillis;
+
+    public ResponseRegistry(long timeoutMillis) {
+        this.responses = new ConcurrentHashMap<>();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static long key(int timestamp, int batchIndex) {
+        return ((long) timestamp << 32) | (batchIndex & 0xffffffffL);
+    }
+
+    private CompletableFuture<T> futureFor(long key) {
+        return responses.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * Returns a future completed with the result for this timestamp, or completed exceptionally with a
+     * TimeoutException if none arrives in time. The entry is dropped once the future completes.
+     */
+    public CompletableFuture<T> await(int timestamp, int batchIndex) {
+        long key = key(timestamp, batchIndex);
+        CompletableFuture<T> future = futureFor(key);
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> responses.remove(key, future));
+        return future;
+    }
+
+    public void complete(int timestamp, int batchIndex, T response) {
+        long key = key(timestamp, batchIndex);
+        CompletableFuture<T> future = futureFor(key);
+        future.complete(response);
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS)
+                .execute(() -> responses.remove(key, future));
+    }
+
+    /**
+     * Number of results waited for or not yet collected.
+     */
+    public int size() {
+        return responses.size();
+    }
+}
@@ -0,0 +1,90 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool running the calls of a service: at most threads threads, and at most queueCapacity tasks waiting for
+ * one. A task that finds the queue full is rejected rather than queued, so a flood of one service's calls is refused
+ * instead of holding the threads of another. The threads are virtual if asked for and the runtime has them.
+ */
+class ServiceExecutor extends ThreadPoolExecutor implements ServiceExecutorMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceExecutor.class);
+
+    private final int queueCapacity;
+    private final AtomicLong rejected = new AtomicLong();
+
+    ServiceExecutor(String name, int threads, int queueCapacity, boolean virtualThreads) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                threadFactory(name, virtualThreads));
+        this.queueCapacity = queueCapacity;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler((task, executor) -> {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(name + " executor is full");
+        });
+    }
+
+    private static ThreadFactory threadFactory(String name, boolean virtualThreads) {
+        if (virtualThreads) {
+            // Thread.ofVirtual().name(name + "-", 0).factory(), on runtimes that have it
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+                ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, name + "-", 0L);
+                return (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not available, the {} executor uses platform threads", name);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public int getThreads() {
+        return getPoolSize();
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActiveThreads() {
+        return getActiveCount();
+    }
+
+    @Override
+    public int getQueuedTasks() {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return getCompletedTaskCount();
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return rejected.get();
+    }
+}
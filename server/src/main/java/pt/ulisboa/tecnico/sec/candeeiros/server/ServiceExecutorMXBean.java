@@ -0,0 +1,29 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+/**
+ * Gauges of the pool running the calls of a service, published over JMX so saturation can be watched under load.
+ */
+public interface ServiceExecutorMXBean {
+    int getThreads();
+
+    int getMaxThreads();
+
+    /**
+     * Threads running a call.
+     */
+    int getActiveThreads();
+
+    /**
+     * Tasks waiting for a thread.
+     */
+    int getQueuedTasks();
+
+    int getQueueCapacity();
+
+    long getCompletedTasks();
+
+    /**
+     * Tasks refused because the queue was full, since startup. Each one failed a call with RESOURCE_EXHAUSTED.
+     */
+    long getRejectedTasks();
+}
@@ -0,0 +1,184 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanksServiceGrpc;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.Quorum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+/**
+ * Settles a slot whose consensus round stalled, so the slots above it can be applied. This replica takes the slot
+ * over with a ballot above the owner's (see AcceptorTable): once a majority promised it, it proposes the value
+ * accepted at the highest ballot they report, or an empty one if none did, and the value a majority accepts is
+ * broadcast as the slot's decision. Every replica then applies the same value, the empty one included, so a slot
+ * is never skipped by one replica and applied by another. A round that fails is retried with a higher ballot after
+ * a random delay, until the slot is applied here.
+ */
+public class SlotRecovery {
+    private static final Logger logger = LoggerFactory.getLogger(SlotRecovery.class);
+
+    private final PeerManager peers;
+    private final SyncBanksBroadcaster broadcaster;
+    private final long retryMillis;
+    // whether the slot has been applied here
+    private final IntPredicate applied;
+    private final ScheduledExecutorService timer;
+    private final Set<Integer> active;
+
+    public SlotRecovery(PeerManager peers, SyncBanksBroadcaster broadcaster, long retryMillis, IntPredicate applied) {
+        this.peers = peers;
+        this.broadcaster = broadcaster;
+        this.retryMillis = retryMillis;
+        this.applied = applied;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "slot-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.active = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Starts settling the slot, unless it is already being settled.
+     */
+    public void recover(int slot) {
+        if (active.add(slot))
+            attempt(slot, 1);
+    }
+
+    private int ballot(int round) {
+        return round * peers.size() + peers.self();
+    }
+
+    private void attempt(int slot, int round) {
+        if (applied.test(slot)) {
+            active.remove(slot);
+            return;
+        }
+        int ballot = ballot(round);
+        logger.info("Settling slot {} with ballot {}", slot, ballot);
+        SyncBanks.SlotPrepareRequest request = SyncBanks.SlotPrepareRequest.newBuilder()
+                .setTimestamp(slot)
+                .setBallot(ballot)
+                .build();
+        collect(stub -> stub.slotPrepare(request), responses -> {
+            int promised = 0;
+            int discarded = 0;
+            int highestBallot = ballot;
+            SyncBanks.SlotPrepareResponse highestAccepted = null;
+            for (SyncBanks.SlotPrepareResponse response : responses) {
+                if (response.getDecided()) {
+                    decide(slot, response.getDecisionList());
+                    return;
+                }
+                if (response.getDiscarded())
+                    discarded++;
+                if (!response.getPromised()) {
+                    highestBallot = Math.max(highestBallot, response.getPromisedBallot());
+                    continue;
+                }
+                promised++;
+                if (response.getHasAccepted() && (highestAccepted == null
+                        || response.getAcceptedBallot() > highestAccepted.getAcceptedBallot()))
+                    highestAccepted = response;
+            }
+
+            if (discarded >= Quorum.majority(peers.size())) {
+                // the others applied and discarded it, this replica can no longer learn what it was
+                logger.error("Slot {} was discarded by a majority of replicas before it was applied here", slot);
+                active.remove(slot);
+                return;
+            }
+            if (promised < Quorum.majority(peers.size())) {
+                retry(slot, Math.max(round, highestBallot / peers.size()) + 1);
+                return;
+            }
+            List<SyncBanks.BatchedRequest> value = highestAccepted == null ? List.of() : highestAccepted.getAcceptedList();
+            propose(slot, round, ballot, value);
+        });
+    }
+
+    private void propose(int slot, int round, int ballot, List<SyncBanks.BatchedRequest> value) {
+        SyncBanks.SlotAcceptRequest request = SyncBanks.SlotAcceptRequest.newBuilder()
+                .setTimestamp(slot)
+                .setBallot(ballot)
+                .addAllRequests(value)
+                .build();
+        collect(stub -> stub.slotAccept(request), responses -> {
+            int accepted = 0;
+            int highestBallot = ballot;
+            for (SyncBanks.SlotAcceptResponse response : responses) {
+                if (response.getAccepted())
+                    accepted++;
+                else
+                    highestBallot = Math.max(highestBallot, response.getPromisedBallot());
+            }
+            if (accepted < Quorum.majority(peers.size())) {
+                retry(slot, Math.max(round, highestBallot / peers.size()) + 1);
+                return;
+            }
+            decide(slot, value);
+        });
+    }
+
+    private void decide(int slot, List<SyncBanks.BatchedRequest> value) {
+        logger.info("Slot {} settled with {} requests", slot, value.size());
+        SyncBanks.SlotDecideRequest request = SyncBanks.SlotDecideRequest.newBuilder()
+                .setTimestamp(slot)
+                .addAllRequests(value)
+                .build();
+        broadcaster.broadcast(stub -> stub.slotDecide(request));
+        active.remove(slot);
+    }
+
+    private void retry(int slot, int round) {
+        // a random delay keeps two replicas settling the same slot from outbidding each other forever
+        long delay = retryMillis / 2 + ThreadLocalRandom.current().nextLong(retryMillis / 2 + 1);
+        timer.schedule(() -> attempt(slot, round), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Calls every replica and hands the replies to done once they all answered or failed
+    private <T> void collect(Function<SyncBanksServiceGrpc.SyncBanksServiceFutureStub, ListenableFuture<T>> call,
+                             Consumer<List<T>> done) {
+        List<ListenableFuture<T>> calls = new ArrayList<>(peers.size());
+        for (int replica = 0; replica < peers.size(); replica++)
+            calls.add(peers.call(replica, call));
+        Futures.addCallback(Futures.successfulAsList(calls), new FutureCallback<List<T>>() {
+            @Override
+            public void onSuccess(List<T> replies) {
+                List<T> answered = new ArrayList<>(replies.size());
+                for (T reply : replies) {
+                    if (reply != null)
+                        answered.add(reply);
+                }
+                try {
+                    done.accept(answered);
+                } catch (RuntimeException e) {
+                    logger.error("Failed to settle a slot", e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // successfulAsList never fails
+                logger.error("Failed to settle a slot", t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+}
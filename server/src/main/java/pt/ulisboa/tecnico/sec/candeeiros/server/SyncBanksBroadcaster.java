@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanksServiceGrpc;
+
+import java.util.function.Function;
+
+/**
+ * Sends SyncBanks messages to every replica in parallel through future stubs. The acks carry nothing: progress
+ * is driven by the status and applied messages the replicas send back, which are counted against
+ * Quorum.majority. Replicas known to be down (see PeerManager) are not called at all.
+ */
+public class SyncBanksBroadcaster {
+    private static final Logger logger = LoggerFactory.getLogger(SyncBanksBroadcaster.class);
+
+    private final PeerManager peers;
+
+    public SyncBanksBroadcaster(PeerManager peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Issues the call to all replicas at once, without waiting for any of them. Failures are only logged.
+     */
+    public <T> void broadcast(Function<SyncBanksServiceGrpc.SyncBanksServiceFutureStub, ListenableFuture<T>> call) {
+        FutureCallback<T> callback = new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.info("Failed to connect to Sync Bank Server: {}", t.getMessage());
+            }
+        };
+
+        for (int replica = 0; replica < peers.size(); replica++) {
+            ListenableFuture<T> future;
+            try {
+                future = peers.call(replica, call);
+            } catch (RuntimeException e) {
+                callback.onFailure(e);
+                continue;
+            }
+            Futures.addCallback(future, callback, MoreExecutors.directExecutor());
+        }
+    }
+}
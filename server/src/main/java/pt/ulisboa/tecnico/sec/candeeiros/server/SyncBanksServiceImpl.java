@@ -1,8 +1,15 @@
 package pt.ulisboa.tecnico.sec.candeeiros.server;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,102 +20,164 @@ import pt.ulisboa.tecnico.sec.candeeiros.SyncBanksServiceGrpc;
 import pt.ulisboa.tecnico.sec.candeeiros.server.model.*;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.KeyManager;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Signatures;
 
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(SyncBanksServiceImpl.class);
+    // transactions per message of a streamed audit
+    private static final int AUDIT_CHUNK_SIZE = 256;
 
-    private int timestamp;
+    // How far above the slots applied here, in windows of every replica, a slot named by a peer may be. Each
+    // replica has at most a window of rounds in flight, so a slot further away can only come from a faulty peer,
+    // and must not make this one wait for, settle or skip every slot up to it.
+    private static final int HORIZON_WINDOWS = 4;
+
+    // highest slot applied to the bank, reported with reads
+    private final AtomicInteger timestamp;
     private final BftBank bank;
+    private final InFlightWindow window;
+    private final ReorderBuffer reorderBuffer;
+    private final AcceptorTable acceptors;
+    private final SlotRecovery recovery;
     private final KeyManager keyManager;
 
     //Open Account Storages
-    private final ConcurrentHashMap<Integer, ArrayList<OpenAccountIntent>> openAccountIntents;
-    private final ConcurrentHashMap<Integer, Bank.OpenAccountResponse> openAccountResponses;
-    private final ConcurrentHashMap<SyncBanks.OpenAccountAppliedRequest, Integer> openAppliedCounter;
-    private final ArrayList<SyncBanks.OpenAccountIntentRequest> openAccountOriginalsSync;
+    private final IntentTable<OpenAccountIntent> openAccountIntents;
 
     //Send Amount Storages
-    private final ConcurrentHashMap<Integer, ArrayList<SendAmountIntent>> sendAmountIntents;
-    private final ConcurrentHashMap<Integer, Bank.SendAmountResponse> sendAmountResponses;
-    private final ConcurrentHashMap<SyncBanks.SendAmountAppliedRequest, Integer> sendAmountAppliedCounter;
-    private final ArrayList<SyncBanks.SendAmountIntentRequest> sendAmountOriginalsSync;
+    private final IntentTable<SendAmountIntent> sendAmountIntents;
 
     //Receive Amount Storages
-    private final ConcurrentHashMap<Integer, ArrayList<ReceiveAmountIntent>> receiveAmountIntents;
-    private final ConcurrentHashMap<Integer, Bank.ReceiveAmountResponse> receiveAmountResponses;
-    private final ConcurrentHashMap<SyncBanks.ReceiveAmountAppliedRequest, Integer> receiveAmountAppliedCounter;
-    private final ArrayList<SyncBanks.ReceiveAmountIntentRequest> receiveAmountOriginalsSync;
+    private final IntentTable<ReceiveAmountIntent> receiveAmountIntents;
+
+    //Batch Storages
+    private final RequestBatcher<BatchSubmission> batcher;
+    private final IntentTable<BatchIntent> batchIntents;
+
+    //Slot Storages, whichever kind of intent proposed the slot
+    // what this replica proposed for its own slots
+    private final ConcurrentHashMap<Integer, Proposal> originals;
+    // the results of this replica's proposals, once applied here
+    private final ConcurrentHashMap<Integer, List<SyncBanks.BatchedResponse>> results;
+    private final ConcurrentHashMap<Integer, Integer> appliedCounter;
+    // which requests of an accepted proposal passed their signature and format checks
+    private final ConcurrentHashMap<Integer, Precheck> prechecks;
 
     //Communication between SyncBanks
-    private final List<String> SyncBanksTargets;
-    private final ArrayList<SyncBanksServiceGrpc.SyncBanksServiceBlockingStub> SyncBanksStubs;
+    private final PeerManager peers;
+    private SyncBanksBroadcaster broadcaster;
 
     //Communication between Banks
     private final String BankTarget;
-    private BankServiceGrpc.BankServiceBlockingStub BankStub;
+    private BankServiceGrpc.BankServiceFutureStub BankStub;
 
     //***
     private final int totalServers;
-    private final int port;
-
-    SyncBanksServiceImpl(String ledgerFileName, KeyManager keyManager, int totalServers, String bankTarget, int port) throws IOException {
+    private final int replicaId;
+    // most transactions an audit page carries
+    private final int auditPageSize;
+    // slots above the ones applied here that a peer may name, see HORIZON_WINDOWS
+    private final long horizon;
+    private final CheckAccountCache checkAccountCache;
+    // how long to wait before asking the replicas again where the slot numbering resumes
+    private final long gapTimeout;
+
+    //Garbage collection of finished consensus rounds
+    private final ScheduledExecutorService collector;
+    // every slot below this one is applied and on disk here
+    private final AtomicInteger durableApplied;
+    // the watermark found by the previous collection, which is what the next one discards; only used by the collector
+    private Watermark lastStable;
+    private final AtomicLong discarded;
+
+    SyncBanksServiceImpl(BftBank bank, KeyManager keyManager, PeerManager peers, String bankTarget,
+                         int batchSize, long batchLinger, int windowSize, long gapTimeout, int auditPageSize,
+                         long readCacheBytes, long gcInterval) {
         super();
-        timestamp = -1;
-        this.bank = new BftBank(ledgerFileName);
+        int totalServers = peers.size();
+        int replicaId = peers.self();
+        // slots resume after the last one in the ledger, whose effect was restored with it
+        int lastSlot = bank.getLastAppliedSlot();
+        timestamp = new AtomicInteger(lastSlot);
+        this.bank = bank;
+        this.peers = peers;
         this.BankTarget = bankTarget;
+        CreateStubs();
 
-        this.openAccountIntents = new ConcurrentHashMap<>();
-        this.openAccountResponses = new ConcurrentHashMap<>();
-        this.openAccountOriginalsSync = new ArrayList<>();
-
-        this.sendAmountIntents = new ConcurrentHashMap<>();
-        this.sendAmountResponses = new ConcurrentHashMap<>();
-        this.sendAmountOriginalsSync = new ArrayList<>();
-
-        this.receiveAmountIntents = new ConcurrentHashMap<>();
-        this.receiveAmountResponses = new ConcurrentHashMap<>();
-        this.receiveAmountOriginalsSync = new ArrayList<>();
-
-        this.SyncBanksTargets = new ArrayList<>();
-        this.SyncBanksStubs = new ArrayList<>();
-
-        this.openAppliedCounter = new ConcurrentHashMap<>();
-        this.sendAmountAppliedCounter = new ConcurrentHashMap<>();
-        this.receiveAmountAppliedCounter = new ConcurrentHashMap<>();
+        this.window = new InFlightWindow(windowSize, totalServers, replicaId);
+        this.acceptors = new AcceptorTable();
+        this.recovery = new SlotRecovery(peers, broadcaster, gapTimeout, this::isApplied);
+        this.reorderBuffer = new ReorderBuffer(lastSlot + 1, gapTimeout, slot -> {
+            timestamp.accumulateAndGet(slot, Math::max);
+            window.release(slot);
+        }, recovery::recover);
+
+        this.openAccountIntents = new IntentTable<>();
+        this.sendAmountIntents = new IntentTable<>();
+        this.receiveAmountIntents = new IntentTable<>();
+
+        // a batch size of 1 keeps the one-request-per-timestamp protocol
+        this.batcher = batchSize > 1
+                ? new RequestBatcher<>(batchSize, batchLinger, batch -> window.submit(slot -> sendBatchIntent(batch, slot)))
+                : null;
+        this.batchIntents = new IntentTable<>();
+
+        this.originals = new ConcurrentHashMap<>();
+        this.results = new ConcurrentHashMap<>();
+        this.appliedCounter = new ConcurrentHashMap<>();
+        this.prechecks = new ConcurrentHashMap<>();
 
         this.totalServers = totalServers;
-        this.port = port;
         this.keyManager = keyManager;
-        CreateStubs();
-        logger.info("Servers needed for majority: {}, total servers: {}", totalServers %2==0 ? (Math.ceil((double)(totalServers+1)/2)) : (Math.ceil((double)(totalServers)/2)), totalServers);
+        this.auditPageSize = auditPageSize;
+        this.checkAccountCache = new CheckAccountCache(readCacheBytes, SyncBanksServiceImpl::encodePendingTransaction);
+        this.replicaId = replicaId;
+        this.gapTimeout = gapTimeout;
+        this.horizon = (long) HORIZON_WINDOWS * windowSize * totalServers;
+        this.durableApplied = new AtomicInteger(lastSlot + 1);
+        this.lastStable = Watermark.none();
+        this.discarded = new AtomicLong();
+        this.collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consensus-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (gcInterval > 0)
+            collector.scheduleWithFixedDelay(this::collectGarbage, gcInterval, gcInterval, TimeUnit.MILLISECONDS);
+        logger.info("Servers needed for majority: {}, total servers: {}", Quorum.majority(totalServers), totalServers);
     }
 
     public void CreateStubs()
     {
-        for(int i=0;i<this.totalServers; i++) {
-            this.SyncBanksTargets.add("localhost:" + (port + i));
-            logger.info("Added SyncServer localhost:" + (port+i));
-        }
-        ManagedChannel channel;
-
-        for(String target: SyncBanksTargets) {
-            channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-            SyncBanksStubs.add(SyncBanksServiceGrpc.newBlockingStub(channel));
-        }
+        broadcaster = new SyncBanksBroadcaster(peers);
 
         ManagedChannel bankManagedChannel = ManagedChannelBuilder.forTarget(BankTarget).usePlaintext().build();
-        BankStub = BankServiceGrpc.newBlockingStub(bankManagedChannel);
+        BankStub = BankServiceGrpc.newFutureStub(bankManagedChannel);
         logger.info("Created Stubs");
     }
 
@@ -119,11 +188,32 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
     public Bank.Ack buildAck(int timestamp) {
         return Bank.Ack.newBuilder().setTimestamp(timestamp).build();
     }
+
+    private void notifyBank(ListenableFuture<Bank.Ack> call) {
+        Futures.addCallback(call, new FutureCallback<Bank.Ack>() {
+            @Override
+            public void onSuccess(Bank.Ack ack) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.info("Failed to connect to Bank Server");
+            }
+        }, MoreExecutors.directExecutor());
+    }
     // ***** Authenticated procedures *****
+    // Whatever its kind, an intent proposes a list of requests for a slot, and the replicas vote on whether they
+    // accepted it for that slot (see AcceptorTable), not on whether its requests are valid: that depends on every
+    // slot before it, so it is only decided when the slot is applied, in global slot order, under the locks of its
+    // accounts. The signature and format of the requests do not depend on it, and are checked when the intent
+    // arrives. A slot a majority did not accept is settled by SlotRecovery once it holds back the ones above it.
+    // The status a replica sends for an intent also gives up the slots of its own it left below it (see
+    // InFlightWindow.skipBelow), which every replica then decides empty.
 
     // ***** Open Account *****
 
-    private Bank.OpenAccountResponse.Status openAccountStatus(Bank.OpenAccountRequest request) {
+    // Format and signature of the request, which the state of the bank has no say in
+    private Bank.OpenAccountResponse.Status openAccountCheck(Bank.OpenAccountRequest request) {
         try {
             if (!request.hasSignature() || !request.hasChallengeNonce() || !request.hasPublicKey())
                 return Bank.OpenAccountResponse.Status.INVALID_MESSAGE_FORMAT;
@@ -135,7 +225,15 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
                     request.getPublicKey().getKeyBytes().toByteArray()
             ))
                 return Bank.OpenAccountResponse.Status.INVALID_SIGNATURE;
+            return Bank.OpenAccountResponse.Status.SUCCESS;
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            return Bank.OpenAccountResponse.Status.KEY_FAILURE;
+        }
+    }
 
+    // Whether the request can be applied to the bank as it is now; only called once openAccountCheck passed
+    private Bank.OpenAccountResponse.Status openAccountStatus(Bank.OpenAccountRequest request) {
+        try {
             PublicKey publicKey = Crypto.decodePublicKey(request.getPublicKey());
             if (bank.accountExists(publicKey))
                 return Bank.OpenAccountResponse.Status.ALREADY_EXISTED;
@@ -145,18 +243,16 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         }
     }
 
-    public void openAccount(Bank.OpenAccountRequest request) {
-        synchronized (bank) {
-                PublicKey publicKey = null;
-                try {
-                    publicKey = Crypto.decodePublicKey(request.getPublicKey());
-                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                    // Should never happen
-                    e.printStackTrace();
-                }
-                bank.createAccount(publicKey);
-                logger.info("Opened account with public key {}.", Crypto.keyAsShortString(publicKey));
+    private void openAccount(Bank.OpenAccountRequest request, BftBank.Changes changes) {
+        PublicKey publicKey = null;
+        try {
+            publicKey = Crypto.decodePublicKey(request.getPublicKey());
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            // Should never happen
+            e.printStackTrace();
         }
+        changes.createAccount(publicKey);
+        logger.info("Opened account with public key {}.", Crypto.keyAsShortString(publicKey));
     }
 
     public Bank.OpenAccountResponse openAccountResponseBuilder(Bank.OpenAccountResponse.Status status) {
@@ -167,41 +263,45 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         return request.build();
     }
 
-    public SyncBanks.OpenAccountIntentRequest openAccountRequestBuilder(SyncBanks.OpenAccountIntentRequest request) {
+    private static List<SyncBanks.BatchedRequest> slotOf(Bank.OpenAccountRequest request) {
+        return List.of(SyncBanks.BatchedRequest.newBuilder().setOpenAccountRequest(request).build());
+    }
+
+    public SyncBanks.OpenAccountIntentRequest openAccountRequestBuilder(SyncBanks.OpenAccountIntentRequest request, int slot) {
         //Create new Open Account Intent Request
         SyncBanks.OpenAccountIntentRequest.Builder newRequest = SyncBanks.OpenAccountIntentRequest.newBuilder();
         newRequest.setOpenAccountRequest(request.getOpenAccountRequest());
-        newRequest.setTimestamp(this.timestamp + 1);
+        newRequest.setTimestamp(slot);
 
         //Security (signing, nonces)
 
 
         //Return
-        openAccountOriginalsSync.add(newRequest.build());
+        proposed(slot, slotOf(request.getOpenAccountRequest()));
         return newRequest.build();
     }
 
     @Override
     public void openAccountSync(SyncBanks.OpenAccountIntentRequest request, StreamObserver<Bank.Ack> responseObserver) {
-
-        SyncBanks.OpenAccountIntentRequest newRequest = openAccountRequestBuilder(request);
-
-        try{
-            responseObserver.onNext(buildAck(newRequest.getTimestamp()));
-            responseObserver.onCompleted();
-        } catch (Exception e) {
-            logger.info("Failed to connect to Sync Bank Server");
+        if (batcher != null) {
+            batcher.submit(new BatchSubmission(SyncBanks.BatchedRequest.newBuilder()
+                    .setOpenAccountRequest(request.getOpenAccountRequest()).build(), responseObserver));
+            return;
         }
 
-        logger.info("OpenAccountSync: Sent Open Account Intent with TS: " + newRequest.getTimestamp());
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
+        window.submit(slot -> {
+            SyncBanks.OpenAccountIntentRequest newRequest = openAccountRequestBuilder(request, slot);
+
             try{
-                stub.openAccountIntent(newRequest);
+                responseObserver.onNext(buildAck(newRequest.getTimestamp()));
+                responseObserver.onCompleted();
             } catch (Exception e) {
                 logger.info("Failed to connect to Sync Bank Server");
             }
-        }
+
+            logger.info("OpenAccountSync: Sent Open Account Intent with TS: " + newRequest.getTimestamp());
+            broadcaster.broadcast(stub -> stub.openAccountIntent(newRequest));
+        });
     }
 
     @Override
@@ -217,39 +317,34 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         // receive intent to open account
 
         logger.info("Open Account: Got Intent");
-        Bank.OpenAccountResponse.Status status = null;
+        if (beyondHorizon(request.getTimestamp()))
+            return;
+        Bank.OpenAccountResponse.Status status = Bank.OpenAccountResponse.Status.SUCCESS;
 
-        if(openAccountIntents.containsKey(request.getTimestamp()) || request.getTimestamp() <= this.timestamp) {
+        // a replayed intent, or one for a slot that was taken over, is refused
+        if (!acceptProposal(request.getTimestamp(), slotOf(request.getOpenAccountRequest()))) {
             status = Bank.OpenAccountResponse.Status.INVALID_TIMESTAMP;
             logger.info("Invalid TS");
-        } else {
-            this.timestamp = request.getTimestamp();
         }
 
-        openAccountIntents.computeIfAbsent(request.getTimestamp(), k -> new ArrayList<>());
-        openAccountIntents.get(request.getTimestamp()).add(new OpenAccountIntent(request.getTimestamp(), request.getOpenAccountRequest()));
-
-        // if timestamp is valid check status if account can be opened
-        if(status == null) status = openAccountStatus(request.getOpenAccountRequest());
+        openAccountIntents.addIntent(request.getTimestamp(), RequestDigest.of(request.getOpenAccountRequest()),
+                new OpenAccountIntent(request.getTimestamp(), request.getOpenAccountRequest()));
 
         // send status to all other servers
         SyncBanks.OpenAccountStatusRequest.Builder statusRequest = SyncBanks.OpenAccountStatusRequest.newBuilder();
         statusRequest.setOpenAccountRequest(request.getOpenAccountRequest());
         statusRequest.setOpenAccountResponse(openAccountResponseBuilder(status));
         statusRequest.setTimestamp(request.getTimestamp());
+        SyncBanks.SlotSkip skip = window.skipBelow(request.getTimestamp());
+        if (skip != null)
+            statusRequest.setSkip(skip);
 
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
-            try{
-                stub.openAccountStatus(statusRequest.build());
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
-            }
-        }
+        SyncBanks.OpenAccountStatusRequest statusRequestMessage = statusRequest.build();
+        broadcaster.broadcast(stub -> stub.openAccountStatus(statusRequestMessage));
     }
 
     @Override
-    public synchronized void openAccountStatus(SyncBanks.OpenAccountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
+    public void openAccountStatus(SyncBanks.OpenAccountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
         try{
             responseObserver.onNext(buildAck());
             responseObserver.onCompleted();
@@ -257,156 +352,99 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
             logger.info("Failed to connect to Sync Bank Server");
         }
         logger.info("Open Account: Got Status");
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        OpenAccountIntent currentIntent = null;
-        while(openAccountIntents.get(request.getTimestamp())==null) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        while(currentIntent == null) {
-            for (OpenAccountIntent intent : openAccountIntents.get(request.getTimestamp())) {
-                if (intent.getRequest().equals(request.getOpenAccountRequest())) {
-                    currentIntent = intent;
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // add to status array of this open account intent
-        currentIntent.addStatus(request.getOpenAccountResponse().getStatus());
-
-        // check if majority was achieved
-        if(currentIntent.hasMajority(totalServers)) {
-            currentIntent.majorityChecked();
-            if(currentIntent.getMajority()==Bank.OpenAccountResponse.Status.INVALID_TIMESTAMP) {
-                logger.info("Invalid Timestamp");
-                for (SyncBanks.OpenAccountIntentRequest intentRequest : openAccountOriginalsSync) {
-                    if (intentRequest.getOpenAccountRequest().equals(request.getOpenAccountRequest())) {
-                        Bank.OpenAccountSync.Builder syncResponse = Bank.OpenAccountSync.newBuilder();
-                        syncResponse.setOpenAccountResponse(openAccountResponseBuilder(request.getOpenAccountResponse().getStatus()));
-                        syncResponse.setTimestamp(currentIntent.getTimestamp());
-                        BankStub.openAccountSyncRequest(syncResponse.build());
-                    }
-                }
-                return;
-            }
-            openAccountResponses.put(request.getTimestamp(), request.getOpenAccountResponse());
-            // if so, apply
-            if(currentIntent.getMajority()==Bank.OpenAccountResponse.Status.SUCCESS)
-                openAccount(currentIntent.getRequest());
-            // send apply request to all other servers
-            SyncBanks.OpenAccountAppliedRequest.Builder appliedRequest = SyncBanks.OpenAccountAppliedRequest.newBuilder();
-            appliedRequest.setOpenAccountRequest(currentIntent.getRequest());
-            appliedRequest.setTimestamp(currentIntent.getTimestamp());
-
-            for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-            {
-                try{
-                    stub.openAccountApplied(appliedRequest.build());
-                } catch (Exception e) {
-                    logger.info("Failed to connect to Sync Bank Server");
-                }
+        if (request.hasSkip())
+            skipped(request.getSkip());
 
-            }
-        }
+        ByteString digest = RequestDigest.of(request.getOpenAccountRequest());
+        openAccountIntents.withIntent(request.getTimestamp(), digest,
+                currentIntent -> openAccountStatusReceived(currentIntent, request));
     }
 
-    @Override
-    public void openAccountApplied(SyncBanks.OpenAccountAppliedRequest request, StreamObserver<Bank.Ack> responseObserver) {
-        try{
-            responseObserver.onNext(buildAck());
-            responseObserver.onCompleted();
-        } catch (Exception e) {
-            logger.info("Failed to connect to Sync Bank Server");
-        }
-        logger.info("Open Account: Got Applied");
-        // add to applied array of this open account applied
-        openAppliedCounter.merge(request, 1, Integer::sum);
-        // check if majority was achieved
-        boolean found = false;
-        for (SyncBanks.OpenAccountIntentRequest intentRequest : openAccountOriginalsSync) {
-            if (intentRequest.getOpenAccountRequest().equals(request.getOpenAccountRequest())) {
-                found = true;
-                break;
-            }
+    private void openAccountStatusReceived(OpenAccountIntent currentIntent, SyncBanks.OpenAccountStatusRequest request) {
+        // add to status array of this intent and check if majority was achieved
+        synchronized (currentIntent) {
+            currentIntent.addStatus(request.getOpenAccountResponse().getStatus());
+            if (!currentIntent.hasMajority(totalServers))
+                return;
+            currentIntent.majorityChecked();
         }
-
-        if(!found) return;
-
-        if(openAppliedCounter.get(request)>=(Math.ceil((double)totalServers/2))) {
-            logger.info("Open Account: Applied Majority");
-            // if so, send to client the requests result
-            Bank.OpenAccountSync.Builder syncResponse = Bank.OpenAccountSync.newBuilder();
-            syncResponse.setOpenAccountResponse(openAccountResponses.get(request.getTimestamp()));
-            syncResponse.setTimestamp(request.getTimestamp());
-            BankStub.openAccountSyncRequest(syncResponse.build());
+        if(currentIntent.getMajority()!=Bank.OpenAccountResponse.Status.SUCCESS) {
+            logger.info("Invalid Timestamp");
+            return;
         }
+        // if so, apply once every lower slot has been applied
+        decided(currentIntent.getTimestamp(), slotOf(currentIntent.getRequest()));
     }
     // ***** Send Amount
 
-    public void sendAmount(Bank.SendAmountRequest request) {
-        synchronized (bank) {
-            PublicKey destinationKey = null;
-            PublicKey sourceKey = null;
-            try {
-                destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
-                sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
-            } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
-                // Should never happen
-                e.printStackTrace();
-            }
-            BigDecimal amount = new BigDecimal(request.getTransaction().getAmount()); // should never fail
-            Nonce nonce = Nonce.decode(request.getNonce());
-            byte[] signature = request.getSignature().getSignatureBytes().toByteArray();
-
-            bank.addTransaction(sourceKey, destinationKey, amount, nonce, signature);
-
-            logger.info("Created transaction: {} -> {} (amount: {})",
-                    Crypto.keyAsShortString(sourceKey),
-                    Crypto.keyAsShortString(destinationKey),
-                    amount);
+    private void sendAmount(Bank.SendAmountRequest request, BftBank.Changes changes) {
+        PublicKey destinationKey = null;
+        PublicKey sourceKey = null;
+        try {
+            destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
+            sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+            // Should never happen
+            e.printStackTrace();
         }
+        long amount = Money.of(request.getTransaction()); // should never fail
+        String decimal = Money.nonCanonical(request.getTransaction(), amount);
+        changes.addTransaction(sourceKey, destinationKey, amount, decimal, Nonce.decode(request.getNonce()),
+                request.getSignature().getSignatureBytes().toByteArray());
+
+        logger.info("Created transaction: {} -> {} (amount: {})",
+                Crypto.keyAsShortString(sourceKey),
+                Crypto.keyAsShortString(destinationKey),
+                Money.formatted(amount));
     }
 
-    private Bank.SendAmountResponse.Status sendAmountStatus(Bank.SendAmountRequest request) {
+    // Format and signature of the request, which the state of the bank has no say in
+    private Bank.SendAmountResponse.Status sendAmountCheck(Bank.SendAmountRequest request) {
         try {
             if (!request.hasSignature() || !request.hasNonce() || !request.hasTransaction() ||
                     !request.getTransaction().hasSourcePublicKey() || !request.getTransaction().hasDestinationPublicKey())
                 return Bank.SendAmountResponse.Status.INVALID_MESSAGE_FORMAT;
 
-            PublicKey destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
+            Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
             PublicKey sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
 
             if (!Signatures.verifySendAmountRequestSignature(request.getSignature().getSignatureBytes().toByteArray(), sourceKey,
-                    request.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray(),
-                    request.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray(),
-                    request.getTransaction().getAmount(),
+                    request.getTransaction(),
                     request.getNonce().getNonceBytes().toByteArray()))
                 return Bank.SendAmountResponse.Status.INVALID_SIGNATURE;
+            return Bank.SendAmountResponse.Status.SUCCESS;
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+            return Bank.SendAmountResponse.Status.INVALID_KEY_FORMAT;
+        } catch (NumberFormatException e) {
+            return Bank.SendAmountResponse.Status.INVALID_NUMBER_FORMAT;
+        }
+    }
+
+    // Whether the request can be applied to the bank as it is now; only called once sendAmountCheck passed
+    private Bank.SendAmountResponse.Status sendAmountStatus(Bank.SendAmountRequest request) {
+        try {
+            PublicKey destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
+            PublicKey sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
+
             if (!bank.accountExists(destinationKey))
                 return Bank.SendAmountResponse.Status.DESTINATION_INVALID;
             if (!bank.accountExists(sourceKey))
                 return Bank.SendAmountResponse.Status.SOURCE_INVALID;
             if (sourceKey.equals(destinationKey))
                 return Bank.SendAmountResponse.Status.DESTINATION_INVALID;
-            BigDecimal amount = new BigDecimal(request.getTransaction().getAmount());
-            if (amount.compareTo(BigDecimal.ZERO) <= 0)
+            long amount = Money.of(request.getTransaction());
+            if (amount <= 0)
                 return Bank.SendAmountResponse.Status.INVALID_NUMBER_FORMAT;
-            BankAccount sourceAccount = bank.getAccount(sourceKey);
-            if (sourceAccount.getBalance().compareTo(amount) < 0)
-                return Bank.SendAmountResponse.Status.NOT_ENOUGH_BALANCE;
-            if (!sourceAccount.getNonce().nextNonce().equals(Nonce.decode(request.getNonce())))
-                return Bank.SendAmountResponse.Status.INVALID_NONCE;
-            return Bank.SendAmountResponse.Status.SUCCESS;
+            return bank.readAccount(sourceKey, sourceAccount -> {
+                if (sourceAccount.getBalance() < amount)
+                    return Bank.SendAmountResponse.Status.NOT_ENOUGH_BALANCE;
+                if (!sourceAccount.getNonce().isNext(request.getNonce()))
+                    return Bank.SendAmountResponse.Status.INVALID_NONCE;
+                return Bank.SendAmountResponse.Status.SUCCESS;
+            });
         } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
             return Bank.SendAmountResponse.Status.INVALID_KEY_FORMAT;
         } catch (NumberFormatException e) {
@@ -421,33 +459,37 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         return request.build();
     }
 
-    public SyncBanks.SendAmountIntentRequest sendAmountIntentRequestBuilder(SyncBanks.SendAmountIntentRequest request) {
+    private static List<SyncBanks.BatchedRequest> slotOf(Bank.SendAmountRequest request) {
+        return List.of(SyncBanks.BatchedRequest.newBuilder().setSendAmountRequest(request).build());
+    }
+
+    public SyncBanks.SendAmountIntentRequest sendAmountIntentRequestBuilder(SyncBanks.SendAmountIntentRequest request, int slot) {
         SyncBanks.SendAmountIntentRequest.Builder newRequest = SyncBanks.SendAmountIntentRequest.newBuilder();
         newRequest.setSendAmountRequest(request.getSendAmountRequest());
-        newRequest.setTimestamp(this.timestamp + 1);
+        newRequest.setTimestamp(slot);
 
-        sendAmountOriginalsSync.add(newRequest.build());
+        proposed(slot, slotOf(request.getSendAmountRequest()));
         return newRequest.build();
     }
 
     @Override
     public void sendAmountSync(SyncBanks.SendAmountIntentRequest request, StreamObserver<Bank.Ack> responseObserver) {
-        SyncBanks.SendAmountIntentRequest newRequest = sendAmountIntentRequestBuilder(request);
-        try{
-            responseObserver.onNext(buildAck(newRequest.getTimestamp()));
-            responseObserver.onCompleted();
-        } catch (Exception e) {
-            logger.info("Failed to connect to Sync Bank Server");
+        if (batcher != null) {
+            batcher.submit(new BatchSubmission(SyncBanks.BatchedRequest.newBuilder()
+                    .setSendAmountRequest(request.getSendAmountRequest()).build(), responseObserver));
+            return;
         }
-        logger.info("SendAmountSync: Sent Send Amount Intent with TS: " + newRequest.getTimestamp());
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
+        window.submit(slot -> {
+            SyncBanks.SendAmountIntentRequest newRequest = sendAmountIntentRequestBuilder(request, slot);
             try{
-                stub.sendAmountIntent(newRequest);
+                responseObserver.onNext(buildAck(newRequest.getTimestamp()));
+                responseObserver.onCompleted();
             } catch (Exception e) {
                 logger.info("Failed to connect to Sync Bank Server");
             }
-        }
+            logger.info("SendAmountSync: Sent Send Amount Intent with TS: " + newRequest.getTimestamp());
+            broadcaster.broadcast(stub -> stub.sendAmountIntent(newRequest));
+        });
     }
 
     @Override
@@ -462,39 +504,33 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         // receive intent to send amount
 
         logger.info("Send Amount: Got Intent");
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        Bank.SendAmountResponse.Status status = null;
+        Bank.SendAmountResponse.Status status = Bank.SendAmountResponse.Status.SUCCESS;
 
-        if(sendAmountIntents.containsKey(request.getTimestamp()) || request.getTimestamp() <= this.timestamp) {
+        if (!acceptProposal(request.getTimestamp(), slotOf(request.getSendAmountRequest()))) {
             status = Bank.SendAmountResponse.Status.INVALID_TIMESTAMP;
-        } else {
-            this.timestamp = request.getTimestamp();
         }
 
-        sendAmountIntents.computeIfAbsent(request.getTimestamp(), k -> new ArrayList<>());
-        sendAmountIntents.get(request.getTimestamp()).add(new SendAmountIntent(request.getTimestamp(), request.getSendAmountRequest()));
-
-        // if timestamp is valid check status if amount can be sent
-        if(status == null) status = sendAmountStatus(request.getSendAmountRequest());
+        sendAmountIntents.addIntent(request.getTimestamp(), RequestDigest.of(request.getSendAmountRequest()),
+                new SendAmountIntent(request.getTimestamp(), request.getSendAmountRequest()));
 
         // send status to all other servers
         SyncBanks.SendAmountStatusRequest.Builder statusRequest = SyncBanks.SendAmountStatusRequest.newBuilder();
         statusRequest.setSendAmountRequest(request.getSendAmountRequest());
         statusRequest.setSendAmountResponse(sendAmountResponseBuilder(status));
         statusRequest.setTimestamp(request.getTimestamp());
+        SyncBanks.SlotSkip skip = window.skipBelow(request.getTimestamp());
+        if (skip != null)
+            statusRequest.setSkip(skip);
 
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
-            try{
-                stub.sendAmountStatus(statusRequest.build());
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
-            }
-        }
+        SyncBanks.SendAmountStatusRequest statusRequestMessage = statusRequest.build();
+        broadcaster.broadcast(stub -> stub.sendAmountStatus(statusRequestMessage));
     }
 
     @Override
-    public synchronized void sendAmountStatus(SyncBanks.SendAmountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
+    public void sendAmountStatus(SyncBanks.SendAmountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
         try{
             responseObserver.onNext(buildAck());
             responseObserver.onCompleted();
@@ -502,124 +538,76 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
             logger.info("Failed to connect to Sync Bank Server");
         }
         logger.info("Send Amount: Got Status");
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        SendAmountIntent currentIntent = null;
-
-        while(currentIntent == null) {
-            for (SendAmountIntent intent : sendAmountIntents.get(request.getTimestamp())) {
-                if (intent.getRequest().equals(request.getSendAmountRequest())) {
-                    currentIntent = intent;
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // add to status array of this send amount intent
-        currentIntent.addStatus(request.getSendAmountResponse().getStatus());
-
-        // check if majority was achieved
-        if(currentIntent.hasMajority(totalServers)) {
-            logger.info("Send Amount: Majority Achieved");
-            currentIntent.majorityChecked();
-            if(currentIntent.getMajority()==Bank.SendAmountResponse.Status.INVALID_TIMESTAMP) {
-                logger.info("Send Amount: Invalid Timestamp");
-                for (SyncBanks.SendAmountIntentRequest intentRequest : sendAmountOriginalsSync) {
-                    if (intentRequest.getSendAmountRequest().equals(request.getSendAmountRequest())) {
-                        Bank.SendAmountSync.Builder syncResponse = Bank.SendAmountSync.newBuilder();
-                        syncResponse.setSendAmountResponse(sendAmountResponseBuilder(request.getSendAmountResponse().getStatus()));
-                        syncResponse.setTimestamp(currentIntent.getTimestamp());
-                        BankStub.sendAmountSyncRequest(syncResponse.build());
-                    }
-                }
-                return;
-            }
-            sendAmountResponses.put(request.getTimestamp(), request.getSendAmountResponse());
-            // if so, apply
-            if(currentIntent.getMajority()==Bank.SendAmountResponse.Status.SUCCESS) {
-                logger.info("Send Amount: Applying Send Amount");
-                sendAmount(currentIntent.getRequest());
-            }
-            // send apply request to all other servers
-            SyncBanks.SendAmountAppliedRequest.Builder appliedRequest = SyncBanks.SendAmountAppliedRequest.newBuilder();
-            appliedRequest.setSendAmountRequest(currentIntent.getRequest());
-            appliedRequest.setTimestamp(currentIntent.getTimestamp());
+        if (request.hasSkip())
+            skipped(request.getSkip());
 
-            for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-            {
-                try{
-                    stub.sendAmountApplied(appliedRequest.build());
-                } catch (Exception e) {
-                    logger.info("Failed to connect to Sync Bank Server");
-                }
-            }
-        }
+        ByteString digest = RequestDigest.of(request.getSendAmountRequest());
+        sendAmountIntents.withIntent(request.getTimestamp(), digest,
+                currentIntent -> sendAmountStatusReceived(currentIntent, request));
     }
 
-    @Override
-    public void sendAmountApplied(SyncBanks.SendAmountAppliedRequest request, StreamObserver<Bank.Ack> responseObserver) {
-        try{
-            responseObserver.onNext(buildAck());
-            responseObserver.onCompleted();
-        } catch (Exception e) {
-            logger.info("Failed to connect to Sync Bank Server");
-        }
-        logger.info("Send Amount: Got Applied");
-        // add to applied array of this send amount applied
-        sendAmountAppliedCounter.merge(request, 1, Integer::sum);
-        // check if majority was achieved
-        boolean found = false;
-        for (SyncBanks.SendAmountIntentRequest intentRequest : sendAmountOriginalsSync) {
-            if (intentRequest.getSendAmountRequest().equals(request.getSendAmountRequest())) {
-                found = true;
-                break;
-            }
+    private void sendAmountStatusReceived(SendAmountIntent currentIntent, SyncBanks.SendAmountStatusRequest request) {
+        // add to status array of this intent and check if majority was achieved
+        synchronized (currentIntent) {
+            currentIntent.addStatus(request.getSendAmountResponse().getStatus());
+            if (!currentIntent.hasMajority(totalServers))
+                return;
+            currentIntent.majorityChecked();
         }
-        if(!found) return;
-
-        if(totalServers %2==0 ? sendAmountAppliedCounter.get(request)>=(Math.ceil((double)totalServers/2)+1) : sendAmountAppliedCounter.get(request)>=(Math.ceil((double)totalServers/2))) {
-            logger.info("Send Amount: Applied Majority");
-            // if so, send to client the requests result
-            Bank.SendAmountSync.Builder syncResponse = Bank.SendAmountSync.newBuilder();
-            syncResponse.setSendAmountResponse(sendAmountResponses.get(request.getTimestamp()));
-            syncResponse.setTimestamp(request.getTimestamp());
-            BankStub.sendAmountSyncRequest(syncResponse.build());
+        logger.info("Send Amount: Majority Achieved");
+        if(currentIntent.getMajority()!=Bank.SendAmountResponse.Status.SUCCESS) {
+            logger.info("Send Amount: Invalid Timestamp");
+            return;
         }
+        // if so, apply once every lower slot has been applied
+        decided(currentIntent.getTimestamp(), slotOf(currentIntent.getRequest()));
     }
 
     // ***** Receive Amount
 
-    private Bank.ReceiveAmountResponse.Status receiveAmountStatus(Bank.ReceiveAmountRequest request) {
+    // Format and signature of the request, which the state of the bank has no say in
+    private Bank.ReceiveAmountResponse.Status receiveAmountCheck(Bank.ReceiveAmountRequest request) {
         try {
             if (!request.hasNonce() || !request.hasSignature() || !request.hasTransaction() ||
                     !request.getTransaction().hasSourcePublicKey() || !request.getTransaction().hasDestinationPublicKey())
                 return Bank.ReceiveAmountResponse.Status.INVALID_MESSAGE_FORMAT;
 
             PublicKey destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
-            PublicKey sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
+            Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
 
             if (!Signatures.verifyReceiveAmountRequestSignature(request.getSignature().getSignatureBytes().toByteArray(), destinationKey,
-                    request.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray(),
-                    request.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray(),
-                    request.getTransaction().getAmount(),
+                    request.getTransaction(),
                     request.getNonce().getNonceBytes().toByteArray(),
                     request.getAccept()
             ))
                 return Bank.ReceiveAmountResponse.Status.INVALID_SIGNATURE;
+            return Bank.ReceiveAmountResponse.Status.SUCCESS;
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+            return Bank.ReceiveAmountResponse.Status.INVALID_KEY_FORMAT;
+        } catch (NumberFormatException e) {
+            return Bank.ReceiveAmountResponse.Status.NO_SUCH_TRANSACTION;
+        }
+    }
+
+    // Whether the request can be applied to the bank as it is now; only called once receiveAmountCheck passed
+    private Bank.ReceiveAmountResponse.Status receiveAmountStatus(Bank.ReceiveAmountRequest request) {
+        try {
+            PublicKey destinationKey = Crypto.decodePublicKey(request.getTransaction().getDestinationPublicKey());
+            PublicKey sourceKey = Crypto.decodePublicKey(request.getTransaction().getSourcePublicKey());
 
             if (!bank.accountExists(destinationKey))
                 return Bank.ReceiveAmountResponse.Status.INVALID_KEY;
-            BankAccount destinationAccount = bank.getAccount(destinationKey);
-            BigDecimal amount = new BigDecimal(request.getTransaction().getAmount());
-            if (!destinationAccount.getTransactionQueue().contains(new Transaction(sourceKey, destinationKey, amount)))
-                return Bank.ReceiveAmountResponse.Status.NO_SUCH_TRANSACTION;
-            if (!destinationAccount.getNonce().nextNonce().equals(Nonce.decode(request.getNonce())))
-                return Bank.ReceiveAmountResponse.Status.INVALID_NONCE;
-            return Bank.ReceiveAmountResponse.Status.SUCCESS;
+            Transaction transaction = new Transaction(sourceKey, destinationKey, Money.of(request.getTransaction()));
+            return bank.readAccount(destinationKey, destinationAccount -> {
+                if (!destinationAccount.getTransactionQueue().contains(transaction))
+                    return Bank.ReceiveAmountResponse.Status.NO_SUCH_TRANSACTION;
+                if (!destinationAccount.getNonce().isNext(request.getNonce()))
+                    return Bank.ReceiveAmountResponse.Status.INVALID_NONCE;
+                return Bank.ReceiveAmountResponse.Status.SUCCESS;
+            });
         } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
             return Bank.ReceiveAmountResponse.Status.INVALID_KEY_FORMAT;
         } catch (NumberFormatException e) {
@@ -627,7 +615,7 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         }
     }
 
-    public void receiveAmount(Bank.ReceiveAmountRequest request) {
+    private void receiveAmount(Bank.ReceiveAmountRequest request, BftBank.Changes changes) {
         PublicKey destinationKey = null;
         PublicKey sourceKey = null;
         try {
@@ -637,24 +625,23 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
             // Should never happen
             e.printStackTrace();
         }
-        BigDecimal amount = new BigDecimal(request.getTransaction().getAmount()); // should never fail
+        long amount = Money.of(request.getTransaction()); // should never fail
         Nonce nonce = Nonce.decode(request.getNonce());
         byte[] signature = request.getSignature().getSignatureBytes().toByteArray();
 
         if (request.getAccept()) {
-            bank.acceptTransaction(sourceKey, destinationKey, amount, nonce, signature);
-
+            changes.acceptTransaction(sourceKey, destinationKey, amount,
+                    Money.nonCanonical(request.getTransaction(), amount), nonce, signature);
             logger.info("Applied transaction: {} -> {} (amount: {})",
                     Crypto.keyAsShortString(sourceKey),
                     Crypto.keyAsShortString(destinationKey),
-                    amount);
+                    Money.formatted(amount));
         } else {
-            bank.rejectTransaction(sourceKey, destinationKey, amount, nonce, signature);
-
+            changes.rejectTransaction(sourceKey, destinationKey, amount, nonce, signature);
             logger.info("Rejected transaction: {} -> {} (amount: {})",
                     Crypto.keyAsShortString(sourceKey),
                     Crypto.keyAsShortString(destinationKey),
-                    amount);
+                    Money.formatted(amount));
         }
     }
 
@@ -665,36 +652,40 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         return request.build();
     }
 
-    public SyncBanks.ReceiveAmountIntentRequest receiveAmountIntentRequestBuilder(SyncBanks.ReceiveAmountIntentRequest request) {
+    private static List<SyncBanks.BatchedRequest> slotOf(Bank.ReceiveAmountRequest request) {
+        return List.of(SyncBanks.BatchedRequest.newBuilder().setReceiveAmountRequest(request).build());
+    }
+
+    public SyncBanks.ReceiveAmountIntentRequest receiveAmountIntentRequestBuilder(SyncBanks.ReceiveAmountIntentRequest request, int slot) {
         SyncBanks.ReceiveAmountIntentRequest.Builder newRequest = SyncBanks.ReceiveAmountIntentRequest.newBuilder();
         newRequest.setReceiveAmountRequest(request.getReceiveAmountRequest());
-        newRequest.setTimestamp(this.timestamp + 1);
+        newRequest.setTimestamp(slot);
 
 
-        receiveAmountOriginalsSync.add(newRequest.build());
+        proposed(slot, slotOf(request.getReceiveAmountRequest()));
         return newRequest.build();
     }
 
     @Override
     public void receiveAmountSync(SyncBanks.ReceiveAmountIntentRequest request, StreamObserver<Bank.Ack> responseObserver) {
-        SyncBanks.ReceiveAmountIntentRequest newRequest = receiveAmountIntentRequestBuilder(request);
-        try{
-            responseObserver.onNext(buildAck(newRequest.getTimestamp()));
-            responseObserver.onCompleted();
-        } catch (Exception e) {
-            logger.info("Failed to connect to Sync Bank Server");
+        if (batcher != null) {
+            batcher.submit(new BatchSubmission(SyncBanks.BatchedRequest.newBuilder()
+                    .setReceiveAmountRequest(request.getReceiveAmountRequest()).build(), responseObserver));
+            return;
         }
-
-        logger.info("ReceiveAmountSync: Sent Receive Amount Intent with TS: " + newRequest.getTimestamp());
-
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
+        window.submit(slot -> {
+            SyncBanks.ReceiveAmountIntentRequest newRequest = receiveAmountIntentRequestBuilder(request, slot);
             try{
-                stub.receiveAmountIntent(newRequest);
+                responseObserver.onNext(buildAck(newRequest.getTimestamp()));
+                responseObserver.onCompleted();
             } catch (Exception e) {
                 logger.info("Failed to connect to Sync Bank Server");
             }
-        }
+
+            logger.info("ReceiveAmountSync: Sent Receive Amount Intent with TS: " + newRequest.getTimestamp());
+
+            broadcaster.broadcast(stub -> stub.receiveAmountIntent(newRequest));
+        });
     }
 
     @Override
@@ -709,39 +700,33 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         // receive intent to send amount
 
         logger.info("Receive Amount: Got Intent");
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        Bank.ReceiveAmountResponse.Status status = null;
+        Bank.ReceiveAmountResponse.Status status = Bank.ReceiveAmountResponse.Status.SUCCESS;
 
-        if(receiveAmountIntents.containsKey(request.getTimestamp()) || request.getTimestamp() <= this.timestamp) {
+        if (!acceptProposal(request.getTimestamp(), slotOf(request.getReceiveAmountRequest()))) {
             status = Bank.ReceiveAmountResponse.Status.INVALID_TIMESTAMP;
-        } else {
-            this.timestamp = request.getTimestamp();
         }
 
-        receiveAmountIntents.computeIfAbsent(request.getTimestamp(), k -> new ArrayList<>());
-        receiveAmountIntents.get(request.getTimestamp()).add(new ReceiveAmountIntent(request.getTimestamp(), request.getReceiveAmountRequest()));
-
-        // if timestamp is valid check status if amount can be received
-        if(status == null) status = receiveAmountStatus(request.getReceiveAmountRequest());
+        receiveAmountIntents.addIntent(request.getTimestamp(), RequestDigest.of(request.getReceiveAmountRequest()),
+                new ReceiveAmountIntent(request.getTimestamp(), request.getReceiveAmountRequest()));
 
         // send status to all other servers
         SyncBanks.ReceiveAmountStatusRequest.Builder statusRequest = SyncBanks.ReceiveAmountStatusRequest.newBuilder();
         statusRequest.setReceiveAmountRequest(request.getReceiveAmountRequest());
         statusRequest.setReceiveAmountResponse(receiveAmountResponseBuilder(status));
         statusRequest.setTimestamp(request.getTimestamp());
+        SyncBanks.SlotSkip skip = window.skipBelow(request.getTimestamp());
+        if (skip != null)
+            statusRequest.setSkip(skip);
 
-        for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-        {
-            try{
-                stub.receiveAmountStatus(statusRequest.build());
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
-            }
-        }
+        SyncBanks.ReceiveAmountStatusRequest statusRequestMessage = statusRequest.build();
+        broadcaster.broadcast(stub -> stub.receiveAmountStatus(statusRequestMessage));
     }
 
     @Override
-    public synchronized void receiveAmountStatus(SyncBanks.ReceiveAmountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
+    public void receiveAmountStatus(SyncBanks.ReceiveAmountStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
         try{
             responseObserver.onNext(buildAck());
             responseObserver.onCompleted();
@@ -750,97 +735,667 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
         }
 
         logger.info("Receive Amount: Got Status");
-        ReceiveAmountIntent currentIntent = null;
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        while(currentIntent == null) {
-            for (ReceiveAmountIntent intent : receiveAmountIntents.get(request.getTimestamp())) {
-                if (intent.getRequest().equals(request.getReceiveAmountRequest())) {
-                    currentIntent = intent;
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        if (request.hasSkip())
+            skipped(request.getSkip());
 
-        // add to status array of this receive amount intent
-        currentIntent.addStatus(request.getReceiveAmountResponse().getStatus());
-        logger.info("Receive Amount: Checking Majority");
-        // check if majority was achieved
-        if(currentIntent.hasMajority(totalServers)) {
-            logger.info("Receive Amount: Majority Achieved");
+        ByteString digest = RequestDigest.of(request.getReceiveAmountRequest());
+        receiveAmountIntents.withIntent(request.getTimestamp(), digest,
+                currentIntent -> receiveAmountStatusReceived(currentIntent, request));
+    }
+
+    private void receiveAmountStatusReceived(ReceiveAmountIntent currentIntent, SyncBanks.ReceiveAmountStatusRequest request) {
+        // add to status array of this intent and check if majority was achieved
+        synchronized (currentIntent) {
+            currentIntent.addStatus(request.getReceiveAmountResponse().getStatus());
+            logger.info("Receive Amount: Checking Majority");
+            if (!currentIntent.hasMajority(totalServers))
+                return;
             currentIntent.majorityChecked();
-            if(currentIntent.getMajority()==Bank.ReceiveAmountResponse.Status.INVALID_TIMESTAMP) {
-                logger.info("Receive Amount: Invalid Timestamp");
-                for (SyncBanks.ReceiveAmountIntentRequest intentRequest : receiveAmountOriginalsSync) {
-                    if (intentRequest.getReceiveAmountRequest().equals(request.getReceiveAmountRequest())) {
-                        Bank.ReceiveAmountSync.Builder syncResponse = Bank.ReceiveAmountSync.newBuilder();
-                        syncResponse.setReceiveAmountResponse(receiveAmountResponseBuilder(request.getReceiveAmountResponse().getStatus()));
-                        syncResponse.setTimestamp(currentIntent.getTimestamp());
-                        BankStub.receiveAmountSyncRequest(syncResponse.build());
-                    }
+        }
+        logger.info("Receive Amount: Majority Achieved");
+        if(currentIntent.getMajority()!=Bank.ReceiveAmountResponse.Status.SUCCESS) {
+            logger.info("Receive Amount: Invalid Timestamp");
+            return;
+        }
+        // if so, apply once every lower slot has been applied
+        decided(currentIntent.getTimestamp(), slotOf(currentIntent.getRequest()));
+    }
+
+    // ***** Batches
+    // A batch carries several client requests under one timestamp. When its turn comes, each request is validated
+    // against the state the ones before it left and applied if it is valid, all under the locks of the batch's
+    // accounts, so requests of a batch may depend on each other. Its results are the ones found then.
+
+    private static class BatchSubmission {
+        private final SyncBanks.BatchedRequest request;
+        private final StreamObserver<Bank.Ack> responseObserver;
+
+        BatchSubmission(SyncBanks.BatchedRequest request, StreamObserver<Bank.Ack> responseObserver) {
+            this.request = request;
+            this.responseObserver = responseObserver;
+        }
+
+        SyncBanks.BatchedRequest getRequest() {
+            return request;
+        }
+    }
+
+    private static Collection<ByteString> batchedAccounts(SyncBanks.BatchedRequest request) {
+        switch (request.getRequestCase()) {
+            case OPENACCOUNTREQUEST:
+                return List.of(request.getOpenAccountRequest().getPublicKey().getKeyBytes());
+            case SENDAMOUNTREQUEST:
+                return List.of(request.getSendAmountRequest().getTransaction().getSourcePublicKey().getKeyBytes(),
+                        request.getSendAmountRequest().getTransaction().getDestinationPublicKey().getKeyBytes());
+            case RECEIVEAMOUNTREQUEST:
+                return List.of(request.getReceiveAmountRequest().getTransaction().getSourcePublicKey().getKeyBytes(),
+                        request.getReceiveAmountRequest().getTransaction().getDestinationPublicKey().getKeyBytes());
+            default:
+                return List.of();
+        }
+    }
+
+    private static Collection<PublicKey> batchKeys(List<SyncBanks.BatchedRequest> requests) {
+        Set<PublicKey> keys = new HashSet<>();
+        for (SyncBanks.BatchedRequest request : requests) {
+            for (ByteString keyBytes : batchedAccounts(request)) {
+                try {
+                    keys.add(Crypto.decodePublicKey(keyBytes));
+                } catch (InvalidKeySpecException e) {
+                    // the request itself is refused with a key error, there is nothing to lock for it
                 }
-                return;
             }
+        }
+        return keys;
+    }
 
-            receiveAmountResponses.put(request.getTimestamp(), request.getReceiveAmountResponse());
-            // if so, apply
-            if(currentIntent.getMajority()==Bank.ReceiveAmountResponse.Status.SUCCESS) {
-                logger.info("Receive Amount: Executing");
-                receiveAmount(currentIntent.getRequest());
-            }
-            // send apply request to all other servers
-            SyncBanks.ReceiveAmountAppliedRequest.Builder appliedRequest = SyncBanks.ReceiveAmountAppliedRequest.newBuilder();
-            appliedRequest.setReceiveAmountRequest(currentIntent.getRequest());
-            appliedRequest.setTimestamp(currentIntent.getTimestamp());
+    private void sendBatchIntent(List<BatchSubmission> batch, int slot) {
+        SyncBanks.BatchIntentRequest.Builder newRequest = SyncBanks.BatchIntentRequest.newBuilder();
+        for (BatchSubmission submission : batch)
+            newRequest.addRequests(submission.getRequest());
+        newRequest.setTimestamp(slot);
 
-            for(SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub: SyncBanksStubs)
-            {
-                try{
-                    stub.receiveAmountApplied(appliedRequest.build());
-                } catch (Exception e) {
-                    logger.info("Failed to connect to Sync Bank Server");
-                }
+        SyncBanks.BatchIntentRequest intentRequest = newRequest.build();
+        proposed(intentRequest.getTimestamp(), intentRequest.getRequestsList());
+
+        for (int i = 0; i < batch.size(); i++) {
+            try{
+                batch.get(i).responseObserver.onNext(Bank.Ack.newBuilder()
+                        .setTimestamp(intentRequest.getTimestamp())
+                        .setBatchIndex(i)
+                        .build());
+                batch.get(i).responseObserver.onCompleted();
+            } catch (Exception e) {
+                logger.info("Failed to connect to Sync Bank Server");
             }
         }
+
+        logger.info("BatchSync: Sent Batch Intent with TS: {} ({} requests)", intentRequest.getTimestamp(), batch.size());
+        broadcaster.broadcast(stub -> stub.batchIntent(intentRequest));
     }
 
     @Override
-    public void receiveAmountApplied(SyncBanks.ReceiveAmountAppliedRequest request, StreamObserver<Bank.Ack> responseObserver) {
+    public void batchIntent(SyncBanks.BatchIntentRequest request, StreamObserver<Bank.Ack> responseObserver) {
         try{
             responseObserver.onNext(buildAck());
             responseObserver.onCompleted();
         } catch (Exception e) {
             logger.info("Failed to connect to Sync Bank Server");
         }
-        logger.info("Receive Amount: Got Applied");
-        // add to applied array of this send amount applied
-        receiveAmountAppliedCounter.merge(request, 1, Integer::sum);
-        // check if majority was achieved
 
-        boolean found = false;
-        for (SyncBanks.ReceiveAmountIntentRequest intentRequest : receiveAmountOriginalsSync) {
-            if (intentRequest.getReceiveAmountRequest().equals(request.getReceiveAmountRequest())) {
-                found = true;
-                break;
-            }
-        }
-        if(!found) return;
+        logger.info("Batch: Got Intent ({} requests)", request.getRequestsCount());
+        if (beyondHorizon(request.getTimestamp()))
+            return;
 
-        if(totalServers %2==0 ? receiveAmountAppliedCounter.get(request)>=(Math.ceil((double)totalServers/2)+1) : receiveAmountAppliedCounter.get(request)>=(Math.ceil((double)totalServers/2))) {
-            logger.info("Receive Amount: Applied Majority");
-            // if so, send to client the requests result
-            Bank.ReceiveAmountSync.Builder syncResponse = Bank.ReceiveAmountSync.newBuilder();
-            syncResponse.setReceiveAmountResponse(receiveAmountResponses.get(request.getTimestamp()));
-            syncResponse.setTimestamp(request.getTimestamp());
-            BankStub.receiveAmountSyncRequest(syncResponse.build());
-        }
-    }
+        boolean accepted = acceptProposal(request.getTimestamp(), request.getRequestsList());
+        if (!accepted)
+            logger.info("Invalid TS");
 
-    // ***** Check Account
+        batchIntents.addIntent(request.getTimestamp(), RequestDigest.of(request.getRequestsList()),
+                new BatchIntent(request.getTimestamp(), request.getRequestsList()));
+
+        // send whether the batch was accepted for its timestamp to all other servers
+        SyncBanks.BatchStatusRequest.Builder statusRequest = SyncBanks.BatchStatusRequest.newBuilder()
+                .addAllRequests(request.getRequestsList())
+                .setAccepted(accepted)
+                .setTimestamp(request.getTimestamp());
+        SyncBanks.SlotSkip skip = window.skipBelow(request.getTimestamp());
+        if (skip != null)
+            statusRequest.setSkip(skip);
+
+        SyncBanks.BatchStatusRequest statusRequestMessage = statusRequest.build();
+        broadcaster.broadcast(stub -> stub.batchStatus(statusRequestMessage));
+    }
+
+    @Override
+    public void batchStatus(SyncBanks.BatchStatusRequest request, StreamObserver<Bank.Ack> responseObserver) {
+        try{
+            responseObserver.onNext(buildAck());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+        logger.info("Batch: Got Status");
+        if (beyondHorizon(request.getTimestamp()))
+            return;
+
+        if (request.hasSkip())
+            skipped(request.getSkip());
+
+        ByteString digest = RequestDigest.of(request.getRequestsList());
+        batchIntents.withIntent(request.getTimestamp(), digest,
+                currentIntent -> batchStatusReceived(currentIntent, request));
+    }
+
+    private void batchStatusReceived(BatchIntent currentIntent, SyncBanks.BatchStatusRequest request) {
+        // add to status array of this intent and check if majority was achieved
+        synchronized (currentIntent) {
+            currentIntent.addStatus(request.getAccepted());
+            if (!currentIntent.hasMajority(totalServers))
+                return;
+            currentIntent.majorityChecked();
+        }
+        logger.info("Batch: Majority Achieved");
+        if (!currentIntent.getMajority()) {
+            logger.info("Batch: Invalid Timestamp");
+            return;
+        }
+        decided(currentIntent.getTimestamp(), currentIntent.getRequests());
+    }
+
+    @Override
+    public void batchApplied(SyncBanks.BatchAppliedRequest request, StreamObserver<Bank.Ack> responseObserver) {
+        try{
+            responseObserver.onNext(buildAck());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+        logger.info("Batch: Got Applied");
+        appliedReceived(request.getTimestamp(), RequestDigest.of(request.getRequestsList()));
+    }
+
+    // ***** Slots
+    // What every kind of intent shares once its requests are a list: proposing, accepting, deciding and applying
+    // them, and answering the requests this replica proposed.
+
+    // A list of requests proposed for a slot
+    private static class Proposal {
+        private final List<SyncBanks.BatchedRequest> requests;
+        private final ByteString digest;
+
+        Proposal(List<SyncBanks.BatchedRequest> requests) {
+            this.requests = requests;
+            this.digest = RequestDigest.of(requests);
+        }
+    }
+
+    // Which requests of the proposal with this digest passed their signature and format checks
+    private static class Precheck {
+        private final ByteString digest;
+        private final BitSet passed;
+
+        Precheck(ByteString digest, BitSet passed) {
+            this.digest = digest;
+            this.passed = passed;
+        }
+    }
+
+    private boolean isApplied(int slot) {
+        return reorderBuffer.applied().isBelow(slot);
+    }
+
+    // Highest slot a peer may name now, see HORIZON_WINDOWS
+    private int horizonEnd() {
+        return (int) Math.min(Integer.MAX_VALUE, reorderBuffer.applied().getFloor() + horizon - 1);
+    }
+
+    // Whether a slot named by a peer is too far above the ones applied here to be taken into account; it is logged
+    // and ignored
+    private boolean beyondHorizon(int slot) {
+        if (slot <= horizonEnd())
+            return false;
+        logger.warn("Slot {} is too far above the slots applied here, ignoring it", slot);
+        return true;
+    }
+
+    // Remembers what this replica proposes for one of its slots, to answer its requests once it is applied
+    private void proposed(int slot, List<SyncBanks.BatchedRequest> requests) {
+        originals.put(slot, new Proposal(requests));
+        reorderBuffer.expect(slot);
+    }
+
+    // The owner of the slots gave them up, so none of them can ever be accepted with requests: they are decided
+    // empty without a round. Only the slots between the ones applied here and the horizon are taken into account.
+    private void skipped(SyncBanks.SlotSkip skip) {
+        int owner = Math.floorMod(skip.getFrom(), totalServers);
+        long from = Math.max(skip.getFrom(), reorderBuffer.applied().getFloor());
+        from += Math.floorMod(owner - from, (long) totalServers);
+        long to = Math.min(skip.getTo(), (long) horizonEnd() + 1);
+        for (long slot = from; slot < to; slot += totalServers)
+            decided((int) slot, List.of());
+    }
+
+    // Accepts the requests for the slot, as its owner proposed them, unless something else was accepted or
+    // promised for it, and checks their signatures and formats while the slot waits for its turn. Returns whether
+    // they were accepted.
+    private boolean acceptProposal(int slot, List<SyncBanks.BatchedRequest> requests) {
+        reorderBuffer.expect(slot);
+        if (!acceptors.acceptInitial(slot, requests))
+            return false;
+
+        BitSet passed = new BitSet(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            if (passesCheck(requests.get(i)))
+                passed.set(i);
+        }
+        prechecks.put(slot, new Precheck(RequestDigest.of(requests), passed));
+        return true;
+    }
+
+    private boolean passesCheck(SyncBanks.BatchedRequest request) {
+        switch (request.getRequestCase()) {
+            case OPENACCOUNTREQUEST:
+                return openAccountCheck(request.getOpenAccountRequest()) == Bank.OpenAccountResponse.Status.SUCCESS;
+            case SENDAMOUNTREQUEST:
+                return sendAmountCheck(request.getSendAmountRequest()) == Bank.SendAmountResponse.Status.SUCCESS;
+            case RECEIVEAMOUNTREQUEST:
+                return receiveAmountCheck(request.getReceiveAmountRequest()) == Bank.ReceiveAmountResponse.Status.SUCCESS;
+            default:
+                return false;
+        }
+    }
+
+    // The slot was decided with these requests: apply them once every lower slot has been applied
+    private void decided(int slot, List<SyncBanks.BatchedRequest> requests) {
+        acceptors.decide(slot, requests);
+        reorderBuffer.deliver(slot, () -> applySlot(slot, requests));
+    }
+
+    // Validates a request of a slot being applied against the state the ones before it left, and applies it if it is
+    // valid, returning its result. checked says whether its signature and format are known to be fine.
+    private SyncBanks.BatchedResponse applyRequest(SyncBanks.BatchedRequest request, boolean checked, BftBank.Changes changes) {
+        SyncBanks.BatchedResponse.Builder response = SyncBanks.BatchedResponse.newBuilder();
+        switch (request.getRequestCase()) {
+            case OPENACCOUNTREQUEST: {
+                Bank.OpenAccountResponse.Status status = checked ? Bank.OpenAccountResponse.Status.SUCCESS
+                        : openAccountCheck(request.getOpenAccountRequest());
+                if (status == Bank.OpenAccountResponse.Status.SUCCESS)
+                    status = openAccountStatus(request.getOpenAccountRequest());
+                if (status == Bank.OpenAccountResponse.Status.SUCCESS)
+                    openAccount(request.getOpenAccountRequest(), changes);
+                response.setOpenAccountResponse(openAccountResponseBuilder(status));
+                break;
+            }
+            case SENDAMOUNTREQUEST: {
+                Bank.SendAmountResponse.Status status = checked ? Bank.SendAmountResponse.Status.SUCCESS
+                        : sendAmountCheck(request.getSendAmountRequest());
+                if (status == Bank.SendAmountResponse.Status.SUCCESS)
+                    status = sendAmountStatus(request.getSendAmountRequest());
+                if (status == Bank.SendAmountResponse.Status.SUCCESS)
+                    sendAmount(request.getSendAmountRequest(), changes);
+                response.setSendAmountResponse(sendAmountResponseBuilder(status));
+                break;
+            }
+            case RECEIVEAMOUNTREQUEST: {
+                Bank.ReceiveAmountResponse.Status status = checked ? Bank.ReceiveAmountResponse.Status.SUCCESS
+                        : receiveAmountCheck(request.getReceiveAmountRequest());
+                if (status == Bank.ReceiveAmountResponse.Status.SUCCESS)
+                    status = receiveAmountStatus(request.getReceiveAmountRequest());
+                if (status == Bank.ReceiveAmountResponse.Status.SUCCESS)
+                    receiveAmount(request.getReceiveAmountRequest(), changes);
+                response.setReceiveAmountResponse(receiveAmountResponseBuilder(status));
+                break;
+            }
+        }
+        return response.build();
+    }
+
+    private void applySlot(int slot, List<SyncBanks.BatchedRequest> requests) {
+        ByteString digest = RequestDigest.of(requests);
+        Precheck precheck = prechecks.remove(slot);
+        BitSet passed = precheck != null && precheck.digest.equals(digest) ? precheck.passed : new BitSet();
+
+        List<SyncBanks.BatchedResponse> responses = new ArrayList<>(requests.size());
+        long record = bank.apply(slot, batchKeys(requests), changes -> {
+            for (int i = 0; i < requests.size(); i++)
+                responses.add(applyRequest(requests.get(i), passed.get(i), changes));
+        });
+
+        Proposal own = originals.get(slot);
+        if (own != null) {
+            if (own.digest.equals(digest)) {
+                results.put(slot, responses);
+            } else {
+                // the slot was settled without this replica's proposal, whose requests were not applied
+                originals.remove(slot);
+                logger.info("Slot {} was settled with other requests", slot);
+                notifyResults(slot, refused(own.requests));
+            }
+        }
+
+        // once the slot is on disk here it counts towards the garbage collection watermark, and the other servers
+        // are sent the apply request, which is what they count
+        SyncBanks.BatchAppliedRequest appliedRequestMessage = requests.isEmpty() ? null : SyncBanks.BatchAppliedRequest.newBuilder()
+                .addAllRequests(requests)
+                .setTimestamp(slot)
+                .build();
+        bank.whenDurable(record, () -> {
+            durableApplied.accumulateAndGet(slot + 1, Math::max);
+            if (appliedRequestMessage != null)
+                broadcaster.broadcast(stub -> stub.batchApplied(appliedRequestMessage));
+        });
+    }
+
+    private void appliedReceived(int slot, ByteString digest) {
+        // only the slots this replica proposed are answered, so the other ones are not even counted
+        Proposal own = originals.get(slot);
+        if (own == null || !own.digest.equals(digest))
+            return;
+        int applied = appliedCounter.merge(slot, 1, Integer::sum);
+        if (applied < Quorum.majority(totalServers))
+            return;
+
+        // the results are only known once this replica applied the slot itself; removing them makes sure they go
+        // back to the bank service exactly once
+        List<SyncBanks.BatchedResponse> responses = results.remove(slot);
+        if (responses == null)
+            return;
+        logger.info("Slot {}: Applied Majority", slot);
+        notifyResults(slot, responses);
+    }
+
+    private List<SyncBanks.BatchedResponse> refused(List<SyncBanks.BatchedRequest> requests) {
+        List<SyncBanks.BatchedResponse> responses = new ArrayList<>(requests.size());
+        for (SyncBanks.BatchedRequest request : requests) {
+            SyncBanks.BatchedResponse.Builder response = SyncBanks.BatchedResponse.newBuilder();
+            switch (request.getRequestCase()) {
+                case OPENACCOUNTREQUEST:
+                    response.setOpenAccountResponse(openAccountResponseBuilder(Bank.OpenAccountResponse.Status.INVALID_TIMESTAMP));
+                    break;
+                case SENDAMOUNTREQUEST:
+                    response.setSendAmountResponse(sendAmountResponseBuilder(Bank.SendAmountResponse.Status.INVALID_TIMESTAMP));
+                    break;
+                case RECEIVEAMOUNTREQUEST:
+                    response.setReceiveAmountResponse(receiveAmountResponseBuilder(Bank.ReceiveAmountResponse.Status.INVALID_TIMESTAMP));
+                    break;
+            }
+            responses.add(response.build());
+        }
+        return responses;
+    }
+
+    // Sends the results of a slot's requests to the bank service; a request that was not batched has index 0
+    private void notifyResults(int timestamp, List<SyncBanks.BatchedResponse> responses) {
+        for (int i = 0; i < responses.size(); i++) {
+            SyncBanks.BatchedResponse response = responses.get(i);
+            switch (response.getResponseCase()) {
+                case OPENACCOUNTRESPONSE:
+                    notifyBank(BankStub.openAccountSyncRequest(Bank.OpenAccountSync.newBuilder()
+                            .setOpenAccountResponse(response.getOpenAccountResponse())
+                            .setTimestamp(timestamp)
+                            .setBatchIndex(i)
+                            .build()));
+                    break;
+                case SENDAMOUNTRESPONSE:
+                    notifyBank(BankStub.sendAmountSyncRequest(Bank.SendAmountSync.newBuilder()
+                            .setSendAmountResponse(response.getSendAmountResponse())
+                            .setTimestamp(timestamp)
+                            .setBatchIndex(i)
+                            .build()));
+                    break;
+                case RECEIVEAMOUNTRESPONSE:
+                    notifyBank(BankStub.receiveAmountSyncRequest(Bank.ReceiveAmountSync.newBuilder()
+                            .setReceiveAmountResponse(response.getReceiveAmountResponse())
+                            .setTimestamp(timestamp)
+                            .setBatchIndex(i)
+                            .build()));
+                    break;
+            }
+        }
+    }
+
+    // ***** Slot recovery
+    // See SlotRecovery. These answer the replica settling a stalled slot.
+
+    @Override
+    public void slotPrepare(SyncBanks.SlotPrepareRequest request, StreamObserver<SyncBanks.SlotPrepareResponse> responseObserver) {
+        SyncBanks.SlotPrepareResponse response;
+        if (beyondHorizon(request.getTimestamp())) {
+            // nothing promised
+            response = SyncBanks.SlotPrepareResponse.getDefaultInstance();
+        } else {
+            reorderBuffer.expect(request.getTimestamp());
+            response = acceptors.prepare(request.getTimestamp(), request.getBallot());
+        }
+        try{
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+    }
+
+    @Override
+    public void slotAccept(SyncBanks.SlotAcceptRequest request, StreamObserver<SyncBanks.SlotAcceptResponse> responseObserver) {
+        SyncBanks.SlotAcceptResponse response = beyondHorizon(request.getTimestamp())
+                ? SyncBanks.SlotAcceptResponse.getDefaultInstance()
+                : acceptors.accept(request.getTimestamp(), request.getBallot(), request.getRequestsList());
+        try{
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+    }
+
+    @Override
+    public void slotDecide(SyncBanks.SlotDecideRequest request, StreamObserver<Bank.Ack> responseObserver) {
+        try{
+            responseObserver.onNext(buildAck());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+        logger.info("Slot {}: Got Decision ({} requests)", request.getTimestamp(), request.getRequestsCount());
+        if (beyondHorizon(request.getTimestamp()))
+            return;
+        decided(request.getTimestamp(), request.getRequestsList());
+    }
+
+    @Override
+    public void slotProgress(SyncBanks.SlotProgressRequest request, StreamObserver<SyncBanks.SlotProgressResponse> responseObserver) {
+        try{
+            responseObserver.onNext(SyncBanks.SlotProgressResponse.newBuilder()
+                    .setHighestKnown(reorderBuffer.highestKnown())
+                    .setApplied(durableApplied.get())
+                    .build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+    }
+
+    // ***** Restart
+    // What this replica proposed before it stopped is only in its ledger if it was applied, and the replicas that
+    // accepted one of those slots refuse it if it is proposed again. The slot numbering therefore resumes above
+    // the highest slot known to a majority of the replicas, which every slot that reached a majority is; the slots
+    // below it that this replica missed are waited for and settled like any stalled slot.
+
+    /**
+     * Asks the other replicas where the slot numbering resumes and opens the window there, retrying until a
+     * majority of the replicas answered. Called once the server is up, as they may be asking this one too.
+     */
+    void resume() {
+        SyncBanks.SlotProgressRequest request = SyncBanks.SlotProgressRequest.newBuilder().build();
+        List<ListenableFuture<SyncBanks.SlotProgressResponse>> calls = new ArrayList<>(totalServers);
+        for (int replica = 0; replica < totalServers; replica++) {
+            if (replica != replicaId)
+                calls.add(peers.call(replica, stub -> stub.slotProgress(request)));
+        }
+        Futures.addCallback(Futures.successfulAsList(calls), new FutureCallback<List<SyncBanks.SlotProgressResponse>>() {
+            @Override
+            public void onSuccess(List<SyncBanks.SlotProgressResponse> replies) {
+                // this replica counts towards the majority
+                int answered = 1;
+                int highest = reorderBuffer.highestKnown();
+                for (SyncBanks.SlotProgressResponse reply : replies) {
+                    if (reply == null)
+                        continue;
+                    answered++;
+                    // a replica that was down for long resumes low, and catches up as it applies the slots it missed
+                    highest = Math.max(highest, Math.min(reply.getHighestKnown(), horizonEnd()));
+                }
+                if (answered < Quorum.majority(totalServers)) {
+                    logger.info("Waiting for a majority of replicas to resume the slot numbering");
+                    collector.schedule(SyncBanksServiceImpl.this::resume, gapTimeout, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                reorderBuffer.expect(highest);
+                int firstSequence = Math.max(0, Math.floorDiv(highest - replicaId, totalServers) + 1);
+                logger.info("Resuming after slot {}, proposing from slot {}", highest, firstSequence * totalServers + replicaId);
+                window.open(firstSequence);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Should never happen, successfulAsList does not fail
+                t.printStackTrace();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    // ***** Garbage collection
+    // A round's state is needed until a majority of the replicas has applied its slot: a replica that has not may
+    // still need it to settle the slot (see SlotRecovery), and this one's client is only answered once a majority
+    // applied it. Each collection asks the replicas which slots they applied and have on disk, and the watermark is
+    // the highest point a majority of them reached, never above what is applied here. What was below the watermark
+    // found by the previous collection is then discarded, so a slot is kept for at least one interval after that.
+    // Messages about a discarded slot are ignored, and an intent for one is refused as a replay.
+
+    private void collectGarbage() {
+        SyncBanks.SlotProgressRequest request = SyncBanks.SlotProgressRequest.newBuilder().build();
+        List<ListenableFuture<SyncBanks.SlotProgressResponse>> calls = new ArrayList<>(totalServers);
+        for (int replica = 0; replica < totalServers; replica++) {
+            if (replica != replicaId)
+                calls.add(peers.call(replica, stub -> stub.slotProgress(request)));
+        }
+        // the replies are handled on the collector, so collections never overlap
+        Futures.addCallback(Futures.successfulAsList(calls), new FutureCallback<List<SyncBanks.SlotProgressResponse>>() {
+            @Override
+            public void onSuccess(List<SyncBanks.SlotProgressResponse> replies) {
+                List<Integer> applied = new ArrayList<>(totalServers);
+                applied.add(durableApplied.get());
+                for (SyncBanks.SlotProgressResponse reply : replies) {
+                    if (reply != null)
+                        applied.add(reply.getApplied());
+                }
+                discardBelow(stableWatermark(applied, Quorum.majority(totalServers), reorderBuffer.applied()));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Should never happen, successfulAsList does not fail
+                t.printStackTrace();
+            }
+        }, collector);
+    }
+
+    /**
+     * Highest slot every replica of some majority has applied, given the applied points that were reported, and
+     * never above what is applied here. Nothing is stable until a majority has reported.
+     */
+    static Watermark stableWatermark(List<Integer> applied, int majority, Watermark local) {
+        if (applied.size() < majority)
+            return Watermark.none();
+        List<Integer> sorted = new ArrayList<>(applied);
+        sorted.sort(Collections.reverseOrder());
+        return new Watermark(Math.min(sorted.get(majority - 1), local.getFloor()));
+    }
+
+    private void discardBelow(Watermark watermark) {
+        try {
+            Watermark stable = lastStable;
+            // a replica that restarted may report less than it did before, which must not bring discarded slots back
+            if (watermark.getFloor() > stable.getFloor())
+                lastStable = watermark;
+
+            // a majority applied these slots, so this replica's own results can go back to the bank service even if
+            // their applied messages were lost
+            for (Map.Entry<Integer, List<SyncBanks.BatchedResponse>> entry : results.entrySet()) {
+                if (stable.isBelow(entry.getKey()) && results.remove(entry.getKey(), entry.getValue())) {
+                    logger.info("Slot {}: Applied by a majority, sending the results", entry.getKey());
+                    notifyResults(entry.getKey(), entry.getValue());
+                }
+            }
+
+            int count = openAccountIntents.discardBelow(stable)
+                    + sendAmountIntents.discardBelow(stable)
+                    + receiveAmountIntents.discardBelow(stable)
+                    + batchIntents.discardBelow(stable)
+                    + acceptors.discardBelow(stable);
+            for (ConcurrentHashMap<Integer, ?> table : slotTables()) {
+                int before = table.size();
+                table.keySet().removeIf(stable::isBelow);
+                count += before - table.size();
+            }
+            discarded.addAndGet(count);
+            if (count > 0)
+                logger.info("Discarded {} entries of rounds below slot {}", count, stable);
+        } catch (RuntimeException e) {
+            // a failed collection must not cancel the next ones
+            logger.error("Failed to discard finished rounds", e);
+        }
+    }
+
+    private List<ConcurrentHashMap<Integer, ?>> slotTables() {
+        return List.of(originals, results, appliedCounter, prechecks);
+    }
+
+    int liveIntents() {
+        return openAccountIntents.size() + sendAmountIntents.size() + receiveAmountIntents.size() + batchIntents.size()
+                + acceptors.size();
+    }
+
+    int liveResults() {
+        return results.size();
+    }
+
+    int liveOriginals() {
+        return originals.size();
+    }
+
+    int liveAppliedCounters() {
+        return appliedCounter.size();
+    }
+
+    long discardedEntries() {
+        return discarded.get();
+    }
+
+    // ***** Quorum reads
+    // See QuorumRead. The handler returns as soon as the read is sent, and the client is answered from the
+    // callback of whichever replica completes the quorum.
+
+    private <R> void answerRead(String name, R response, StreamObserver<R> responseObserver) {
+        try {
+            if (response == null) {
+                logger.info("{}: no majority of replicas agreed", name);
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Replicas did not agree").asRuntimeException());
+                return;
+            }
+            logger.info("{}: Got Majority, sending to client", name);
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+    }
+
+    // ***** Check Account
     private Bank.CheckAccountResponse.Status checkAccountStatus(Bank.CheckAccountRequest request) {
         try {
             if (!request.hasChallengeNonce() || !request.hasPublicKey())
@@ -858,109 +1413,82 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
     @Override
     public void checkAccount(Bank.CheckAccountRequest request, StreamObserver<Bank.CheckAccountResponse> responseObserver) {
         logger.info("Got Check Account Sync");
-        CheckAccountIntent intent = new CheckAccountIntent();
-        for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-            // request all values from all servers
-            SyncBanks.CheckAccountSyncResponse responseSync = stub.checkAccountSync(request);
-            if (intent.addResponse(responseSync.getTimestamp(), responseSync.getCheckAccountResponse(), totalServers)) {
-                logger.info("Check Account: Got Majority, sending to client");
-                try{
-                    responseObserver.onNext(intent.getMajority());
-                    responseObserver.onCompleted();
-                } catch (Exception e) {
-                    logger.info("Failed to connect to Sync Bank Server");
-                }
-            }
-        }
+        QuorumRead.start(peers, (stub, digestOnly) -> Futures.transform(
+                stub.checkAccountSync(SyncBanks.CheckAccountSyncRequest.newBuilder()
+                        .setCheckAccountRequest(request)
+                        .setDigestOnly(digestOnly)
+                        .build()),
+                responseSync -> new QuorumRead.Reply<>(responseSync.hasCheckAccountResponse() ? responseSync.getCheckAccountResponse() : null,
+                        responseSync.getDigest()),
+                MoreExecutors.directExecutor()
+        ), checkAccountResponse -> checkAccountDigest(checkAccountResponse.getChallengeNonce().getNonceBytes().toByteArray(),
+                Signatures.checkAccountPayloadDigest(checkAccountResponse.getStatus().name(), checkAccountResponse.getBalance(),
+                        checkAccountResponse.getTransactionsList())))
+                .thenAccept(response -> answerRead("Check Account", response, responseObserver));
     }
 
     @Override
-    public void checkAccountSync(Bank.CheckAccountRequest request, StreamObserver<SyncBanks.CheckAccountSyncResponse> responseObserver) {
+    public void checkAccountSync(SyncBanks.CheckAccountSyncRequest syncRequest, StreamObserver<SyncBanks.CheckAccountSyncResponse> responseObserver) {
+        Bank.CheckAccountRequest request = syncRequest.getCheckAccountRequest();
         SyncBanks.CheckAccountSyncResponse.Builder SyncResponse = SyncBanks.CheckAccountSyncResponse.newBuilder();
-        Bank.CheckAccountResponse.Builder response = Bank.CheckAccountResponse.newBuilder();
-
-        synchronized (bank) {
-            Bank.CheckAccountResponse.Status status = checkAccountStatus(request);
-            logger.info("Got check account. Status: {}", status);
-
-            response.setStatus(status);
-
-            switch (status) {
-                case SUCCESS:
-                    PublicKey key = null;
-                    try {
-                        key = Crypto.decodePublicKey(request.getPublicKey());
-                    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                        // This should not happen
-                        e.printStackTrace();
-                    }
-
-                    BankAccount account = bank.getAccount(key);
-                    response.setBalance(account.getBalance().toString());
-
-                    for (Transaction t : account.getTransactionQueue()) {
-
-                        Bank.NonRepudiableTransaction transaction = Bank.NonRepudiableTransaction.newBuilder()
-                                .setTransaction(
-                                        Bank.Transaction.newBuilder()
-                                                .setAmount(t.getAmount().toString())
-                                                .setDestinationPublicKey(Crypto.encodePublicKey(t.getDestination()))
-                                                .setSourcePublicKey(Crypto.encodePublicKey(t.getSource()))
-                                                .build()
-                                )
-                                .setSourceNonce(t.getSourceNonce().encode())
-                                .setSourceSignature(Bank.Signature.newBuilder()
-                                        .setSignatureBytes(ByteString.copyFrom(t.getSourceSignature()))
-                                        .build()
-                                )
-                                .build();
-                        response.addTransactions(transaction);
-                    }
-                    break;
-                case INVALID_MESSAGE_FORMAT:
-                    SyncResponse.setCheckAccountResponse(response.build());
-                    SyncResponse.setTimestamp(timestamp);
-                    try{
-                        responseObserver.onNext(SyncResponse.build());
-                        responseObserver.onCompleted();
-                    } catch (Exception e) {
-                        logger.info("Failed to connect to Sync Bank Server");
-                    }
-                    return;
-            }
 
+        Bank.CheckAccountResponse.Status status = checkAccountStatus(request);
+        logger.info("Got check account. Status: {}", status);
 
+        CheckAccountCache.Payload payload = checkAccountCache.failure(status);
+        if (status == Bank.CheckAccountResponse.Status.SUCCESS) {
+            PublicKey key = null;
             try {
-                response.setChallengeNonce(request.getChallengeNonce())
-                        .setSignature(Bank.Signature.newBuilder()
-                                .setSignatureBytes(ByteString.copyFrom(Signatures.signCheckAccountResponse(keyManager.getKey(),
-                                        request.getChallengeNonce().getNonceBytes().toByteArray(),
-                                        response.getStatus().name(),
-                                        response.getBalance(),
-                                        response.getTransactionsList()
-                                )))
-                                .build());
-            } catch (SignatureException | InvalidKeyException e) {
-                // Should never happen
+                key = Crypto.decodePublicKey(request.getPublicKey());
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                // This should not happen
                 e.printStackTrace();
             }
+            // a published snapshot never changes, so encoding it needs no lock
+            payload = checkAccountCache.get(key, bank.getSnapshot(key));
+        }
 
-            SyncResponse.setCheckAccountResponse(response.build());
-            SyncResponse.setTimestamp(this.timestamp);
-            try{
-                responseObserver.onNext(SyncResponse.build());
-                responseObserver.onCompleted();
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
+        // a response to a malformed request is neither bound to a nonce nor signed
+        boolean signed = status != Bank.CheckAccountResponse.Status.INVALID_MESSAGE_FORMAT;
+        byte[] challengeNonce = signed ? request.getChallengeNonce().getNonceBytes().toByteArray() : new byte[0];
+        SyncResponse.setDigest(checkAccountDigest(challengeNonce, payload.getDigest()));
+        SyncResponse.setTimestamp(timestamp.get());
+
+        // a replica asked only for its digest neither builds the response nor signs
+        if (!syncRequest.getDigestOnly()) {
+            Bank.CheckAccountResponse.Builder response = Bank.CheckAccountResponse.newBuilder()
+                    .setStatus(status)
+                    .setBalance(payload.getBalance())
+                    .addAllTransactions(payload.getTransactions());
+            if (signed) {
+                response.setChallengeNonce(request.getChallengeNonce());
+                try {
+                    response.setSignature(Bank.Signature.newBuilder()
+                            .setSignatureBytes(ByteString.copyFrom(Signatures.signCheckAccountBinding(keyManager.getKey(),
+                                    challengeNonce, payload.getDigest())))
+                            .build());
+                } catch (SignatureException | InvalidKeyException e) {
+                    // Should never happen
+                    e.printStackTrace();
+                }
             }
-            logger.info("Check Account answered");
+            SyncResponse.setCheckAccountResponse(response.build());
+        }
+
+        try{
+            responseObserver.onNext(SyncResponse.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
         }
+        logger.info("Check Account answered");
     }
+
     //***** Audit
 
     private Bank.AuditResponse.Status auditStatus(Bank.AuditRequest request) {
         try {
-            if (!request.hasChallengeNonce() || !request.hasPublicKey())
+            if (!request.hasChallengeNonce() || !request.hasPublicKey() || request.getOffset() < 0 || request.getPageSize() < 0)
                 return Bank.AuditResponse.Status.INVALID_MESSAGE_FORMAT;
 
             PublicKey key = Crypto.decodePublicKey(request.getPublicKey());
@@ -975,105 +1503,350 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
     @Override
     public void audit(Bank.AuditRequest request, StreamObserver<Bank.AuditResponse> responseObserver) {
         logger.info("Got Audit Sync");
-        AuditIntent intent = new AuditIntent();
-        for (SyncBanksServiceGrpc.SyncBanksServiceBlockingStub stub : SyncBanksStubs) {
-            // request all values from all servers
-            SyncBanks.AuditSyncResponse responseSync = stub.auditSync(request);
-            logger.info(request.toString());
-            if (intent.addResponse(responseSync.getTimestamp(), responseSync.getAuditResponse(), totalServers)) {
+        QuorumRead.start(peers, (stub, digestOnly) -> Futures.transform(
+                stub.auditSync(SyncBanks.AuditSyncRequest.newBuilder()
+                        .setAuditRequest(request)
+                        .setDigestOnly(digestOnly)
+                        .build()),
+                responseSync -> new QuorumRead.Reply<>(responseSync.hasAuditResponse() ? responseSync.getAuditResponse() : null,
+                        responseSync.getDigest()),
+                MoreExecutors.directExecutor()
+        ), auditResponse -> digestOf(auditResponse.toBuilder().clearSignature().build()))
+                .thenAccept(response -> answerRead("Audit", response, responseObserver));
+    }
+
+    @Override
+    public void auditSync(SyncBanks.AuditSyncRequest syncRequest, StreamObserver<SyncBanks.AuditSyncResponse> responseObserver) {
+        Bank.AuditRequest request = syncRequest.getAuditRequest();
+        SyncBanks.AuditSyncResponse.Builder SyncResponse = SyncBanks.AuditSyncResponse.newBuilder();
+
+        Bank.AuditResponse.Status status = auditStatus(request);
+
+        logger.info("Got request to audit account. Status {}", status.name());
+
+        Bank.AuditResponse.Builder response = Bank.AuditResponse.newBuilder()
+                .setStatus(status)
+                .setNextOffset(request.getOffset());
+
+        switch (status) {
+            case SUCCESS:
+                PublicKey key = null;
+                try {
+                    key = Crypto.decodePublicKey(request.getPublicKey());
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                    // This should not happen
+                    e.printStackTrace();
+                }
+
+                // the history only grows, so an offset names the same transaction on every replica and every call
+                List<Transaction> history = bank.getSnapshot(key).getTransactionHistory();
+                int pageSize = request.getPageSize() == 0 ? auditPageSize : Math.min(request.getPageSize(), auditPageSize);
+                int from = (int) Math.min(request.getOffset(), history.size());
+                int to = (int) Math.min(history.size(), (long) from + pageSize);
+                for (Transaction t : history.subList(from, to))
+                    response.addTransactions(encodeAcceptedTransaction(t));
+                response.setNextOffset(request.getOffset() + (to - from))
+                        .setHasMore(to < history.size());
+                break;
+            case INVALID_MESSAGE_FORMAT:
+                SyncResponse.setDigest(digestOf(response.build()));
+                if (!syncRequest.getDigestOnly())
+                    SyncResponse.setAuditResponse(response.build());
+                SyncResponse.setTimestamp(timestamp.get());
                 try{
-                    responseObserver.onNext(intent.getMajority());
+                    responseObserver.onNext(SyncResponse.build());
                     responseObserver.onCompleted();
                 } catch (Exception e) {
                     logger.info("Failed to connect to Sync Bank Server");
                 }
+                return;
+        }
+
+        response.setChallengeNonce(request.getChallengeNonce());
+        SyncResponse.setDigest(digestOf(response.build()));
+        SyncResponse.setTimestamp(timestamp.get());
+        if (syncRequest.getDigestOnly()) {
+            try{
+                responseObserver.onNext(SyncResponse.build());
+                responseObserver.onCompleted();
+            } catch (Exception e) {
+                logger.info("Failed to connect to Sync Bank Server");
             }
+            return;
+        }
+
+        try {
+            response.setSignature(Bank.Signature.newBuilder()
+                            .setSignatureBytes(ByteString.copyFrom(Signatures.signAuditResponse(keyManager.getKey(),
+                                    request.getChallengeNonce().getNonceBytes().toByteArray(),
+                                    response.getStatus().name(),
+                                    request.getOffset(),
+                                    response.getNextOffset(),
+                                    response.getHasMore(),
+                                    response.getTransactionsList()
+                            )))
+                            .build());
+        } catch (SignatureException | InvalidKeyException e) {
+            // should never happen
+            e.printStackTrace();
+        }
+
+        SyncResponse.setAuditResponse(response.build());
+        try{
+            responseObserver.onNext(SyncResponse.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
+        }
+        logger.info("Audit answered");
+    }
+
+    // What replicas vote on: the same answer yields the same digest, whichever replica signed it
+    private static ByteString digestOf(MessageLite unsignedResponse) {
+        try {
+            return ByteString.copyFrom(MessageDigest.getInstance("SHA-256").digest(unsignedResponse.toByteArray()));
+        } catch (NoSuchAlgorithmException e) {
+            // Should never happen
+            throw new IllegalStateException(e);
         }
     }
 
+    // What replicas vote on for a streamed audit, before the transactions are added: the status and the bounds
+    private static MessageDigest auditHistoryDigest(Bank.AuditResponse.Status status, long offset, long nextOffset) {
+        MessageDigest digest = Crypto.newDigest();
+        digest.update(status.name().getBytes());
+        digest.update(ByteBuffer.allocate(16).putLong(offset).putLong(nextOffset).array());
+        return digest;
+    }
+
+    // What replicas vote on for a check account read: the same data the response signature covers
+    private static ByteString checkAccountDigest(byte[] challengeNonce, byte[] payloadDigest) {
+        MessageDigest digest = Crypto.newDigest();
+        digest.update(challengeNonce);
+        digest.update(payloadDigest);
+        return ByteString.copyFrom(digest.digest());
+    }
+
+    private static Bank.NonRepudiableTransaction encodePendingTransaction(Transaction t) {
+        return Bank.NonRepudiableTransaction.newBuilder()
+                .setTransaction(
+                        Bank.Transaction.newBuilder()
+                                .setAmount(t.getSignedAmount())
+                                .setDestinationPublicKey(Crypto.encodePublicKey(t.getDestination()))
+                                .setSourcePublicKey(Crypto.encodePublicKey(t.getSource()))
+                                .build()
+                )
+                .setSourceNonce(t.getSourceNonce().encode())
+                .setSourceSignature(Bank.Signature.newBuilder()
+                        .setSignatureBytes(ByteString.copyFrom(t.getSourceSignature()))
+                        .build()
+                )
+                .build();
+    }
+
+    private static Bank.NonRepudiableTransaction encodeAcceptedTransaction(Transaction t) {
+        return Bank.NonRepudiableTransaction.newBuilder()
+                .setTransaction(
+                        Bank.Transaction.newBuilder()
+                                .setAmount(t.getSignedAmount())
+                                .setDestinationPublicKey(Crypto.encodePublicKey(t.getDestination()))
+                                .setSourcePublicKey(Crypto.encodePublicKey(t.getSource()))
+                                .build()
+                )
+                .setSourceNonce(t.getSourceNonce().encode())
+                .setDestinationNonce(t.getDestinationNonce().encode())
+                .setSourceSignature(Bank.Signature.newBuilder()
+                        .setSignatureBytes(ByteString.copyFrom(t.getSourceSignature()))
+                        .build()
+                )
+                .setDestinationSignature(Bank.Signature.newBuilder()
+                        .setSignatureBytes(ByteString.copyFrom(t.getDestinationSignature()))
+                        .build()
+                )
+                .build();
+    }
+
+    /**
+     * Streams this replica's history of the account, from the requested offset, in chunks of AUDIT_CHUNK_SIZE transactions, signing them as
+     * they are sent, so neither the response nor the data to sign is ever held whole. The signature, on the
+     * last chunk, is the one an Audit response with the same transactions would carry.
+     * Meanwhile the replicas vote on the digest of the history being streamed (see auditDigest), and the last
+     * chunk is only signed and sent if this replica's is the one a majority agreed on; otherwise the stream fails.
+     * A chunk is only sent while the transport can take it, and the rest wait for the call to be ready again, so a
+     * slow client does not make the whole history pile up in memory here.
+     */
     @Override
-    public void auditSync(Bank.AuditRequest request, StreamObserver<SyncBanks.AuditSyncResponse> responseObserver) {
-        SyncBanks.AuditSyncResponse.Builder SyncResponse = SyncBanks.AuditSyncResponse.newBuilder();
-        Bank.AuditResponse.Builder response = Bank.AuditResponse.newBuilder();
+    public void auditStream(Bank.AuditRequest request, StreamObserver<Bank.AuditStreamResponse> responseObserver) {
+        Bank.AuditResponse.Status status = auditStatus(request);
+        logger.info("Got request to stream audit of account. Status {}", status.name());
+        ServerCallStreamObserver<Bank.AuditStreamResponse> call = (ServerCallStreamObserver<Bank.AuditStreamResponse>) responseObserver;
+
+        if (status == Bank.AuditResponse.Status.INVALID_MESSAGE_FORMAT) {
+            call.onNext(Bank.AuditStreamResponse.newBuilder().setStatus(status).setLast(true).build());
+            call.onCompleted();
+            return;
+        }
 
-        synchronized (bank) {
-            Bank.AuditResponse.Status status = auditStatus(request);
+        try {
+            List<Transaction> history = Collections.emptyList();
+            if (status == Bank.AuditResponse.Status.SUCCESS)
+                history = bank.getSnapshot(Crypto.decodePublicKey(request.getPublicKey())).getTransactionHistory();
+            int from = (int) Math.min(request.getOffset(), history.size());
+            long nextOffset = request.getOffset() + (history.size() - from);
+
+            Signature signature = Crypto.newSigner(keyManager.getKey());
+            Signatures.updateAuditHeader(signature, request.getChallengeNonce().getNonceBytes().toByteArray(), status.name(),
+                    request.getOffset(), nextOffset, false);
+
+            Bank.AuditStreamResponse.Builder chunk = Bank.AuditStreamResponse.newBuilder()
+                    .setChallengeNonce(request.getChallengeNonce())
+                    .setStatus(status)
+                    .setOffset(request.getOffset())
+                    .setNextOffset(nextOffset);
+            SyncBanks.AuditDigestRequest digestRequest = SyncBanks.AuditDigestRequest.newBuilder()
+                    .setAuditRequest(request)
+                    .setNextOffset(nextOffset)
+                    .build();
+            // a digest is the whole answer, so every replica is asked for it
+            CompletableFuture<ByteString> agreed = QuorumRead.start(peers, (stub, digestOnly) -> Futures.transform(
+                    stub.auditDigest(digestRequest),
+                    response -> new QuorumRead.Reply<>(response.getDigest(), response.getDigest()),
+                    MoreExecutors.directExecutor()
+            ), Function.identity());
+            AuditStreamer streamer = new AuditStreamer(call, history.subList(from, history.size()).iterator(), signature, chunk,
+                    auditHistoryDigest(status, request.getOffset(), nextOffset), agreed);
+            call.setOnCancelHandler(streamer::cancel);
+            call.setOnReadyHandler(streamer);
+            agreed.whenComplete((digest, e) -> streamer.run());
+            streamer.run();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException e) {
+            // Should never happen
+            e.printStackTrace();
+            call.onError(Status.INTERNAL.withDescription("Failed to sign the audit").withCause(e).asRuntimeException());
+        }
+    }
 
-            logger.info("Got request to audit account. Status {}", status.name());
+    // Sends the chunks of a streamed audit while the call is ready, and carries on from where it stopped each time
+    // the call becomes ready again. The last chunk also waits for the replicas to agree on the history. The call's
+    // handlers run on its executor and the vote completes on another thread, so they take turns on this.
+    private final class AuditStreamer implements Runnable {
+        private final ServerCallStreamObserver<Bank.AuditStreamResponse> call;
+        private final Iterator<Transaction> remaining;
+        private final Signature signature;
+        private final Bank.AuditStreamResponse.Builder chunk;
+        private final MessageDigest history;
+        private final CompletableFuture<ByteString> agreed;
+        private ByteString streamed;
+        private boolean done;
+
+        private AuditStreamer(ServerCallStreamObserver<Bank.AuditStreamResponse> call, Iterator<Transaction> remaining,
+                              Signature signature, Bank.AuditStreamResponse.Builder chunk, MessageDigest history,
+                              CompletableFuture<ByteString> agreed) {
+            this.call = call;
+            this.remaining = remaining;
+            this.signature = signature;
+            this.chunk = chunk;
+            this.history = history;
+            this.agreed = agreed;
+        }
 
-            response = Bank.AuditResponse.newBuilder().setStatus(status);
+        private void cancel() {
+            synchronized (this) {
+                if (!done)
+                    logger.info("Audit stream cancelled by the client");
+                done = true;
+            }
+            // outside the lock: the vote runs this when it completes, holding its own
+            agreed.cancel(false);
+        }
 
-            switch (status) {
-                case SUCCESS:
-                    PublicKey key = null;
-                    try {
-                        key = Crypto.decodePublicKey(request.getPublicKey());
-                    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                        // This should not happen
-                        e.printStackTrace();
+        @Override
+        public synchronized void run() {
+            if (done)
+                return;
+            try {
+                while (true) {
+                    if (!call.isReady())
+                        return;
+                    while (remaining.hasNext() && chunk.getTransactionsCount() < AUDIT_CHUNK_SIZE) {
+                        Bank.NonRepudiableTransaction transaction = encodeAcceptedTransaction(remaining.next());
+                        Signatures.updateAuditTransaction(signature, transaction);
+                        Signatures.updateAuditTransaction(history, transaction);
+                        chunk.addTransactions(transaction);
                     }
+                    if (!remaining.hasNext())
+                        break;
+                    call.onNext(chunk.build());
+                    chunk.clearTransactions();
+                }
 
-                    BankAccount account = bank.getAccount(key);
-
-
-                    for (Transaction t : account.getTransactionHistory()) {
-                        Bank.NonRepudiableTransaction transaction = Bank.NonRepudiableTransaction.newBuilder()
-                                .setTransaction(
-                                        Bank.Transaction.newBuilder()
-                                                .setAmount(t.getAmount().toString())
-                                                .setDestinationPublicKey(Crypto.encodePublicKey(t.getDestination()))
-                                                .setSourcePublicKey(Crypto.encodePublicKey(t.getSource()))
-                                                .build()
-                                )
-                                .setSourceNonce(t.getSourceNonce().encode())
-                                .setDestinationNonce(t.getDestinationNonce().encode())
-                                .setSourceSignature(Bank.Signature.newBuilder()
-                                        .setSignatureBytes(ByteString.copyFrom(t.getSourceSignature()))
-                                        .build()
-                                )
-                                .setDestinationSignature(Bank.Signature.newBuilder()
-                                        .setSignatureBytes(ByteString.copyFrom(t.getDestinationSignature()))
-                                        .build()
-                                )
-                                .build();
-                        response.addTransactions(transaction);
-                    }
-                    break;
-                case INVALID_MESSAGE_FORMAT:
-                    SyncResponse.setAuditResponse(response.build());
-                    SyncResponse.setTimestamp(timestamp);
-                    try{
-                        responseObserver.onNext(SyncResponse.build());
-                        responseObserver.onCompleted();
-                    } catch (Exception e) {
-                        logger.info("Failed to connect to Sync Bank Server");
-                    }
+                if (streamed == null)
+                    streamed = ByteString.copyFrom(history.digest());
+                // run again once the vote is over
+                if (!agreed.isDone())
                     return;
-            }
+                done = true;
+                if (!streamed.equals(agreed.getNow(null))) {
+                    logger.info("Audit stream: this replica's history was not the majority's");
+                    call.onError(Status.UNAVAILABLE.withDescription("Replicas did not agree").asRuntimeException());
+                    return;
+                }
 
-            try {
-                response.setChallengeNonce(request.getChallengeNonce())
+                call.onNext(chunk
                         .setSignature(Bank.Signature.newBuilder()
-                                .setSignatureBytes(ByteString.copyFrom(Signatures.signAuditResponse(keyManager.getKey(),
-                                        request.getChallengeNonce().getNonceBytes().toByteArray(),
-                                        response.getStatus().name(),
-                                        response.getTransactionsList()
-                                )))
-                                .build());
-            } catch (SignatureException | InvalidKeyException e) {
-                // should never happen
+                                .setSignatureBytes(ByteString.copyFrom(signature.sign()))
+                                .build())
+                        .setLast(true)
+                        .build());
+                call.onCompleted();
+                logger.info("Audit streamed");
+            } catch (SignatureException e) {
+                // Should never happen
                 e.printStackTrace();
+                done = true;
+                call.onError(Status.INTERNAL.withDescription("Failed to sign the audit").withCause(e).asRuntimeException());
+            } catch (RuntimeException e) {
+                logger.info("Failed to stream audit to Bank client");
+                done = true;
+                // a cancelled call is over already
+                if (!call.isCancelled())
+                    call.onError(Status.UNAVAILABLE.withDescription("Failed to stream the audit").withCause(e).asRuntimeException());
             }
+        }
+    }
 
-            SyncResponse.setAuditResponse(response.build());
-            SyncResponse.setTimestamp(this.timestamp);
-            try{
-                responseObserver.onNext(SyncResponse.build());
-                responseObserver.onCompleted();
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
-            }
-            logger.info("Audit answered");
+    /**
+     * Digest of this replica's history of the account from the offset of a streamed audit up to the point where
+     * the streaming replica's ends, for the replicas to vote on (see auditStream).
+     */
+    @Override
+    public void auditDigest(SyncBanks.AuditDigestRequest digestRequest, StreamObserver<SyncBanks.AuditDigestResponse> responseObserver) {
+        Bank.AuditRequest request = digestRequest.getAuditRequest();
+        Bank.AuditResponse.Status status = auditStatus(request);
+        logger.info("Got request for the digest of an audit. Status {}", status.name());
+
+        List<Transaction> history = Collections.emptyList();
+        try {
+            if (status == Bank.AuditResponse.Status.SUCCESS)
+                history = bank.getSnapshot(Crypto.decodePublicKey(request.getPublicKey())).getTransactionHistory();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            // Should never happen, the status checked the key
+            e.printStackTrace();
+        }
+        int from = (int) Math.min(request.getOffset(), history.size());
+        int to = (int) Math.max(from, Math.min(history.size(), from + digestRequest.getNextOffset() - request.getOffset()));
+
+        MessageDigest digest = auditHistoryDigest(status, request.getOffset(), request.getOffset() + (to - from));
+        for (Transaction t : history.subList(from, to))
+            Signatures.updateAuditTransaction(digest, encodeAcceptedTransaction(t));
+
+        try {
+            responseObserver.onNext(SyncBanks.AuditDigestResponse.newBuilder()
+                    .setDigest(ByteString.copyFrom(digest.digest()))
+                    .build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
         }
     }
 
@@ -1098,54 +1871,50 @@ public class SyncBanksServiceImpl extends SyncBanksServiceGrpc.SyncBanksServiceI
 
     @Override
     public void nonceNegotiation(Bank.NonceNegotiationRequest request, StreamObserver<Bank.NonceNegotiationResponse> responseObserver) {
-        synchronized (bank) {
-            Bank.NonceNegotiationResponse.Status status = nonceNegotiationStatus(request);
-            Bank.NonceNegotiationResponse.Builder response = Bank.NonceNegotiationResponse.newBuilder().setStatus(status);
-
-            logger.info("Got nonce negotiation request. Status: {}", status.name());
-            byte[] nonceBytes = new byte[0];
-
-            switch (status) {
-                case SUCCESS:
-                    PublicKey key = null;
-                    try {
-                        key = Crypto.decodePublicKey(request.getPublicKey());
-                    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                        // This should not happen
-                        e.printStackTrace();
-                    }
+        Bank.NonceNegotiationResponse.Status status = nonceNegotiationStatus(request);
+        Bank.NonceNegotiationResponse.Builder response = Bank.NonceNegotiationResponse.newBuilder().setStatus(status);
 
-                    BankAccount account = bank.getAccount(key);
-                    response.setNonce(account.getNonce().encode());
-                    break;
-                case INVALID_MESSAGE_FORMAT:
-                    try{
-                        responseObserver.onNext(response.build());
-                        responseObserver.onCompleted();
-                    } catch (Exception e) {
-                        logger.info("Failed to connect to Sync Bank Server");
-                    }
-                    return;
-            }
+        logger.info("Got nonce negotiation request. Status: {}", status.name());
 
-            response.setChallengeNonce(request.getChallengeNonce());
-            try {
-                response.setSignature(Bank.Signature.newBuilder()
-                        .setSignatureBytes(ByteString.copyFrom(Signatures.signNonceNegotiationResponse(keyManager.getKey(),
-                                request.getChallengeNonce().getNonceBytes().toByteArray(),
-                                status.name()
-                        )))
-                        .build());
-            } catch (SignatureException | InvalidKeyException e) {
-                // should never happen
-                e.printStackTrace();
-            }
-            try{
-                responseObserver.onNext(response.build());
-                responseObserver.onCompleted();
-            } catch (Exception e) {
-                logger.info("Failed to connect to Sync Bank Server");
-            }
+        switch (status) {
+            case SUCCESS:
+                PublicKey key = null;
+                try {
+                    key = Crypto.decodePublicKey(request.getPublicKey());
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                    // This should not happen
+                    e.printStackTrace();
+                }
+
+                response.setNonce(bank.getSnapshot(key).getNonce().encode());
+                break;
+            case INVALID_MESSAGE_FORMAT:
+                try{
+                    responseObserver.onNext(response.build());
+                    responseObserver.onCompleted();
+                } catch (Exception e) {
+                    logger.info("Failed to connect to Sync Bank Server");
+                }
+                return;
+        }
+
+        response.setChallengeNonce(request.getChallengeNonce());
+        try {
+            response.setSignature(Bank.Signature.newBuilder()
+                    .setSignatureBytes(ByteString.copyFrom(Signatures.signNonceNegotiationResponse(keyManager.getKey(),
+                            request.getChallengeNonce().getNonceBytes().toByteArray(),
+                            status.name()
+                    )))
+                    .build());
+        } catch (SignatureException | InvalidKeyException e) {
+            // should never happen
+            e.printStackTrace();
+        }
+        try{
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.info("Failed to connect to Sync Bank Server");
         }
     }
 }
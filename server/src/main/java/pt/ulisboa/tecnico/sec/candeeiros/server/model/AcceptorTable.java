@@ -0,0 +1,124 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What this replica holds, as an acceptor, for the consensus round of each slot, Paxos style. The owner of a slot
+ * proposes its value with ballot 0 (acceptInitial). A replica that finds the slot stalled takes it over with a
+ * higher ballot: prepare makes the acceptors promise to refuse lower ballots and report what they accepted, so a
+ * value a majority may have accepted is kept and any other slot is settled with what the new proposer chooses.
+ * A value is the list of requests of the slot. Slots below the watermark passed to discardBelow are forgotten and
+ * refused from then on.
+ */
+public class AcceptorTable {
+    private static final class Round {
+        // highest ballot promised, 0 until someone takes the slot over
+        private int promised;
+        private int acceptedBallot = -1;
+        private List<SyncBanks.BatchedRequest> accepted;
+        private List<SyncBanks.BatchedRequest> decided;
+    }
+
+    private final ConcurrentHashMap<Integer, Round> rounds;
+    private volatile Watermark watermark;
+
+    public AcceptorTable() {
+        this.rounds = new ConcurrentHashMap<>();
+        this.watermark = Watermark.none();
+    }
+
+    private Round round(int slot) {
+        return rounds.computeIfAbsent(slot, k -> new Round());
+    }
+
+    /**
+     * Accepts the owner's proposal for the slot, unless something was already accepted or promised for it.
+     * Returns whether it was accepted; a replayed proposal is refused.
+     */
+    public boolean acceptInitial(int slot, List<SyncBanks.BatchedRequest> value) {
+        if (watermark.isBelow(slot))
+            return false;
+        Round round = round(slot);
+        synchronized (round) {
+            if (round.promised > 0 || round.accepted != null || round.decided != null)
+                return false;
+            round.acceptedBallot = 0;
+            round.accepted = value;
+            return true;
+        }
+    }
+
+    /**
+     * Promises to refuse ballots below this one for the slot and reports the value accepted at the highest ballot.
+     * A decided slot reports its decision instead, and a discarded one only that it was discarded.
+     */
+    public SyncBanks.SlotPrepareResponse prepare(int slot, int ballot) {
+        SyncBanks.SlotPrepareResponse.Builder response = SyncBanks.SlotPrepareResponse.newBuilder();
+        if (watermark.isBelow(slot))
+            return response.setDiscarded(true).build();
+        Round round = round(slot);
+        synchronized (round) {
+            if (round.decided != null)
+                return response.setDecided(true).addAllDecision(round.decided).build();
+            if (ballot <= round.promised)
+                return response.setPromisedBallot(round.promised).build();
+            round.promised = ballot;
+            response.setPromised(true).setPromisedBallot(ballot);
+            if (round.accepted != null)
+                response.setHasAccepted(true).setAcceptedBallot(round.acceptedBallot).addAllAccepted(round.accepted);
+            return response.build();
+        }
+    }
+
+    /**
+     * Accepts the value for the slot unless a higher ballot was promised.
+     */
+    public SyncBanks.SlotAcceptResponse accept(int slot, int ballot, List<SyncBanks.BatchedRequest> value) {
+        SyncBanks.SlotAcceptResponse.Builder response = SyncBanks.SlotAcceptResponse.newBuilder();
+        // the next prepare finds out the slot was discarded
+        if (watermark.isBelow(slot))
+            return response.build();
+        Round round = round(slot);
+        synchronized (round) {
+            if (ballot < round.promised)
+                return response.setPromisedBallot(round.promised).build();
+            round.promised = ballot;
+            round.acceptedBallot = ballot;
+            round.accepted = value;
+            return response.setAccepted(true).setPromisedBallot(ballot).build();
+        }
+    }
+
+    /**
+     * Records the value the slot was decided with, which later prepares are answered with.
+     */
+    public void decide(int slot, List<SyncBanks.BatchedRequest> value) {
+        if (watermark.isBelow(slot))
+            return;
+        Round round = round(slot);
+        synchronized (round) {
+            round.decided = value;
+            round.accepted = null;
+        }
+    }
+
+    /**
+     * Drops every slot below the watermark. Returns how many were dropped.
+     */
+    public int discardBelow(Watermark watermark) {
+        this.watermark = watermark;
+        int before = rounds.size();
+        rounds.keySet().removeIf(watermark::isBelow);
+        return before - rounds.size();
+    }
+
+    /**
+     * Number of slots with a round.
+     */
+    public int size() {
+        return rounds.size();
+    }
+}
@@ -0,0 +1,93 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks over accounts. Every public key maps to one of a fixed number of locks, so operations on
+ * different accounts seldom wait for each other. When several accounts are locked together their stripes are
+ * always taken in index order, so two transfers A -> B and B -> A cannot deadlock.
+ */
+public class AccountLocks {
+    /**
+     * Work done while the locks are held.
+     *
+     * @param <T> result type
+     * @param <E> exception the work may throw
+     */
+    @FunctionalInterface
+    public interface Locked<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private final ReentrantLock[] stripes;
+    private final int[] all;
+
+    public AccountLocks(int minStripes) {
+        int size = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        this.all = new int[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+            all[i] = i;
+        }
+    }
+
+    private int stripeOf(PublicKey key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    // The distinct stripes of the keys, in index order
+    private int[] stripesOf(Collection<PublicKey> keys) {
+        int[] indices = new int[keys.size()];
+        int n = 0;
+        for (PublicKey key : keys)
+            indices[n++] = stripeOf(key);
+        Arrays.sort(indices);
+
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indices[distinct - 1] != indices[i])
+                indices[distinct++] = indices[i];
+        }
+        return Arrays.copyOf(indices, distinct);
+    }
+
+    private <T, E extends Exception> T holding(int[] held, Locked<T, E> action) throws E {
+        for (int index : held)
+            stripes[index].lock();
+        try {
+            return action.run();
+        } finally {
+            for (int i = held.length - 1; i >= 0; i--)
+                stripes[held[i]].unlock();
+        }
+    }
+
+    /**
+     * Runs the action with the stripes of all the keys locked and returns its result.
+     */
+    public <T, E extends Exception> T withLocks(Collection<PublicKey> keys, Locked<T, E> action) throws E {
+        return holding(stripesOf(keys), action);
+    }
+
+    /**
+     * Runs the action with the stripes of all the keys locked.
+     */
+    public void withLocks(Collection<PublicKey> keys, Runnable action) {
+        holding(stripesOf(keys), () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the action with every stripe locked, which keeps every other operation out until it returns.
+     */
+    public <T, E extends Exception> T withAllLocks(Locked<T, E> action) throws E {
+        return holding(all, action);
+    }
+}
@@ -0,0 +1,47 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable state of an account as of one version. A new snapshot is published after every change to the
+ * account, so readers can use it without taking any lock.
+ */
+public final class AccountSnapshot {
+    private final long version;
+    // in hundredths, see Money
+    private final long balance;
+    private final Nonce nonce;
+    private final Collection<Transaction> transactionQueue;
+    private final List<Transaction> transactionHistory;
+
+    AccountSnapshot(long version, long balance, Nonce nonce, Collection<Transaction> transactionQueue, List<Transaction> transactionHistory) {
+        this.version = version;
+        this.balance = balance;
+        this.nonce = nonce;
+        this.transactionQueue = transactionQueue;
+        this.transactionHistory = transactionHistory;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public Nonce getNonce() {
+        return nonce;
+    }
+
+    public Collection<Transaction> getTransactionQueue() {
+        return transactionQueue;
+    }
+
+    public List<Transaction> getTransactionHistory() {
+        return transactionHistory;
+    }
+}
@@ -0,0 +1,69 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * A list that only grows at the end. Elements already written are never touched again (growing copies them
+ * into a new array), so a snapshot is just the current array and size, taken in O(1), and stays valid while
+ * the list keeps growing. Writers must be externally synchronized; snapshots can be read from any thread once
+ * they have been safely published.
+ */
+public class AppendOnlyList<T> extends AbstractList<T> implements RandomAccess {
+    private Object[] items;
+    private int size;
+
+    public AppendOnlyList() {
+        this.items = new Object[8];
+        this.size = 0;
+    }
+
+    @Override
+    public boolean add(T item) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        items[size++] = item;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex(index, size);
+        return (T) items[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public List<T> snapshot() {
+        return new View<>(items, size);
+    }
+
+    private static class View<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[] items;
+        private final int size;
+
+        private View(Object[] items, int size) {
+            this.items = items;
+            this.size = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            Objects.checkIndex(index, size);
+            return (T) items[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -1,19 +1,23 @@
 package pt.ulisboa.tecnico.sec.candeeiros.server.model;
 
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
 
-import java.math.BigDecimal;
 import java.security.PublicKey;
 import java.util.*;
 
 public class BankAccount {
+    private static final long INITIAL_BALANCE = Money.parse("1000");
     private final PublicKey publicKey;
-    private BigDecimal balance;
-    private final List<Transaction> transactionHistory;
-    private final List<Transaction> transactionQueue;
+    // in hundredths, see Money
+    private long balance;
+    private final AppendOnlyList<Transaction> transactionHistory;
+    private final PendingTransactions transactionQueue;
     private Nonce nonce;
+    // state readers see; replaced, never modified, by publish()
+    private volatile AccountSnapshot snapshot;
 
-    public List<Transaction> getTransactionQueue() {
+    public PendingTransactions getTransactionQueue() {
         return transactionQueue;
     }
 
@@ -26,14 +30,28 @@ public class BankAccount {
             throw new NullPointerException();
         }
         this.publicKey = publicKey;
-        this.balance = new BigDecimal(1000);
-        this.transactionHistory = new ArrayList<>();
-        this.transactionQueue = new ArrayList<>();
+        this.balance = INITIAL_BALANCE;
+        this.transactionHistory = new AppendOnlyList<>();
+        this.transactionQueue = new PendingTransactions();
         this.nonce = nonce;
+        publish();
     }
 
     public BankAccount(PublicKey publicKey) {
-        this(publicKey, Nonce.newAccountNonce());
+        this(publicKey, Nonce.newAccountNonce(publicKey));
+    }
+
+    /**
+     * Makes the current state visible to readers as a new snapshot. Called, under the account's lock, after
+     * every change to the account.
+     */
+    void publish() {
+        long version = snapshot == null ? 0 : snapshot.getVersion() + 1;
+        snapshot = new AccountSnapshot(version, balance, nonce, transactionQueue.snapshot(), transactionHistory.snapshot());
+    }
+
+    public AccountSnapshot getSnapshot() {
+        return snapshot;
     }
 
     public Nonce getNonce() {
@@ -48,11 +66,11 @@ public class BankAccount {
         return publicKey;
     }
 
-    public BigDecimal getBalance() {
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(BigDecimal balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
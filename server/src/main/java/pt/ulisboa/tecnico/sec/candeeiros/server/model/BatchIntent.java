@@ -0,0 +1,47 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+
+import java.util.List;
+
+public class BatchIntent {
+    private final int timestamp;
+    private final List<SyncBanks.BatchedRequest> requests;
+    private int accepted;
+    private int refused;
+    private boolean majorityChecked;
+
+    public BatchIntent(int timestamp, List<SyncBanks.BatchedRequest> requests) {
+        this.timestamp = timestamp;
+        this.requests = requests;
+        this.accepted = 0;
+        this.refused = 0;
+        this.majorityChecked = false;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public List<SyncBanks.BatchedRequest> getRequests() {
+        return requests;
+    }
+
+    // A replica's status for a batch is whether it accepted the batch for its timestamp
+    public void addStatus(boolean accepted) {
+        if (accepted)
+            this.accepted++;
+        else
+            this.refused++;
+    }
+
+    public boolean hasMajority(int totalServers) {
+        if(majorityChecked) return false;
+        return Math.max(accepted, refused) >= Quorum.majority(totalServers);
+    }
+
+    public boolean getMajority() {
+        return accepted >= refused;
+    }
+    public void majorityChecked() { majorityChecked = true;}
+}
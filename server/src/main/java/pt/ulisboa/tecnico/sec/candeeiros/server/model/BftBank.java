@@ -2,129 +2,340 @@ package pt.ulisboa.tecnico.sec.candeeiros.server.model;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
 
 import java.io.*;
-import java.math.BigDecimal;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class BftBank {
     private static final Logger logger = LoggerFactory.getLogger(BftBank.class);
+    private static final int LOCK_STRIPES = 64;
+
     private final Map<PublicKey, BankAccount> accounts;
+    // every change to an account, and the ledger record for it, happens under that account's stripe
+    private final AccountLocks locks;
     private final LedgerManager ledgerManager;
 
-    public BftBank(String ledgerFileName) throws IOException {
-        accounts = new HashMap<>();
+    private final String snapshotFileName;
+    // ledger records after which a checkpoint is taken, 0 to never take one
+    private final long checkpointInterval;
+    private final ExecutorService checkpointer;
+    private final AtomicBoolean checkpointPending;
+
+    public BftBank(String ledgerFileName, LedgerManager.Durability durability, long syncIntervalMillis, long checkpointInterval) throws IOException {
+        accounts = new ConcurrentHashMap<>();
+        locks = new AccountLocks(LOCK_STRIPES);
+        snapshotFileName = ledgerFileName + ".snapshot";
+        this.checkpointInterval = checkpointInterval;
+        checkpointer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointPending = new AtomicBoolean(false);
+
+        long generation = 0;
+        int lastSlot = -1;
+        LedgerSnapshot snapshot = LedgerSnapshot.read(snapshotFileName);
+        if (snapshot != null) {
+            accounts.putAll(snapshot.getAccounts());
+            generation = snapshot.getGeneration();
+            lastSlot = snapshot.getLastSlot();
+            logger.info("Loaded {} accounts from snapshot at {}", accounts.size(), snapshotFileName);
+        }
 
         logger.info("Trying to read ledger at {}", ledgerFileName);
-        ledgerManager = new LedgerManager(this, ledgerFileName);
-        ledgerManager.parseLedger();
+        ledgerManager = new LedgerManager(ledgerFileName, durability, syncIntervalMillis);
+        ledgerManager.parseLedger(new Replay(), generation, lastSlot);
+        logger.info("Last slot applied was {}", ledgerManager.getLastSlot());
     }
 
-    public synchronized boolean accountExists(PublicKey key) {
+    // Applies the operations read back from the ledger without logging them again
+    private class Replay implements LedgerRecordHandler {
+        @Override
+        public void createAccount(PublicKey key, Nonce nonce) {
+            createAccountWithNonce(key, nonce);
+        }
+
+        @Override
+        public void addTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+            addTransactionNoLog(source, destination, amount, decimal, nonce, signature);
+        }
+
+        @Override
+        public void acceptTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+            acceptTransactionNoLog(source, destination, amount, decimal, nonce, signature);
+        }
+
+        @Override
+        public void rejectTransaction(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) {
+            rejectTransactionNoLog(source, destination, amount, nonce, signature);
+        }
+    }
+
+    public boolean accountExists(PublicKey key) {
         return accounts.containsKey(key);
     }
 
-    protected synchronized BankAccount createAccountWithNonce(PublicKey key, Nonce nonce) {
-        BankAccount account = new BankAccount(key, nonce);
-        accounts.put(key, account);
-        return account;
+    protected BankAccount createAccountWithNonce(PublicKey key, Nonce nonce) {
+        return locks.withLocks(List.of(key), () -> {
+            BankAccount account = new BankAccount(key, nonce);
+            accounts.put(key, account);
+            return account;
+        });
     }
 
-    protected synchronized BankAccount createAccountNoLog(PublicKey key) {
-        BankAccount account = new BankAccount(key);
-        accounts.put(key, account);
-        return account;
+    protected BankAccount createAccountNoLog(PublicKey key) {
+        return locks.withLocks(List.of(key), () -> {
+            BankAccount account = new BankAccount(key);
+            accounts.put(key, account);
+            return account;
+        });
     }
 
-    public synchronized void createAccount(PublicKey key) {
-        BankAccount account = createAccountNoLog(key);
+    protected void addTransactionNoLog(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+        locks.withLocks(List.of(source, destination), () -> {
+            Transaction transaction = new Transaction(source, destination, amount, decimal);
+            BankAccount sourceAccount = getAccount(source);
+            sourceAccount.setBalance(Money.subtract(sourceAccount.getBalance(), amount));
+            transaction.setSourceNonce(nonce);
+            transaction.setSourceSignature(signature);
+            BankAccount destinationAccount = accounts.get(destination);
+            destinationAccount.getTransactionQueue().add(transaction);
+            sourceAccount.setNonce(nonce);
+
+            sourceAccount.publish();
+            destinationAccount.publish();
+        });
+    }
+
+    protected void acceptTransactionNoLog(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+        locks.withLocks(List.of(source, destination), () -> {
+            Transaction transaction = new Transaction(source, destination, amount, decimal);
+            BankAccount destinationAccount = getAccount(destination);
+            BankAccount sourceAccount = getAccount(source);
+
+            // Needed to maintain source nonce
+            Transaction pending = destinationAccount.getTransactionQueue().take(transaction);
+
+            // a new object, as the pending one may still be in use by a snapshot
+            transaction.setSourceNonce(pending.getSourceNonce());
+            transaction.setSourceSignature(pending.getSourceSignature());
+            transaction.setDestinationNonce(nonce);
+            transaction.setDestinationSignature(signature);
+
+            destinationAccount.setBalance(Money.add(destinationAccount.getBalance(), amount));
+
+            destinationAccount.getTransactionHistory().add(transaction);
+            sourceAccount.getTransactionHistory().add(transaction);
+
+            destinationAccount.setNonce(nonce);
+
+            sourceAccount.publish();
+            destinationAccount.publish();
+        });
+    }
+
+    protected void rejectTransactionNoLog(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) {
+        locks.withLocks(List.of(source, destination), () -> {
+            Transaction transaction = new Transaction(source, destination, amount);
+            BankAccount destinationAccount = getAccount(destination);
+            BankAccount sourceAccount = getAccount(source);
+
+            destinationAccount.getTransactionQueue().remove(transaction);
+            sourceAccount.setBalance(Money.add(sourceAccount.getBalance(), amount));
+
+            destinationAccount.setNonce(nonce);
+
+            sourceAccount.publish();
+            destinationAccount.publish();
+        });
+    }
+
+    private void maybeCheckpoint() {
+        if (checkpointInterval > 0 && ledgerManager.getSegmentRecords() >= checkpointInterval
+                && checkpointPending.compareAndSet(false, true)) {
+            checkpointer.execute(() -> {
+                try {
+                    checkpoint();
+                } finally {
+                    checkpointPending.set(false);
+                }
+            });
+        }
+    }
+
+    // What a checkpoint collects while every account is locked
+    private static final class Cut {
+        private final long generation;
+        // the last slot in the rotated segments
+        private final int lastSlot;
+        private final Map<PublicKey, AccountSnapshot> state;
+
+        private Cut(long generation, int lastSlot) {
+            this.generation = generation;
+            this.lastSlot = lastSlot;
+            this.state = new HashMap<>();
+        }
+    }
+
+    /**
+     * Writes every account to the snapshot file and rotates the ledger, so that a restart only replays what was
+     * logged since. Operations are held back only while the ledger is rotated and the accounts' snapshots are
+     * collected; the file is written afterwards.
+     */
+    private void checkpoint() {
+        Cut cut;
         try {
-            ledgerManager.createAccount(key, account.getNonce());
+            cut = locks.withAllLocks(() -> {
+                long generation = ledgerManager.rotate();
+                // an empty slot takes no lock and may be appended after the rotation, which is harmless, as the
+                // rotated segments hold every slot below it
+                Cut taken = new Cut(generation, ledgerManager.getLastSlot());
+                for (Map.Entry<PublicKey, BankAccount> entry : accounts.entrySet())
+                    taken.state.put(entry.getKey(), entry.getValue().getSnapshot());
+                return taken;
+            });
         } catch (IOException e) {
             logger.error("Cannot write to ledger file. Exiting");
             e.printStackTrace();
             System.exit(1);
+            return;
         }
-    }
 
-    protected synchronized void addTransactionNoLog(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        Transaction transaction = new Transaction(source, destination, amount);
-        BankAccount sourceAccount = getAccount(source);
-        sourceAccount.setBalance(sourceAccount.getBalance().subtract(amount));
-        transaction.setSourceNonce(nonce);
-        transaction.setSourceSignature(signature);
-        accounts.get(destination).getTransactionQueue().add(transaction);
-        sourceAccount.setNonce(nonce);
+        try {
+            LedgerSnapshot.write(snapshotFileName, cut.generation, cut.lastSlot, cut.state);
+            ledgerManager.deleteSegmentsBefore(cut.generation);
+            logger.info("Checkpoint of {} accounts taken, ledger is now at generation {}", cut.state.size(), cut.generation);
+        } catch (IOException e) {
+            // the rotated segments are kept, so the previous snapshot and them still recover everything
+            logger.error("Cannot write ledger snapshot");
+            e.printStackTrace();
+        }
     }
 
-    public synchronized void addTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        addTransactionNoLog(source, destination, amount, nonce, signature);
+    /**
+     * Applies a consensus slot: runs the operations as a single unit with respect to the given accounts, so no
+     * other operation on any of them interleaves with them. They make their changes through the given Changes,
+     * and the slot is logged with all of them in one ledger record once they are done, so after a restart the
+     * slot is either applied whole or not at all. Returns that record; the locks are released before anything
+     * waits for the disk, so pass it to whenDurable rather than waiting here.
+     */
+    public long apply(int slot, Collection<PublicKey> keys, Consumer<Changes> operations) {
+        Changes changes = new Changes();
+        long record;
         try {
-            ledgerManager.addTransaction(source, destination, amount, nonce, signature);
+            record = locks.withLocks(keys, () -> {
+                operations.accept(changes);
+                return ledgerManager.appendSlot(slot, changes.operations);
+            });
         } catch (IOException e) {
-            logger.error("Cannot write to ledger file. Exiting");
-            e.printStackTrace();
-            System.exit(1);
+            ledgerFailed(e);
+            return 0;
         }
+        maybeCheckpoint();
+        return record;
     }
 
-    protected synchronized void acceptTransactionNoLog(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        Transaction transaction = new Transaction(source, destination, amount);
-        BankAccount destinationAccount = getAccount(destination);
-        BankAccount sourceAccount = getAccount(source);
+    /**
+     * Last slot applied, including by the ledger and snapshot this replica started from, or -1 if none was.
+     */
+    public int getLastAppliedSlot() {
+        return ledgerManager.getLastSlot();
+    }
 
-        // Needed to maintain source nonce
-        int i = destinationAccount.getTransactionQueue().indexOf(transaction);
-        transaction = destinationAccount.getTransactionQueue().remove(i);
+    /**
+     * Runs the action once the ledger record is on disk, as the durability policy defines it, without waiting for it.
+     */
+    public void whenDurable(long record, Runnable action) {
+        ledgerManager.whenDurable(record, action, BftBank::ledgerFailed);
+    }
 
-        transaction.setDestinationNonce(nonce);
-        transaction.setDestinationSignature(signature);
+    private static void ledgerFailed(IOException e) {
+        logger.error("Cannot write to ledger file. Exiting");
+        e.printStackTrace();
+        System.exit(1);
+    }
 
-        destinationAccount.setBalance(destinationAccount.getBalance().add(amount));
+    /**
+     * The changes an apply makes, each one to the accounts and to the operations logged with the slot. Only valid
+     * inside the apply, whose locks must cover the accounts changed.
+     */
+    public class Changes {
+        private final List<byte[]> operations;
 
-        destinationAccount.getTransactionHistory().add(transaction);
-        sourceAccount.getTransactionHistory().add(transaction);
+        private Changes() {
+            operations = new ArrayList<>();
+        }
 
-        destinationAccount.setNonce(nonce);
-    }
+        public void createAccount(PublicKey key) {
+            try {
+                BankAccount account = createAccountNoLog(key);
+                operations.add(ledgerManager.createAccountOperation(key, account.getNonce()));
+            } catch (IOException e) {
+                ledgerFailed(e);
+            }
+        }
 
-    public synchronized void acceptTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        acceptTransactionNoLog(source, destination, amount, nonce, signature);
-        try {
-            ledgerManager.acceptTransaction(source, destination, amount, nonce, signature);
-        } catch (IOException e) {
-            logger.error("Cannot write to ledger file. Exiting");
-            e.printStackTrace();
-            System.exit(1);
+        /**
+         * The decimal is the amount as it was signed, if that is not its canonical form, and null otherwise.
+         */
+        public void addTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+            try {
+                addTransactionNoLog(source, destination, amount, decimal, nonce, signature);
+                operations.add(ledgerManager.addTransactionOperation(source, destination, amount, decimal, nonce, signature));
+            } catch (IOException e) {
+                ledgerFailed(e);
+            }
         }
-    }
 
-    protected synchronized void rejectTransactionNoLog(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        Transaction transaction = new Transaction(source, destination, amount);
-        BankAccount destinationAccount = getAccount(destination);
-        BankAccount sourceAccount = getAccount(source);
+        public void acceptTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) {
+            try {
+                acceptTransactionNoLog(source, destination, amount, decimal, nonce, signature);
+                operations.add(ledgerManager.acceptTransactionOperation(source, destination, amount, decimal, nonce, signature));
+            } catch (IOException e) {
+                ledgerFailed(e);
+            }
+        }
 
-        destinationAccount.getTransactionQueue().remove(transaction);
-        sourceAccount.setBalance(sourceAccount.getBalance().add(amount));
+        public void rejectTransaction(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) {
+            try {
+                rejectTransactionNoLog(source, destination, amount, nonce, signature);
+                operations.add(ledgerManager.rejectTransactionOperation(source, destination, amount, nonce, signature));
+            } catch (IOException e) {
+                ledgerFailed(e);
+            }
+        }
+    }
 
-        destinationAccount.setNonce(nonce);
+    /**
+     * Reads an account while no operation is changing it. The reader gets null if the account does not exist.
+     */
+    public <T> T readAccount(PublicKey key, Function<BankAccount, T> reader) {
+        return locks.withLocks(List.of(key), () -> reader.apply(accounts.get(key)));
     }
 
-    public synchronized void rejectTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) {
-        rejectTransactionNoLog(source, destination, amount, nonce, signature);
-        try {
-            ledgerManager.rejectTransaction(source, destination, amount, nonce, signature);
-        } catch (IOException e) {
-            logger.error("Cannot write to ledger file. Exiting");
-            e.printStackTrace();
-            System.exit(1);
-        }
+    /**
+     * Latest published state of the account, or null if it does not exist. Takes no lock.
+     */
+    public AccountSnapshot getSnapshot(PublicKey key) {
+        BankAccount account = accounts.get(key);
+        return account == null ? null : account.getSnapshot();
     }
 
-    public synchronized BankAccount getAccount(PublicKey key) {
+    public BankAccount getAccount(PublicKey key) {
         return accounts.get(key);
     }
 }
@@ -0,0 +1,95 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Intents received for each timestamp, each timestamp guarded by its own lock. Intents are keyed by the digest of
+ * the request they are about (see RequestDigest), so finding one takes a hash lookup.
+ * A status that arrives before the intent it refers to is parked with its timestamp and handed the intent
+ * as soon as it is added, so nobody has to wait for it.
+ * Slots below the watermark passed to discardBelow are dropped, and nothing is kept for them from then on.
+ *
+ * @param <I> intent type
+ */
+public class IntentTable<I> {
+    private static class Slot<I> {
+        // the first intent for each request
+        private final Map<ByteString, I> intents = new HashMap<>();
+        private final Map<ByteString, List<Consumer<I>>> waiting = new HashMap<>();
+    }
+
+    private final ConcurrentHashMap<Integer, Slot<I>> slots;
+    private volatile Watermark watermark;
+
+    public IntentTable() {
+        this.slots = new ConcurrentHashMap<>();
+        this.watermark = Watermark.none();
+    }
+
+    private Slot<I> slot(int timestamp) {
+        return slots.computeIfAbsent(timestamp, k -> new Slot<>());
+    }
+
+    /**
+     * Adds an intent for the request with this digest and runs the handlers of the statuses that were waiting for it.
+     */
+    public void addIntent(int timestamp, ByteString requestDigest, I intent) {
+        if (watermark.isBelow(timestamp)) return;
+        Slot<I> slot = slot(timestamp);
+        List<Consumer<I>> ready;
+
+        synchronized (slot) {
+            slot.intents.putIfAbsent(requestDigest, intent);
+            ready = slot.waiting.remove(requestDigest);
+        }
+
+        if (ready != null) {
+            for (Consumer<I> handler : ready)
+                handler.accept(intent);
+        }
+    }
+
+    /**
+     * Runs the handler with the intent for the request with this digest: right away if it is already known,
+     * otherwise once it is added. The handler never runs for a slot below the watermark.
+     */
+    public void withIntent(int timestamp, ByteString requestDigest, Consumer<I> handler) {
+        if (watermark.isBelow(timestamp)) return;
+        Slot<I> slot = slot(timestamp);
+        I found;
+
+        synchronized (slot) {
+            found = slot.intents.get(requestDigest);
+            if (found == null) {
+                slot.waiting.computeIfAbsent(requestDigest, k -> new ArrayList<>(1)).add(handler);
+                return;
+            }
+        }
+
+        handler.accept(found);
+    }
+
+    /**
+     * Drops every slot below the watermark, with the statuses still waiting in them. Returns how many were dropped.
+     */
+    public int discardBelow(Watermark watermark) {
+        this.watermark = watermark;
+        int before = slots.size();
+        slots.keySet().removeIf(watermark::isBelow);
+        return before - slots.size();
+    }
+
+    /**
+     * Number of slots with intents or waiting statuses.
+     */
+    public int size() {
+        return slots.size();
+    }
+}
@@ -3,156 +3,675 @@ package pt.ulisboa.tecnico.sec.candeeiros.server.model;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
 
 import java.io.*;
-import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
+/**
+ * Binary, append-only ledger of bank operations.
+ * <p>
+ * The file starts with a header (magic number, format version and generation) followed by records, each one
+ * [int payload length][int CRC32 of the payload][payload]. A payload starts with the record type. Public keys
+ * are written once, in a KEY record that gives them a number, and referred to by that number afterwards.
+ * Amounts are longs counting hundredths (see Money). An amount that was signed in a non-canonical decimal form
+ * is written as that string instead, in records of their own types.
+ * The operations a consensus slot applied are written together in one SLOT record, which carries the slot number
+ * and the payload of each operation, so a slot is either replayed whole or not at all, and the last one replayed
+ * is where the replica resumes applying slots.
+ * A record that is cut short or fails its checksum was being written when the server stopped; it is the end
+ * of the ledger and is truncated on startup.
+ * <p>
+ * When a checkpoint is taken the file is rotated: it is renamed to [ledger].[generation] and a new file of the
+ * next generation is started, with its own key numbers. Rotated segments are deleted once a snapshot covering
+ * them is on disk (see {@link LedgerSnapshot}).
+ * <p>
+ * Appended records are queued in memory and written, and forced to disk, together. How long an operation
+ * waits for its record to be on disk depends on the durability policy. Instead of waiting, a caller can leave
+ * an action to be run once its record is on disk (see whenDurable).
+ */
 public class LedgerManager {
     private static final Logger logger = LoggerFactory.getLogger(LedgerManager.class);
-    private final BftBank bank;
+
+    public enum Durability {
+        // every record is written and forced before the operation returns
+        PER_OP,
+        // operations wait for their record to be forced; records appended meanwhile are forced together
+        GROUP,
+        // records are forced every sync interval and operations do not wait; a crash loses the last interval
+        PERIODIC;
+
+        public static Durability fromString(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final int MAGIC = 0x42465442; // "BFTB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte KEY = 1;
+    private static final byte CREATE = 2;
+    private static final byte ADD = 3;
+    private static final byte ACCEPT = 4;
+    private static final byte REJECT = 5;
+    // transaction records with the amount as the non-canonical decimal string it was signed in
+    private static final byte DECIMAL_ADD = 6;
+    private static final byte DECIMAL_ACCEPT = 7;
+    private static final byte SLOT = 8;
+
     private final String ledgerFileName;
-    private final BufferedWriter ledgerWriter;
+    private final Durability durability;
+    private final long syncIntervalMillis;
+
+    // everything below is guarded by this
+    private FileChannel channel;
+    private long generation;
+    // records in the current file, which a checkpoint would make unnecessary to replay
+    private long segmentRecords;
+    // highest slot whose record was appended or replayed
+    private int lastSlot;
+    private final Map<PublicKey, Integer> keyIds;
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream pendingOut;
+    private final CRC32 crc;
+    // sequence number of the last record appended, and of the last one known to be on disk
+    private long appended;
+    private long durable;
+    // the flusher is writing a group outside the lock
+    private boolean writing;
+    private IOException failure;
+    private boolean closed;
+    private Thread flusher;
+    // actions left by whenDurable, by the record they wait for
+    private final TreeMap<Long, List<Waiter>> waiters;
 
-    public LedgerManager(BftBank bank, String ledgerFileName) throws IOException {
-        this.bank = bank;
+    private static final class Waiter {
+        private final Runnable action;
+        private final Consumer<IOException> onFailure;
+
+        private Waiter(Runnable action, Consumer<IOException> onFailure) {
+            this.action = action;
+            this.onFailure = onFailure;
+        }
+    }
+
+    public LedgerManager(String ledgerFileName, Durability durability, long syncIntervalMillis) {
         this.ledgerFileName = ledgerFileName;
-        this.ledgerWriter = new BufferedWriter(new FileWriter(ledgerFileName, true));
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.keyIds = new HashMap<>();
+        this.pending = new ByteArrayOutputStream();
+        this.pendingOut = new DataOutputStream(pending);
+        this.crc = new CRC32();
+        this.appended = 0;
+        this.durable = 0;
+        this.waiters = new TreeMap<>();
     }
 
-    public void parseLedger() throws IOException {
-        new File(ledgerFileName).createNewFile(); // Will create file if it doesn't exist
-        StringBuilder line = new StringBuilder();
-        int count = 0;
-        try (FileReader fr = new FileReader(ledgerFileName)) {
-            BufferedReader br = new BufferedReader(fr);
-            int c;
-            // read instead of readline to not parse last line if it is not finished by a \n
-            while ((c = br.read()) != -1) {
-                line.append((char) c);
-                if (c == '\n') {
-                    count++;
-                    parseLine(line.toString());
-                    // Avoid generating new objects with new StringBuilder for each line
-                    line.setLength(0);
-                }
+    // ***** Reading
+
+    /**
+     * Replays every record from the given generation on to the handler: first the rotated segments that are
+     * still on disk, then the current file, which is created if it does not exist. Segments older than that
+     * generation are already in the snapshot and are deleted. lastSlot is the last slot the snapshot holds.
+     * Must be called before anything is appended.
+     */
+    public synchronized void parseLedger(LedgerRecordHandler handler, long fromGeneration, int lastSlot) throws IOException {
+        this.lastSlot = lastSlot;
+        long nextGeneration = fromGeneration;
+        for (Map.Entry<Long, Path> segment : rotatedSegments().entrySet()) {
+            if (segment.getKey() < fromGeneration) {
+                Files.delete(segment.getValue());
+                continue;
+            }
+            try (FileChannel file = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                readHeader(file, segment.getValue().toString());
+                long size = file.size();
+                if (replay(file, size, handler, new HashMap<>()) < size)
+                    logger.warn("Last record of ledger segment {} is incomplete. Ignoring it", segment.getKey());
             }
+            nextGeneration = segment.getKey() + 1;
         }
-        if (line.length() != 0) {
-            logger.warn("Last line does not have line feed. Assuming it is corrupted. Fixing");
-            try (RandomAccessFile f = new RandomAccessFile(ledgerFileName, "rw")) {
-                f.setLength(f.length() - line.length());
+
+        channel = FileChannel.open(Paths.get(ledgerFileName),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        if (size == 0) {
+            generation = nextGeneration;
+            writeHeader();
+            // the header is written at its offset, which leaves the channel's position at the start
+            channel.position(HEADER_SIZE);
+            size = HEADER_SIZE;
+        } else {
+            generation = readHeader(channel, ledgerFileName);
+            if (generation < fromGeneration) {
+                logger.error("Ledger generation {} is older than the snapshot ({}). Exiting", generation, fromGeneration);
+                System.exit(1);
             }
         }
-        logger.info("Read {} lines from ledger file", count);
+
+        long position = replay(channel, size, handler, keyIds);
+        if (position < size) {
+            logger.warn("Last record is incomplete. Assuming it is corrupted. Fixing");
+            channel.truncate(position);
+        }
+        channel.position(position);
+
+        if (durability != Durability.PER_OP) {
+            flusher = new Thread(this::flushLoop, "ledger-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
     }
 
-    private void parseLine(String line) {
-        line = line.substring(0, line.length() - 1);
-        String[] args = line.split("-");
-        switch (args[0]) {
-            case "create":
-                if (args.length != 3) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    System.exit(1);
-                }
-                try {
-                    bank.createAccountWithNonce(Crypto.keyFromString(args[1]), Nonce.fromString(args[2]));
-                } catch (InvalidKeySpecException e) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    e.printStackTrace();
-                    System.exit(1);
-                }
+    // Returns the generation in the header, leaving the file positioned at the first record
+    private static long readHeader(FileChannel file, String name) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        file.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            logger.error("{} is not a binary ledger. Convert it with LedgerMigration. Exiting", name);
+            System.exit(1);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            logger.error("Unsupported ledger version {}. Exiting", version);
+            System.exit(1);
+        }
+        file.position(HEADER_SIZE);
+        return header.getLong();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(generation);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    // Replays the records from the file's position up to the first incomplete one, and returns where that is
+    private long replay(FileChannel file, long size, LedgerRecordHandler handler, Map<PublicKey, Integer> ids) throws IOException {
+        List<PublicKey> keys = new ArrayList<>();
+        long position = file.position();
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file)));
+        while (size - position >= RECORD_HEADER_SIZE) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > size - position - RECORD_HEADER_SIZE)
                 break;
-            case "add":
-                if (args.length != 6) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    System.exit(1);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            replayRecord(payload, keys, ids, handler);
+            position += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        segmentRecords += count;
+        logger.info("Read {} records from ledger file", count);
+        return position;
+    }
+
+    private void replayRecord(byte[] payload, List<PublicKey> keys, Map<PublicKey, Integer> ids, LedgerRecordHandler handler) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = record.readByte();
+        try {
+            switch (type) {
+                case SLOT:
+                    int slot = record.readInt();
+                    int operations = record.readInt();
+                    for (int i = 0; i < operations; i++) {
+                        byte[] operation = new byte[record.readInt()];
+                        record.readFully(operation);
+                        if (operation.length == 0 || operation[0] == KEY || operation[0] == SLOT) {
+                            logger.error("Invalid operation in slot {} of ledger", slot);
+                            System.exit(1);
+                        }
+                        replayRecord(operation, keys, ids, handler);
+                    }
+                    lastSlot = Math.max(lastSlot, slot);
+                    break;
+                case KEY:
+                    int id = record.readInt();
+                    PublicKey key = Crypto.keyFromBytes(readBytes(record));
+                    if (id != keys.size()) {
+                        logger.error("Invalid key record in ledger: {}", id);
+                        System.exit(1);
+                    }
+                    keys.add(key);
+                    ids.put(key, id);
+                    break;
+                case CREATE:
+                    handler.createAccount(keys.get(record.readInt()), Nonce.readFrom(record));
+                    break;
+                case ADD:
+                case DECIMAL_ADD: {
+                    PublicKey source = keys.get(record.readInt());
+                    PublicKey destination = keys.get(record.readInt());
+                    // only written for amounts that are not canonical
+                    String decimal = type == DECIMAL_ADD ? record.readUTF() : null;
+                    long amount = decimal != null ? Money.fromDecimal(decimal) : record.readLong();
+                    handler.addTransaction(source, destination, amount, decimal, Nonce.readFrom(record), readBytes(record));
+                    break;
                 }
-                try {
-                    bank.addTransactionNoLog(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), new BigDecimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
-                } catch (InvalidKeySpecException e) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    e.printStackTrace();
-                    System.exit(1);
+                case ACCEPT:
+                case DECIMAL_ACCEPT: {
+                    PublicKey source = keys.get(record.readInt());
+                    PublicKey destination = keys.get(record.readInt());
+                    // only written for amounts that are not canonical
+                    String decimal = type == DECIMAL_ACCEPT ? record.readUTF() : null;
+                    long amount = decimal != null ? Money.fromDecimal(decimal) : record.readLong();
+                    handler.acceptTransaction(source, destination, amount, decimal, Nonce.readFrom(record), readBytes(record));
+                    break;
                 }
-                break;
-            case "accept":
-                if (args.length != 6) {
-                    logger.error("Invalid line in ledger: {}", line);
+                case REJECT:
+                    handler.rejectTransaction(keys.get(record.readInt()), keys.get(record.readInt()),
+                            record.readLong(), Nonce.readFrom(record), readBytes(record));
+                    break;
+                default:
+                    logger.error("Invalid record type in ledger: {}", type);
                     System.exit(1);
+            }
+        } catch (InvalidKeySpecException | IndexOutOfBoundsException | NumberFormatException e) {
+            logger.error("Invalid record in ledger");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // ***** Writing
+    // Each append returns the record's sequence number, to be passed to awaitDurable once the caller has
+    // released its locks. The operations of a slot are not appended one by one: their payloads are built with
+    // the xOperation methods, which append the KEY records they need, and then appended together with appendSlot.
+    // Nothing may rotate the ledger in between, as the payloads refer to the current file's key numbers.
+
+    public synchronized long createAccount(PublicKey key, Nonce nonce) throws IOException {
+        return append(createAccountOperation(key, nonce));
+    }
+
+    // decimal is the amount as signed when not canonical, null otherwise (see LedgerRecordHandler)
+    public synchronized long addTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+        return append(addTransactionOperation(source, destination, amount, decimal, nonce, signature));
+    }
+
+    public synchronized long acceptTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+        return append(acceptTransactionOperation(source, destination, amount, decimal, nonce, signature));
+    }
+
+    public synchronized long rejectTransaction(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) throws IOException {
+        return append(rejectTransactionOperation(source, destination, amount, nonce, signature));
+    }
+
+    public synchronized byte[] createAccountOperation(PublicKey key, Nonce nonce) throws IOException {
+        int keyId = keyId(key);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(CREATE);
+        out.writeInt(keyId);
+        nonce.writeTo(out);
+        return payload.toByteArray();
+    }
+
+    public byte[] addTransactionOperation(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+        return transactionOperation(decimal != null ? DECIMAL_ADD : ADD, source, destination, amount, decimal, nonce, signature);
+    }
+
+    public byte[] acceptTransactionOperation(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+        return transactionOperation(decimal != null ? DECIMAL_ACCEPT : ACCEPT, source, destination, amount, decimal, nonce, signature);
+    }
+
+    public byte[] rejectTransactionOperation(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) throws IOException {
+        return transactionOperation(REJECT, source, destination, amount, null, nonce, signature);
+    }
+
+    /**
+     * Appends the operations a slot applied as a single record, and marks the slot applied.
+     */
+    public synchronized long appendSlot(int slot, List<byte[]> operations) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(SLOT);
+        out.writeInt(slot);
+        out.writeInt(operations.size());
+        for (byte[] operation : operations) {
+            out.writeInt(operation.length);
+            out.write(operation);
+        }
+        long record = append(payload.toByteArray());
+        lastSlot = Math.max(lastSlot, slot);
+        return record;
+    }
+
+    /**
+     * Highest slot in the ledger, or the one the snapshot holds if no slot was written since.
+     */
+    public synchronized int getLastSlot() {
+        return lastSlot;
+    }
+
+    private synchronized byte[] transactionOperation(byte type, PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException {
+        int sourceId = keyId(source);
+        int destinationId = keyId(destination);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(type);
+        out.writeInt(sourceId);
+        out.writeInt(destinationId);
+        if (decimal != null)
+            out.writeUTF(decimal);
+        else
+            out.writeLong(amount);
+        nonce.writeTo(out);
+        out.writeShort(signature.length);
+        out.write(signature);
+        return payload.toByteArray();
+    }
+
+    private int keyId(PublicKey key) throws IOException {
+        Integer id = keyIds.get(key);
+        if (id != null)
+            return id;
+
+        id = keyIds.size();
+        byte[] encoded = key.getEncoded();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(KEY);
+        out.writeInt(id);
+        out.writeShort(encoded.length);
+        out.write(encoded);
+        append(payload.toByteArray());
+        keyIds.put(key, id);
+        return id;
+    }
+
+    private long append(byte[] payload) throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Ledger is closed");
+
+        crc.reset();
+        crc.update(payload);
+        pendingOut.writeInt(payload.length);
+        pendingOut.writeInt((int) crc.getValue());
+        pendingOut.write(payload);
+        appended++;
+        segmentRecords++;
+
+        if (durability == Durability.PER_OP) {
+            write(takePending());
+            channel.force(false);
+            durable = appended;
+        } else {
+            notifyAll();
+        }
+        return appended;
+    }
+
+    /**
+     * Waits until the record with this sequence number is on disk, as the durability policy defines it.
+     */
+    public void awaitDurable(long record) throws IOException {
+        if (durability == Durability.PERIODIC)
+            return;
+        synchronized (this) {
+            while (durable < record && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the ledger");
                 }
+            }
+            if (durable < record)
+                throw failure;
+        }
+    }
+
+    /**
+     * Runs the action once the record with this sequence number is on disk, as the durability policy defines it,
+     * without blocking the caller: at once if it already is, otherwise on the thread that forces it. If the ledger
+     * cannot be written, onFailure is given the error instead.
+     */
+    public void whenDurable(long record, Runnable action, Consumer<IOException> onFailure) {
+        IOException failed;
+        synchronized (this) {
+            failed = failure;
+            if (failed == null && durability != Durability.PERIODIC && durable < record) {
+                waiters.computeIfAbsent(record, r -> new ArrayList<>(1)).add(new Waiter(action, onFailure));
+                return;
+            }
+        }
+        if (failed != null)
+            onFailure.accept(failed);
+        else
+            action.run();
+    }
+
+    // Takes the waiters whose records are on disk, to be run once the lock is released
+    private List<Waiter> takeDurableWaiters() {
+        NavigableMap<Long, List<Waiter>> ready = waiters.headMap(durable, true);
+        List<Waiter> taken = new ArrayList<>();
+        for (List<Waiter> waiting : ready.values())
+            taken.addAll(waiting);
+        ready.clear();
+        return taken;
+    }
+
+    private static void runWaiters(List<Waiter> ready) {
+        for (Waiter waiter : ready) {
+            try {
+                waiter.action.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to run an action waiting for the ledger", e);
+            }
+        }
+    }
+
+    private byte[] takePending() {
+        byte[] batch = pending.toByteArray();
+        pending.reset();
+        return batch;
+    }
+
+    private void write(byte[] batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // Only thread that writes once the ledger is open (unless the policy is per-op). Whatever was appended
+    // while it was writing and forcing the previous group becomes the next group.
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            synchronized (this) {
                 try {
-                    bank.acceptTransactionNoLog(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), new BigDecimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
-                } catch (InvalidKeySpecException e) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    e.printStackTrace();
-                    System.exit(1);
+                    if (durability == Durability.PERIODIC) {
+                        if (!closed)
+                            wait(syncIntervalMillis);
+                    } else {
+                        while (pending.size() == 0 && !closed)
+                            wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
                 }
-                break;
-            case "reject":
-                if (args.length != 6) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    System.exit(1);
+                if (pending.size() == 0) {
+                    if (closed) {
+                        notifyAll();
+                        return;
+                    }
+                    continue;
                 }
-                try {
-                    bank.rejectTransactionNoLog(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), new BigDecimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
-                } catch (InvalidKeySpecException e) {
-                    logger.error("Invalid line in ledger: {}", line);
-                    e.printStackTrace();
-                    System.exit(1);
+                batch = takePending();
+                upTo = appended;
+                writing = true;
+            }
+
+            try {
+                write(batch);
+                channel.force(false);
+            } catch (IOException e) {
+                logger.error("Cannot write to ledger file");
+                List<Waiter> failed = new ArrayList<>();
+                synchronized (this) {
+                    failure = e;
+                    writing = false;
+                    notifyAll();
+                    for (List<Waiter> waiting : waiters.values())
+                        failed.addAll(waiting);
+                    waiters.clear();
                 }
-                break;
+                for (Waiter waiter : failed)
+                    waiter.onFailure.accept(e);
+                return;
+            }
+
+            List<Waiter> ready;
+            synchronized (this) {
+                durable = upTo;
+                writing = false;
+                notifyAll();
+                ready = takeDurableWaiters();
+            }
+            runWaiters(ready);
         }
     }
 
-    public void createAccount(PublicKey key, Nonce nonce) throws IOException {
-        ledgerWriter.append("create-");
-        ledgerWriter.append(Crypto.keyAsString(key));
-        ledgerWriter.append("-");
-        ledgerWriter.append(nonce.toString());
-        ledgerWriter.append('\n');
-        ledgerWriter.flush();
-    }
+    // ***** Rotation
 
-    public void addTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) throws IOException {
-        ledgerWriter.append("add-");
-        addTransactionContent(source, destination, amount, nonce, signature);
+    public synchronized long getSegmentRecords() {
+        return segmentRecords;
     }
 
-    public void acceptTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) throws IOException {
-        ledgerWriter.append("accept-");
-        addTransactionContent(source, destination, amount, nonce, signature);
+    /**
+     * Forces the current file, renames it to a segment and starts a new file of the next generation, whose
+     * number is returned. The caller must keep anything from being appended until it has captured the state
+     * the new generation starts from.
+     */
+    public long rotate() throws IOException {
+        long rotated;
+        List<Waiter> ready;
+        synchronized (this) {
+            rotated = rotateFile();
+            ready = takeDurableWaiters();
+        }
+        runWaiters(ready);
+        return rotated;
     }
 
-    public void rejectTransaction(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) throws IOException {
-        ledgerWriter.append("reject-");
-        addTransactionContent(source, destination, amount, nonce, signature);
+    private long rotateFile() throws IOException {
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the ledger");
+            }
+        }
+        if (failure != null)
+            throw failure;
+
+        write(takePending());
+        channel.force(true);
+        channel.close();
+        Path current = Paths.get(ledgerFileName);
+        Files.move(current, segmentPath(generation), StandardCopyOption.ATOMIC_MOVE);
+
+        generation++;
+        channel = FileChannel.open(current, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeHeader();
+        channel.position(HEADER_SIZE);
+        keyIds.clear();
+        segmentRecords = 0;
+        durable = appended;
+        notifyAll();
+        return generation;
     }
 
-    private void addTransactionContent(PublicKey source, PublicKey destination, BigDecimal amount, Nonce nonce, byte[] signature) throws IOException {
-        ledgerWriter.append(Crypto.keyAsString(source));
-        ledgerWriter.append('-');
-        ledgerWriter.append(Crypto.keyAsString(destination));
-        ledgerWriter.append('-');
-        ledgerWriter.append(amount.toString());
-        ledgerWriter.append('-');
-        ledgerWriter.append(nonce.toString());
-        ledgerWriter.append('-');
-        ledgerWriter.append(signatureToString(signature));
-        ledgerWriter.append('\n');
-        ledgerWriter.flush();
+    /**
+     * Deletes the rotated segments older than the given generation, once a snapshot holds their effect.
+     */
+    public void deleteSegmentsBefore(long generation) throws IOException {
+        for (Map.Entry<Long, Path> segment : rotatedSegments().headMap(generation).entrySet())
+            Files.deleteIfExists(segment.getValue());
     }
 
+    private Path segmentPath(long generation) {
+        return Paths.get(ledgerFileName + "." + generation);
+    }
 
-    private byte[] signatureFromString(String signature) {
-        return Base64.getDecoder().decode(signature);
+    private TreeMap<Long, Path> rotatedSegments() throws IOException {
+        Path ledger = Paths.get(ledgerFileName).toAbsolutePath();
+        String prefix = ledger.getFileName().toString() + ".";
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(ledger.getParent())) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    segments.put(Long.parseLong(name.substring(prefix.length())), file);
+            });
+        }
+        return segments;
     }
 
-    private String signatureToString(byte[] signature) {
-        return new String(Base64.getEncoder().encode(signature));
+    /**
+     * Writes and forces everything appended so far, then closes the file.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+            write(takePending());
+            channel.force(true);
+            channel.close();
+        }
     }
 }
@@ -0,0 +1,20 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.io.IOException;
+import java.security.PublicKey;
+
+/**
+ * Receives the operations read back from a ledger, in the order they were recorded. Where given, decimal is the
+ * amount as it was signed, when that is not its canonical form (see Money), and null otherwise.
+ */
+public interface LedgerRecordHandler {
+    void createAccount(PublicKey key, Nonce nonce) throws IOException;
+
+    void addTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException;
+
+    void acceptTransaction(PublicKey source, PublicKey destination, long amount, String decimal, Nonce nonce, byte[] signature) throws IOException;
+
+    void rejectTransaction(PublicKey source, PublicKey destination, long amount, Nonce nonce, byte[] signature) throws IOException;
+}
@@ -0,0 +1,205 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint of every account (balance, nonce, pending transactions and history), taken when the ledger is
+ * rotated. A snapshot of generation G holds the effect of every ledger segment before generation G, so
+ * recovery loads it and only replays the segments from G on. It also holds the last consensus slot those
+ * segments applied, where the replica resumes if no later slot is in the ledger.
+ * <p>
+ * The file is [magic][version][generation][payload length][CRC32 of the payload][payload]. It is written to a
+ * temporary file and renamed over the previous snapshot, so there is always one complete snapshot on disk.
+ */
+public class LedgerSnapshot {
+    private static final int MAGIC = 0x42465453; // "BFTS"
+    private static final int VERSION = 1;
+
+    private final long generation;
+    private final int lastSlot;
+    private final Map<PublicKey, BankAccount> accounts;
+
+    private LedgerSnapshot(long generation, int lastSlot, Map<PublicKey, BankAccount> accounts) {
+        this.generation = generation;
+        this.lastSlot = lastSlot;
+        this.accounts = accounts;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getLastSlot() {
+        return lastSlot;
+    }
+
+    public Map<PublicKey, BankAccount> getAccounts() {
+        return accounts;
+    }
+
+    // ***** Writing
+
+    public static void write(String fileName, long generation, int lastSlot, Map<PublicKey, AccountSnapshot> accounts) throws IOException {
+        // keys are written once and referred to by position, as most of them appear in many transactions
+        Map<PublicKey, Integer> keyIds = new HashMap<>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+
+        out.writeInt(lastSlot);
+        out.writeInt(accounts.size());
+        for (PublicKey key : accounts.keySet()) {
+            keyIds.put(key, keyIds.size());
+            writeBytes(out, key.getEncoded());
+        }
+        for (Map.Entry<PublicKey, AccountSnapshot> entry : accounts.entrySet()) {
+            AccountSnapshot account = entry.getValue();
+            out.writeInt(keyIds.get(entry.getKey()));
+            out.writeLong(account.getBalance());
+            account.getNonce().writeTo(out);
+            writeTransactions(out, account.getTransactionQueue(), keyIds);
+            writeTransactions(out, account.getTransactionHistory(), keyIds);
+        }
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(24 + bytes.length)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(generation)
+                .putInt(bytes.length)
+                .putInt((int) crc.getValue())
+                .put(bytes);
+        buffer.flip();
+
+        Path target = Paths.get(fileName);
+        Path temporary = Paths.get(fileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTransactions(DataOutputStream out, Collection<Transaction> transactions, Map<PublicKey, Integer> keyIds) throws IOException {
+        out.writeInt(transactions.size());
+        for (Transaction t : transactions) {
+            out.writeInt(keyIds.get(t.getSource()));
+            out.writeInt(keyIds.get(t.getDestination()));
+            out.writeLong(t.getAmount());
+            out.writeBoolean(t.getDecimal() != null);
+            if (t.getDecimal() != null)
+                out.writeUTF(t.getDecimal());
+            t.getSourceNonce().writeTo(out);
+            writeBytes(out, t.getSourceSignature());
+            boolean completed = t.getDestinationNonce() != null;
+            out.writeBoolean(completed);
+            if (completed) {
+                t.getDestinationNonce().writeTo(out);
+                writeBytes(out, t.getDestinationSignature());
+            }
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    // ***** Reading
+
+    /**
+     * Loads the snapshot, or returns null if there is none.
+     */
+    public static LedgerSnapshot read(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        if (!Files.exists(path))
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < 24 || buffer.getInt() != MAGIC)
+            throw new IOException(fileName + " is not a ledger snapshot");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        long generation = buffer.getLong();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length != buffer.remaining())
+            throw new IOException("Snapshot " + fileName + " is incomplete");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Snapshot " + fileName + " is corrupted");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int lastSlot = in.readInt();
+            int count = in.readInt();
+            List<PublicKey> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                keys.add(Crypto.keyFromBytes(readBytes(in)));
+
+            Map<PublicKey, BankAccount> accounts = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                PublicKey key = keys.get(in.readInt());
+                long balance = in.readLong();
+                BankAccount account = new BankAccount(key, Nonce.readFrom(in));
+                account.setBalance(balance);
+                readTransactions(in, keys, account.getTransactionQueue());
+                readTransactions(in, keys, account.getTransactionHistory());
+                account.publish();
+                accounts.put(key, account);
+            }
+            return new LedgerSnapshot(generation, lastSlot, accounts);
+        } catch (InvalidKeySpecException | IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot " + fileName + " is corrupted", e);
+        }
+    }
+
+    private static void readTransactions(DataInputStream in, List<PublicKey> keys, Collection<Transaction> transactions) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            PublicKey source = keys.get(in.readInt());
+            PublicKey destination = keys.get(in.readInt());
+            long amount = in.readLong();
+            Transaction t = new Transaction(source, destination, amount, in.readBoolean() ? in.readUTF() : null);
+            t.setSourceNonce(Nonce.readFrom(in));
+            t.setSourceSignature(readBytes(in));
+            if (in.readBoolean()) {
+                t.setDestinationNonce(Nonce.readFrom(in));
+                t.setDestinationSignature(readBytes(in));
+            }
+            transactions.add(t);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
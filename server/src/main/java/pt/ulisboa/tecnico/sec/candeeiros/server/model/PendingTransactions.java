@@ -0,0 +1,163 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Incoming transactions waiting to be accepted or rejected, in the order they were sent. They are kept in an
+ * array in that order and also indexed by what a receive request names (source, destination and amount), so
+ * finding and removing one takes O(1) however many are pending. Of several equal transactions the oldest is
+ * removed first, as with a list.
+ * <p>
+ * A removed transaction stays in the array, marked with the number of the removal, until the removed ones
+ * outnumber the pending ones and the array is compacted into a new one. A snapshot is then just the array, its
+ * length and the number of removals so far, taken in O(1) like AppendOnlyList's, and it stays valid while the
+ * transactions keep changing. Writers must be externally synchronized (the account's lock); snapshots can be
+ * read from any thread once they have been safely published.
+ */
+public class PendingTransactions extends AbstractCollection<Transaction> {
+    private static final long PENDING = Long.MAX_VALUE;
+
+    private static final class Entry {
+        private final Transaction transaction;
+        // number of the removal that took it out, PENDING until then; set once
+        private volatile long removedAt = PENDING;
+
+        private Entry(Transaction transaction) {
+            this.transaction = transaction;
+        }
+    }
+
+    // equal pending transactions, oldest first
+    private final Map<Transaction, ArrayDeque<Entry>> index;
+    // never changed below end once published, only replaced
+    private Entry[] entries;
+    private int end;
+    private int size;
+    private long removals;
+
+    public PendingTransactions() {
+        this.index = new HashMap<>();
+        this.entries = new Entry[8];
+    }
+
+    @Override
+    public boolean add(Transaction transaction) {
+        if (end == entries.length)
+            entries = size > end / 2 ? Arrays.copyOf(entries, end * 2) : compacted(entries.length);
+        Entry entry = new Entry(transaction);
+        entries[end++] = entry;
+        index.computeIfAbsent(transaction, t -> new ArrayDeque<>(1)).addLast(entry);
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the oldest pending transaction equal to this one and returns it, or returns null if there is none.
+     */
+    public Transaction take(Transaction transaction) {
+        ArrayDeque<Entry> equal = index.get(transaction);
+        if (equal == null)
+            return null;
+        Entry entry = equal.pollFirst();
+        if (equal.isEmpty())
+            index.remove(transaction);
+        entry.removedAt = ++removals;
+        size--;
+        if (end - size > size + 8)
+            entries = compacted(Math.max(8, size * 2));
+        return entry.transaction;
+    }
+
+    // A new array with the pending entries only; the old one is left as it is for the snapshots using it
+    private Entry[] compacted(int capacity) {
+        Entry[] live = new Entry[capacity];
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (entries[i].removedAt == PENDING)
+                live[count++] = entries[i];
+        }
+        end = count;
+        return live;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Transaction && take((Transaction) o) != null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return index.containsKey(o);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Transaction> iterator() {
+        return new View(entries, end, size, removals).iterator();
+    }
+
+    /**
+     * The pending transactions as they are now, unaffected by later changes.
+     */
+    public Collection<Transaction> snapshot() {
+        return new View(entries, end, size, removals);
+    }
+
+    private static class View extends AbstractCollection<Transaction> {
+        private final Entry[] entries;
+        private final int end;
+        private final int size;
+        // entries removed after this many removals are still pending in this view
+        private final long removals;
+
+        private View(Entry[] entries, int end, int size, long removals) {
+            this.entries = entries;
+            this.end = end;
+            this.size = size;
+            this.removals = removals;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Transaction> iterator() {
+            return new Iterator<>() {
+                private int next = skipRemoved(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next < end;
+                }
+
+                @Override
+                public Transaction next() {
+                    if (next >= end)
+                        throw new NoSuchElementException();
+                    Transaction transaction = entries[next].transaction;
+                    next = skipRemoved(next + 1);
+                    return transaction;
+                }
+            };
+        }
+
+        private int skipRemoved(int from) {
+            while (from < end && entries[from].removedAt <= removals)
+                from++;
+            return from;
+        }
+    }
+}
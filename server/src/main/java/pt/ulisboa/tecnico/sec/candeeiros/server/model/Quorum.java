@@ -0,0 +1,13 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+/**
+ * The one quorum size used by the replicas: a majority of all configured servers, so any two quorums share
+ * a replica. Votes, applied counts and reads all wait for this many replicas.
+ */
+public final class Quorum {
+    private Quorum() {}
+
+    public static int majority(int totalServers) {
+        return totalServers / 2 + 1;
+    }
+}
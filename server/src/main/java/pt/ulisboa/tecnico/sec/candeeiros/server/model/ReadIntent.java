@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import com.google.protobuf.ByteString;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Vote over the answers of the replicas to a read. Replicas vote with a digest of their answer; only some of
+ * them send the answer itself. The read is decided when a majority agrees on a digest, and is answered with a
+ * payload that has that digest, which may have to be fetched afterwards if none has arrived.
+ */
+public class ReadIntent<R> {
+    private final int quorum;
+    private final Map<ByteString, Integer> votes;
+    private final Map<ByteString, R> payloads;
+    private ByteString decided;
+
+    public ReadIntent(int totalServers) {
+        this.quorum = Quorum.majority(totalServers);
+        this.votes = new HashMap<>();
+        this.payloads = new HashMap<>();
+        this.decided = null;
+    }
+
+    /**
+     * Counts one replica's vote. Returns the decided digest the first time a majority is reached, null otherwise.
+     */
+    public synchronized ByteString addVote(ByteString digest) {
+        int count = votes.merge(digest, 1, Integer::sum);
+        if (decided != null || count < quorum)
+            return null;
+        decided = digest;
+        return decided;
+    }
+
+    /**
+     * Keeps a full answer, under the digest computed from it (not the one the replica claims).
+     */
+    public synchronized void addPayload(ByteString digest, R payload) {
+        payloads.putIfAbsent(digest, payload);
+    }
+
+    public synchronized R getPayload(ByteString digest) {
+        return payloads.get(digest);
+    }
+
+    public synchronized ByteString getDecided() {
+        return decided;
+    }
+}
@@ -0,0 +1,38 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UnsafeByteOperations;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * SHA-256 of a request, used to key the consensus tables instead of the request itself. It is computed once when
+ * a message arrives, so looking a request up costs the same 32-byte hash and compare however large the request
+ * is (keys and signatures included) and however many requests are stored.
+ */
+public final class RequestDigest {
+    private RequestDigest() {
+    }
+
+    public static ByteString of(MessageLite request) {
+        // the array is not shared, so the ByteString can wrap it instead of copying it
+        return UnsafeByteOperations.unsafeWrap(Crypto.newDigest().digest(request.toByteArray()));
+    }
+
+    /**
+     * Digest of a list of requests, each prefixed with its length so that no two different lists hash the same bytes.
+     */
+    public static ByteString of(List<? extends MessageLite> requests) {
+        MessageDigest digest = Crypto.newDigest();
+        for (MessageLite request : requests) {
+            byte[] bytes = request.toByteArray();
+            int size = bytes.length;
+            digest.update(new byte[]{(byte) (size >>> 24), (byte) (size >>> 16), (byte) (size >>> 8), (byte) size});
+            digest.update(bytes);
+        }
+        return UnsafeByteOperations.unsafeWrap(digest.digest());
+    }
+}
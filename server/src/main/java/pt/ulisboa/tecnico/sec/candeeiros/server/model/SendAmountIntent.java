@@ -64,7 +64,7 @@ public class SendAmountIntent {
 
     public boolean hasMajority(int totalServers) {
         if(majorityChecked) return false;
-        return totalServers %2==0 ? occurrences.get(majority) >= (Math.ceil((double)(totalServers+1)/2)) : occurrences.get(majority) >= (Math.ceil((double)(totalServers)/2));
+        return occurrences.get(majority) >= Quorum.majority(totalServers);
     }
 
     public Bank.SendAmountResponse.Status getMajority() {
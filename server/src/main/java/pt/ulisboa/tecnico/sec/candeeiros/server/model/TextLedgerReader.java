@@ -0,0 +1,88 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Crypto;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.io.*;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+
+/**
+ * Reads the old text ledger format, one `create-`/`add-`/`accept-`/`reject-` line per operation with base64
+ * keys, nonces and signatures. Only used to convert old ledgers to the binary format.
+ */
+public class TextLedgerReader {
+    private static final Logger logger = LoggerFactory.getLogger(TextLedgerReader.class);
+
+    private TextLedgerReader() {
+    }
+
+    /**
+     * Replays every complete line of the ledger to the handler and returns how many there were. A last line
+     * without a line feed was being written when the server stopped and is ignored.
+     */
+    public static int read(String ledgerFileName, LedgerRecordHandler handler) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int count = 0;
+        try (FileReader fr = new FileReader(ledgerFileName)) {
+            BufferedReader br = new BufferedReader(fr);
+            int c;
+            // read instead of readline to not parse last line if it is not finished by a \n
+            while ((c = br.read()) != -1) {
+                line.append((char) c);
+                if (c == '\n') {
+                    count++;
+                    parseLine(line.toString(), handler);
+                    // Avoid generating new objects with new StringBuilder for each line
+                    line.setLength(0);
+                }
+            }
+        }
+        if (line.length() != 0)
+            logger.warn("Last line does not have line feed. Assuming it is corrupted. Skipping it");
+        return count;
+    }
+
+    private static void parseLine(String line, LedgerRecordHandler handler) throws IOException {
+        line = line.substring(0, line.length() - 1);
+        String[] args = line.split("-");
+        try {
+            switch (args[0]) {
+                case "create":
+                    if (args.length != 3)
+                        throw new IOException("Invalid line in ledger: " + line);
+                    handler.createAccount(Crypto.keyFromString(args[1]), Nonce.fromString(args[2]));
+                    break;
+                case "add":
+                    if (args.length != 6)
+                        throw new IOException("Invalid line in ledger: " + line);
+                    handler.addTransaction(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), Money.fromDecimal(args[3]), decimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
+                    break;
+                case "accept":
+                    if (args.length != 6)
+                        throw new IOException("Invalid line in ledger: " + line);
+                    handler.acceptTransaction(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), Money.fromDecimal(args[3]), decimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
+                    break;
+                case "reject":
+                    if (args.length != 6)
+                        throw new IOException("Invalid line in ledger: " + line);
+                    handler.rejectTransaction(Crypto.keyFromString(args[1]), Crypto.keyFromString(args[2]), Money.fromDecimal(args[3]), Nonce.fromString(args[4]), signatureFromString(args[5]));
+                    break;
+            }
+        } catch (InvalidKeySpecException | NumberFormatException e) {
+            throw new IOException("Invalid line in ledger: " + line, e);
+        }
+    }
+
+    // the amount was written as it was signed, which has to be kept unless it is already canonical
+    private static String decimal(String amount) {
+        return Money.nonCanonical(amount, Money.fromDecimal(amount));
+    }
+
+    private static byte[] signatureFromString(String signature) {
+        return Base64.getDecoder().decode(signature);
+    }
+}
@@ -1,23 +1,33 @@
 package pt.ulisboa.tecnico.sec.candeeiros.server.model;
 
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Money;
 import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
 
-import java.math.BigDecimal;
 import java.security.PublicKey;
-import java.util.Objects;
 
 public class Transaction {
     private final PublicKey source, destination;
-    private final BigDecimal amount;
+    // in hundredths, see Money
+    private final long amount;
+    // the amount as it was signed, if not in canonical form (see Money); null otherwise
+    private final String decimal;
+    // transactions are looked up in hash tables by these three fields, and hashing a key is not free
+    private final int hash;
 
     // intentionally ignored by equals and hash
     private Nonce sourceNonce, destinationNonce;
     private byte[] sourceSignature, destinationSignature;
 
-    public Transaction(PublicKey source, PublicKey destination, BigDecimal amount) {
+    public Transaction(PublicKey source, PublicKey destination, long amount) {
+        this(source, destination, amount, null);
+    }
+
+    public Transaction(PublicKey source, PublicKey destination, long amount, String decimal) {
         this.source = source;
         this.destination = destination;
         this.amount = amount;
+        this.decimal = decimal;
+        this.hash = 31 * (31 * source.hashCode() + destination.hashCode()) + Long.hashCode(amount);
     }
 
     public PublicKey getSource() {
@@ -28,10 +38,21 @@ public class Transaction {
         return destination;
     }
 
-    public BigDecimal getAmount() {
+    public long getAmount() {
         return amount;
     }
 
+    public String getDecimal() {
+        return decimal;
+    }
+
+    /**
+     * The amount in the decimal form its signatures cover.
+     */
+    public String getSignedAmount() {
+        return decimal != null ? decimal : Money.toString(amount);
+    }
+
     public Nonce getSourceNonce() {
         return sourceNonce;
     }
@@ -69,11 +90,11 @@ public class Transaction {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Transaction that = (Transaction) o;
-        return source.equals(that.source) && destination.equals(that.destination) && amount.equals(that.amount);
+        return hash == that.hash && amount == that.amount && source.equals(that.source) && destination.equals(that.destination);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(source, destination, amount);
+        return hash;
     }
 }
@@ -0,0 +1,38 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+/**
+ * How far the slots have been applied. Every replica applies the slots in one global order, so a single point
+ * says it all: a slot below the watermark has been applied, and nothing about its consensus round is needed any
+ * more.
+ */
+public final class Watermark {
+    // the first slot not yet applied
+    private final int floor;
+
+    public Watermark(int floor) {
+        this.floor = floor;
+    }
+
+    /**
+     * The watermark before anything was applied.
+     */
+    public static Watermark none() {
+        return new Watermark(0);
+    }
+
+    public int getFloor() {
+        return floor;
+    }
+
+    /**
+     * Whether the slot is below the watermark. Negative slots are never proposed, so they count as below.
+     */
+    public boolean isBelow(int slot) {
+        return slot < floor;
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(floor);
+    }
+}
@@ -0,0 +1,114 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pt.ulisboa.tecnico.sec.candeeiros.Bank;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.AccountSnapshot;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.BftBank;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.LedgerManager;
+import pt.ulisboa.tecnico.sec.candeeiros.shared.Nonce;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CheckAccountCacheTest {
+    // more than two entries without transactions take, and less than three
+    private static final long TWO_ENTRIES = 300;
+
+    private static PublicKey key1, key2, key3;
+
+    @TempDir
+    Path directory;
+    private BftBank bank;
+
+    @BeforeAll
+    static void generateKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        key1 = generator.generateKeyPair().getPublic();
+        key2 = generator.generateKeyPair().getPublic();
+        key3 = generator.generateKeyPair().getPublic();
+    }
+
+    @BeforeEach
+    void openBank() throws IOException {
+        bank = new BftBank(directory.resolve("ledger").toString(), LedgerManager.Durability.PERIODIC, 100, 0);
+        bank.apply(0, List.of(key1, key2, key3), changes -> {
+            changes.createAccount(key1);
+            changes.createAccount(key2);
+            changes.createAccount(key3);
+        });
+    }
+
+    private static CheckAccountCache cache(long maxBytes) {
+        return new CheckAccountCache(maxBytes, t -> Bank.NonRepudiableTransaction.getDefaultInstance());
+    }
+
+    private CheckAccountCache.Payload read(CheckAccountCache cache, PublicKey key) {
+        return cache.get(key, bank.getSnapshot(key));
+    }
+
+    private void send(PublicKey source, PublicKey destination, long amount) {
+        bank.apply(1, List.of(source, destination), changes ->
+                changes.addTransaction(source, destination, amount, null, Nonce.newNonce(), new byte[]{1}));
+    }
+
+    @Test
+    void reusesThePayloadWhileTheAccountIsUnchanged() {
+        CheckAccountCache cache = cache(TWO_ENTRIES);
+        assertSame(read(cache, key1), read(cache, key1));
+    }
+
+    @Test
+    void rebuildsThePayloadOnceTheAccountChanges() {
+        CheckAccountCache cache = cache(TWO_ENTRIES);
+        AccountSnapshot before = bank.getSnapshot(key2);
+        CheckAccountCache.Payload first = cache.get(key2, before);
+        send(key1, key2, 100);
+
+        CheckAccountCache.Payload second = read(cache, key2);
+        assertNotSame(first, second);
+        assertEquals(1, second.getTransactions().size());
+
+        // a reader still holding the old snapshot does not bring the old version back
+        cache.get(key2, before);
+        assertSame(second, read(cache, key2));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyReadAccount() {
+        CheckAccountCache cache = cache(TWO_ENTRIES);
+        CheckAccountCache.Payload first = read(cache, key1);
+        CheckAccountCache.Payload second = read(cache, key2);
+        read(cache, key1);
+        read(cache, key3);
+
+        assertSame(first, read(cache, key1));
+        assertNotSame(second, read(cache, key2));
+    }
+
+    @Test
+    void doesNotKeepAPayloadLargerThanTheCache() {
+        CheckAccountCache cache = cache(10);
+        assertNotSame(read(cache, key1), read(cache, key1));
+    }
+
+    @Test
+    void failuresCarryNoAccount() {
+        CheckAccountCache cache = cache(TWO_ENTRIES);
+        CheckAccountCache.Payload failure = cache.failure(Bank.CheckAccountResponse.Status.INVALID_KEY);
+        assertSame(failure, cache.failure(Bank.CheckAccountResponse.Status.INVALID_KEY));
+        assertEquals("", failure.getBalance());
+        assertEquals(0, failure.getTransactions().size());
+    }
+}
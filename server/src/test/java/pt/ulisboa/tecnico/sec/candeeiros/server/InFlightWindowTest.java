@@ -0,0 +1,62 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InFlightWindowTest {
+    private final List<Integer> proposed = new ArrayList<>();
+
+    @Test
+    void holdsProposalsUntilOpen() {
+        InFlightWindow window = new InFlightWindow(4, 3, 1);
+        window.submit(proposed::add);
+        assertNull(window.skipBelow(10), "the slots left below are unknown until the window opens");
+        assertTrue(proposed.isEmpty());
+
+        window.open(2);
+        assertEquals(List.of(7), proposed);
+    }
+
+    @Test
+    void interleavesSlotsAndBoundsThoseInFlight() {
+        InFlightWindow window = new InFlightWindow(2, 3, 1);
+        window.open(0);
+        for (int i = 0; i < 3; i++)
+            window.submit(proposed::add);
+        assertEquals(List.of(1, 4), proposed);
+        assertEquals(2, window.inFlight());
+
+        // a slot of another replica is not this window's to release
+        window.release(2);
+        assertEquals(List.of(1, 4), proposed);
+
+        window.release(1);
+        assertEquals(List.of(1, 4, 7), proposed);
+        assertEquals(2, window.inFlight());
+    }
+
+    @Test
+    void skipsTheSlotsLeftBelowAnotherReplicasProposal() {
+        InFlightWindow window = new InFlightWindow(4, 3, 1);
+        window.open(0);
+        window.submit(proposed::add);
+
+        SyncBanks.SlotSkip skip = window.skipBelow(11);
+        assertEquals(4, skip.getFrom());
+        assertEquals(13, skip.getTo());
+        assertEquals(1, window.inFlight(), "skipped slots take no room in the window");
+
+        assertNull(window.skipBelow(5));
+        assertNull(window.skipBelow(13));
+
+        window.submit(proposed::add);
+        assertEquals(List.of(1, 13), proposed);
+    }
+}
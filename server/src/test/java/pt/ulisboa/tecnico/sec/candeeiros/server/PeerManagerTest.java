@@ -0,0 +1,91 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerManagerTest {
+    private static final int SELF = 0;
+    private static final int PEER = 1;
+    private static final int THRESHOLD = 3;
+
+    private PeerManager peers;
+
+    @BeforeEach
+    void setUp() {
+        // no call is sent: each one ends as the test says
+        peers = new PeerManager(ClusterConfig.localhost(4200, 3), SELF, 5000, 0, THRESHOLD, 60000);
+    }
+
+    private void failWith(int replica, Status status) {
+        peers.call(replica, stub -> Futures.immediateFailedFuture(status.asRuntimeException()));
+    }
+
+    private void succeed(int replica) {
+        peers.call(replica, stub -> Futures.immediateFuture("reply"));
+    }
+
+    @Test
+    void goesDownAfterThresholdUnreachableCalls() {
+        for (int i = 0; i < THRESHOLD - 1; i++)
+            failWith(PEER, Status.UNAVAILABLE);
+        assertTrue(peers.isUp(PEER));
+
+        failWith(PEER, Status.DEADLINE_EXCEEDED);
+        assertFalse(peers.isUp(PEER));
+        assertTrue(peers.isUp(2));
+    }
+
+    @Test
+    void callToADownReplicaFailsWithoutBeingSent() throws InterruptedException {
+        for (int i = 0; i < THRESHOLD; i++)
+            failWith(PEER, Status.UNAVAILABLE);
+
+        AtomicBoolean sent = new AtomicBoolean();
+        ListenableFuture<String> call = peers.call(PEER, stub -> {
+            sent.set(true);
+            return SettableFuture.create();
+        });
+        assertFalse(sent.get());
+        ExecutionException failure = assertThrows(ExecutionException.class, call::get);
+        assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(failure.getCause()).getCode());
+    }
+
+    @Test
+    void errorsFromTheReplicaDoNotCount() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            failWith(PEER, Status.CANCELLED);
+            failWith(PEER, Status.INVALID_ARGUMENT);
+            failWith(PEER, Status.INTERNAL);
+        }
+        assertTrue(peers.isUp(PEER));
+    }
+
+    @Test
+    void onlyConsecutiveFailuresCount() {
+        for (int i = 0; i < THRESHOLD - 1; i++)
+            failWith(PEER, Status.UNAVAILABLE);
+        succeed(PEER);
+        for (int i = 0; i < THRESHOLD - 1; i++)
+            failWith(PEER, Status.UNAVAILABLE);
+        assertTrue(peers.isUp(PEER));
+    }
+
+    @Test
+    void thisReplicaIsNeverDown() {
+        for (int i = 0; i < THRESHOLD * 2; i++)
+            failWith(SELF, Status.UNAVAILABLE);
+        assertTrue(peers.isUp(SELF));
+    }
+}
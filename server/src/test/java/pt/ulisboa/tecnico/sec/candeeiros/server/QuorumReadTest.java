@@ -0,0 +1,164 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.AbstractStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuorumReadTest {
+    private static final int SELF = 0;
+
+    // a call made by the read, answered by the test
+    private static final class Request {
+        private final int replica;
+        private final boolean digestOnly;
+        private final SettableFuture<QuorumRead.Reply<String>> reply;
+
+        private Request(int replica, boolean digestOnly) {
+            this.replica = replica;
+            this.digestOnly = digestOnly;
+            this.reply = SettableFuture.create();
+        }
+    }
+
+    private PeerManager peers;
+    private final List<Request> requests = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        // no call is sent: the test answers them
+        peers = new PeerManager(ClusterConfig.localhost(4200, 3), SELF, 5000, 0, 3, 60000);
+    }
+
+    private static ByteString digest(String answer) {
+        return ByteString.copyFromUtf8(answer);
+    }
+
+    private static QuorumRead.Reply<String> full(String answer) {
+        return new QuorumRead.Reply<>(answer, digest(answer));
+    }
+
+    private static QuorumRead.Reply<String> vote(String answer) {
+        return new QuorumRead.Reply<>(null, digest(answer));
+    }
+
+    private int replicaOf(AbstractStub<?> stub) {
+        for (int replica = 0; replica < peers.size(); replica++) {
+            if (peers.channel(replica) == stub.getChannel())
+                return replica;
+        }
+        throw new AssertionError("Call to an unknown replica");
+    }
+
+    private CompletableFuture<String> read() {
+        return QuorumRead.start(peers, (stub, digestOnly) -> {
+            Request request = new Request(replicaOf(stub), digestOnly);
+            requests.add(request);
+            return request.reply;
+        }, QuorumReadTest::digest);
+    }
+
+    private Request request(int index, int replica, boolean digestOnly) {
+        Request request = requests.get(index);
+        assertEquals(replica, request.replica);
+        assertEquals(digestOnly, request.digestOnly);
+        return request;
+    }
+
+    @Test
+    void asksThisReplicaForTheAnswerAndTheOthersForADigest() {
+        read();
+        assertEquals(3, requests.size());
+        request(0, SELF, false);
+        request(1, 1, true);
+        request(2, 2, true);
+    }
+
+    @Test
+    void fetchesTheAgreedAnswerWhenThisReplicasDiffers() {
+        CompletableFuture<String> result = read();
+        request(0, SELF, false).reply.set(full("stale"));
+        request(1, 1, true).reply.set(vote("fresh"));
+        request(2, 2, true).reply.set(vote("fresh"));
+        assertFalse(result.isDone());
+
+        request(3, 1, false).reply.set(full("fresh"));
+        assertEquals("fresh", result.getNow(null));
+    }
+
+    @Test
+    void fetchSkipsReplicasThatFailOrSendAnotherAnswer() {
+        CompletableFuture<String> result = read();
+        request(0, SELF, false).reply.set(full("stale"));
+        request(1, 1, true).reply.set(vote("fresh"));
+        request(2, 2, true).reply.set(vote("fresh"));
+
+        // an answer is counted by its own digest, whatever the replica voted for
+        request(3, 1, false).reply.set(full("forged"));
+        request(4, 2, false).reply.set(full("fresh"));
+        assertEquals("fresh", result.getNow(null));
+    }
+
+    @Test
+    void failsWhenNoReplicaThatVotedForTheAnswerSendsIt() {
+        CompletableFuture<String> result = read();
+        request(0, SELF, false).reply.set(full("stale"));
+        request(1, 1, true).reply.set(vote("fresh"));
+        request(2, 2, true).reply.set(vote("fresh"));
+
+        request(3, 1, false).reply.setException(Status.UNAVAILABLE.asRuntimeException());
+        request(4, 2, false).reply.set(full("forged"));
+        assertTrue(result.isDone());
+        assertNull(result.getNow("unanswered"));
+    }
+
+    @Test
+    void answersAtTheFirstAgreeingMajorityAndCancelsTheRest() {
+        CompletableFuture<String> result = read();
+        request(0, SELF, false).reply.set(full("answer"));
+        request(1, 1, true).reply.set(vote("answer"));
+
+        assertEquals("answer", result.getNow(null));
+        assertTrue(request(2, 2, true).reply.isCancelled());
+    }
+
+    @Test
+    void completesWithNullWhenTheReplicasDisagree() {
+        CompletableFuture<String> result = read();
+        request(0, SELF, false).reply.set(full("a"));
+        request(1, 1, true).reply.set(vote("b"));
+        assertFalse(result.isDone());
+
+        request(2, 2, true).reply.set(vote("c"));
+        assertTrue(result.isDone());
+        assertNull(result.getNow("unanswered"));
+    }
+
+    @Test
+    void replicaThatIsDownOnlyCostsItsVote() {
+        // three calls it could not be reached on take replica 2 down
+        for (int i = 0; i < 3; i++) {
+            SettableFuture<String> failed = SettableFuture.create();
+            peers.call(2, stub -> failed);
+            failed.setException(Status.UNAVAILABLE.asRuntimeException());
+        }
+        assertFalse(peers.isUp(2));
+
+        CompletableFuture<String> result = read();
+        assertEquals(2, requests.size());
+        request(0, SELF, false).reply.set(full("answer"));
+        request(1, 1, true).reply.set(vote("answer"));
+        assertEquals("answer", result.getNow(null));
+    }
+}
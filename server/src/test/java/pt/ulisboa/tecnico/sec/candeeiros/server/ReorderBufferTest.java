@@ -0,0 +1,94 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReorderBufferTest {
+    private static final long NO_STALLS = 60000;
+
+    private final List<Integer> applied = new ArrayList<>();
+    private final List<Integer> done = new ArrayList<>();
+    private final Set<Integer> stalled = ConcurrentHashMap.newKeySet();
+
+    private ReorderBuffer buffer(int first, long gapTimeout) {
+        return new ReorderBuffer(first, gapTimeout, done::add, stalled::add);
+    }
+
+    private void deliver(ReorderBuffer buffer, int slot) {
+        buffer.deliver(slot, () -> applied.add(slot));
+    }
+
+    @Test
+    void appliesSlotsInGlobalOrder() {
+        ReorderBuffer buffer = buffer(0, NO_STALLS);
+        deliver(buffer, 2);
+        deliver(buffer, 1);
+        assertTrue(applied.isEmpty(), "slots above a missing one must wait");
+
+        deliver(buffer, 0);
+        assertEquals(List.of(0, 1, 2), applied);
+        assertEquals(List.of(0, 1, 2), done);
+        assertEquals(3, buffer.applied().getFloor());
+    }
+
+    @Test
+    void ignoresSlotsDeliveredTwice() {
+        ReorderBuffer buffer = buffer(0, NO_STALLS);
+        deliver(buffer, 1);
+        deliver(buffer, 1);
+        deliver(buffer, 0);
+        deliver(buffer, 0);
+
+        assertEquals(List.of(0, 1), applied);
+    }
+
+    @Test
+    void resumesFromTheFirstSlotGiven() {
+        ReorderBuffer buffer = buffer(5, NO_STALLS);
+        deliver(buffer, 4);
+        deliver(buffer, 5);
+
+        assertEquals(List.of(5), applied);
+        assertEquals(6, buffer.applied().getFloor());
+        assertEquals(5, buffer.highestKnown());
+    }
+
+    @Test
+    void failedSlotDoesNotHoldBackTheNextOnes() {
+        ReorderBuffer buffer = buffer(0, NO_STALLS);
+        buffer.deliver(0, () -> {
+            throw new IllegalStateException("apply failed");
+        });
+        deliver(buffer, 1);
+
+        assertEquals(List.of(1), applied);
+        assertEquals(List.of(0, 1), done);
+    }
+
+    @Test
+    void reportsMissingSlotsUpToTheHighestKnown() throws InterruptedException {
+        ReorderBuffer buffer = buffer(0, 50);
+        buffer.expect(3);
+        deliver(buffer, 1);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stalled.containsAll(Set.of(0, 2, 3)) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(Set.of(0, 2, 3), stalled);
+        assertTrue(applied.isEmpty());
+
+        deliver(buffer, 0);
+        deliver(buffer, 2);
+        deliver(buffer, 3);
+        assertEquals(List.of(0, 1, 2, 3), applied);
+        assertFalse(stalled.contains(4));
+    }
+}
@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RequestBatcherTest {
+    private final LinkedBlockingQueue<List<Integer>> flushed = new LinkedBlockingQueue<>();
+
+    @Test
+    void sealsFullBatchesInSubmissionOrder() {
+        RequestBatcher<Integer> batcher = new RequestBatcher<>(3, 60000, flushed::add);
+        for (int i = 0; i < 6; i++)
+            batcher.submit(i);
+
+        assertEquals(List.of(0, 1, 2), flushed.poll());
+        assertEquals(List.of(3, 4, 5), flushed.poll());
+        assertNull(flushed.poll());
+    }
+
+    @Test
+    void sealsPartialBatchOnceItsFirstRequestLingered() throws InterruptedException {
+        RequestBatcher<Integer> batcher = new RequestBatcher<>(10, 50, flushed::add);
+        batcher.submit(1);
+        batcher.submit(2);
+
+        assertEquals(List.of(1, 2), flushed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void lateLingerTimerDoesNotSealTheNextBatch() throws InterruptedException {
+        RequestBatcher<Integer> batcher = new RequestBatcher<>(2, 600, flushed::add);
+        batcher.submit(1);
+        batcher.submit(2);
+        assertEquals(List.of(1, 2), flushed.poll());
+
+        // the timer of the first batch fires while this one is still young
+        Thread.sleep(300);
+        batcher.submit(3);
+        Thread.sleep(450);
+        assertNull(flushed.poll());
+        assertEquals(List.of(3), flushed.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,32 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.sec.candeeiros.server.model.Watermark;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StableWatermarkTest {
+    private static int stable(List<Integer> applied, int local) {
+        return SyncBanksServiceImpl.stableWatermark(applied, 3, new Watermark(local)).getFloor();
+    }
+
+    @Test
+    void nothingIsStableUntilAMajorityReported() {
+        assertEquals(0, stable(List.of(10, 12), 20));
+    }
+
+    @Test
+    void usesThePointAMajorityReached() {
+        // of five replicas, three applied up to 8 or more
+        assertEquals(8, stable(List.of(3, 10, 8, 12, 5), 20));
+        // with only a majority reporting, all of them must have applied it
+        assertEquals(3, stable(List.of(3, 10, 5), 20));
+    }
+
+    @Test
+    void neverGoesAboveWhatIsAppliedHere() {
+        assertEquals(6, stable(List.of(10, 11, 12), 6));
+    }
+}
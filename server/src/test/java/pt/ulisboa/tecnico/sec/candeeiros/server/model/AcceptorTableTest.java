@@ -0,0 +1,74 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.sec.candeeiros.SyncBanks;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcceptorTableTest {
+    private static final List<SyncBanks.BatchedRequest> VALUE = List.of(SyncBanks.BatchedRequest.getDefaultInstance());
+    private static final List<SyncBanks.BatchedRequest> OTHER = List.of();
+
+    private final AcceptorTable acceptors = new AcceptorTable();
+
+    @Test
+    void refusesAReplayedProposal() {
+        assertTrue(acceptors.acceptInitial(4, VALUE));
+        assertFalse(acceptors.acceptInitial(4, OTHER));
+    }
+
+    @Test
+    void prepareReportsTheAcceptedValueAndRefusesLowerBallots() {
+        acceptors.acceptInitial(4, VALUE);
+
+        SyncBanks.SlotPrepareResponse promise = acceptors.prepare(4, 5);
+        assertTrue(promise.getPromised());
+        assertTrue(promise.getHasAccepted());
+        assertEquals(0, promise.getAcceptedBallot());
+        assertEquals(VALUE, promise.getAcceptedList());
+
+        SyncBanks.SlotPrepareResponse lower = acceptors.prepare(4, 3);
+        assertFalse(lower.getPromised());
+        assertEquals(5, lower.getPromisedBallot());
+        assertFalse(acceptors.accept(4, 3, OTHER).getAccepted());
+    }
+
+    @Test
+    void ownerProposalIsRefusedOnceTheSlotWasTakenOver() {
+        acceptors.prepare(4, 5);
+        assertFalse(acceptors.acceptInitial(4, VALUE));
+
+        assertTrue(acceptors.accept(4, 5, OTHER).getAccepted());
+        SyncBanks.SlotPrepareResponse promise = acceptors.prepare(4, 8);
+        assertTrue(promise.getHasAccepted());
+        assertEquals(5, promise.getAcceptedBallot());
+        assertEquals(OTHER, promise.getAcceptedList());
+    }
+
+    @Test
+    void decidedSlotReportsItsDecision() {
+        acceptors.acceptInitial(4, OTHER);
+        acceptors.decide(4, VALUE);
+
+        SyncBanks.SlotPrepareResponse response = acceptors.prepare(4, 100);
+        assertTrue(response.getDecided());
+        assertEquals(VALUE, response.getDecisionList());
+    }
+
+    @Test
+    void discardedSlotsAreReportedAndNotAcceptedAgain() {
+        acceptors.acceptInitial(1, VALUE);
+        acceptors.acceptInitial(2, VALUE);
+        acceptors.acceptInitial(3, VALUE);
+
+        assertEquals(2, acceptors.discardBelow(new Watermark(3)));
+        assertEquals(1, acceptors.size());
+        assertTrue(acceptors.prepare(1, 5).getDiscarded());
+        assertFalse(acceptors.acceptInitial(2, VALUE));
+        assertFalse(acceptors.accept(2, 5, VALUE).getAccepted());
+    }
+}
@@ -0,0 +1,87 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BftBankTest {
+    private static PublicKey key1, key2;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void generateKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        key1 = generator.generateKeyPair().getPublic();
+        key2 = generator.generateKeyPair().getPublic();
+    }
+
+    private BftBank open(long checkpointInterval) throws IOException {
+        return new BftBank(directory.resolve("ledger").toString(), LedgerManager.Durability.PER_OP, 100, checkpointInterval);
+    }
+
+    @Test
+    void resumesAfterTheLastSlotInTheLedger() throws IOException {
+        BftBank bank = open(0);
+        assertEquals(-1, bank.getLastAppliedSlot());
+        bank.apply(0, List.of(key1), changes -> changes.createAccount(key1));
+        bank.apply(1, List.of(), changes -> { });
+
+        BftBank restarted = open(0);
+        assertEquals(1, restarted.getLastAppliedSlot());
+        assertTrue(restarted.accountExists(key1));
+    }
+
+    @Test
+    void slotCutShortIsNotReplayed() throws IOException {
+        BftBank bank = open(0);
+        bank.apply(0, List.of(key1), changes -> changes.createAccount(key1));
+        Path ledger = directory.resolve("ledger");
+        long size = Files.size(ledger);
+        // the start of a record that was being written when the server stopped
+        Files.write(ledger, new byte[]{0, 0, 0, 64, 1, 2, 3, 4, 9, 0, 0}, StandardOpenOption.APPEND);
+
+        BftBank restarted = open(0);
+        assertEquals(0, restarted.getLastAppliedSlot());
+        assertTrue(restarted.accountExists(key1));
+        assertFalse(restarted.accountExists(key2));
+        assertEquals(size, Files.size(ledger));
+    }
+
+    @Test
+    void snapshotKeepsTheLastSlot() throws IOException, InterruptedException {
+        // each slot takes a key record and its own, so the second one starts a checkpoint
+        BftBank bank = open(3);
+        bank.apply(0, List.of(key1), changes -> changes.createAccount(key1));
+        bank.apply(1, List.of(key2), changes -> changes.createAccount(key2));
+
+        // the checkpoint is taken in the background, and is over once the rotated segment is deleted
+        Path snapshot = directory.resolve("ledger.snapshot");
+        Path segment = directory.resolve("ledger.0");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!Files.exists(snapshot) || Files.exists(segment)) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(Files.exists(snapshot));
+        assertFalse(Files.exists(segment));
+
+        BftBank restarted = open(0);
+        assertEquals(1, restarted.getLastAppliedSlot());
+        assertTrue(restarted.accountExists(key1));
+        assertTrue(restarted.accountExists(key2));
+    }
+}
@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IntentTableTest {
+    private static final ByteString DIGEST = ByteString.copyFromUtf8("request");
+
+    @Test
+    void waitingHandlerRunsOnceTheIntentArrives() {
+        IntentTable<String> table = new IntentTable<>();
+        List<String> seen = new ArrayList<>();
+        table.withIntent(3, DIGEST, seen::add);
+        assertTrue(seen.isEmpty());
+
+        table.addIntent(3, DIGEST, "intent");
+        assertEquals(List.of("intent"), seen);
+    }
+
+    @Test
+    void dropsTheSlotsBelowTheWatermark() {
+        IntentTable<String> table = new IntentTable<>();
+        table.addIntent(1, DIGEST, "one");
+        table.addIntent(2, DIGEST, "two");
+        table.withIntent(3, DIGEST, intent -> { });
+
+        assertEquals(2, table.discardBelow(new Watermark(3)));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void ignoresSlotsBelowTheWatermarkFromThenOn() {
+        IntentTable<String> table = new IntentTable<>();
+        List<String> seen = new ArrayList<>();
+        table.withIntent(1, DIGEST, seen::add);
+        table.discardBelow(new Watermark(2));
+
+        // the status waiting in the discarded slot is gone with it
+        table.addIntent(1, DIGEST, "replayed");
+        table.withIntent(1, DIGEST, seen::add);
+        assertTrue(seen.isEmpty());
+        assertEquals(0, table.size());
+
+        table.addIntent(2, DIGEST, "current");
+        table.withIntent(2, DIGEST, seen::add);
+        assertEquals(List.of("current"), seen);
+    }
+}
@@ -0,0 +1,106 @@
+package pt.ulisboa.tecnico.sec.candeeiros.server.model;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PendingTransactionsTest {
+    private static PublicKey key1, key2;
+
+    @BeforeAll
+    static void generateKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        key1 = generator.generateKeyPair().getPublic();
+        key2 = generator.generateKeyPair().getPublic();
+    }
+
+    private static Transaction transaction(long amount) {
+        return new Transaction(key1, key2, amount);
+    }
+
+    @Test
+    void keepsTheOrderTheyWereSentIn() {
+        PendingTransactions pending = new PendingTransactions();
+        List<Transaction> sent = List.of(transaction(3), transaction(1), transaction(2));
+        pending.addAll(sent);
+
+        assertEquals(sent, new ArrayList<>(pending));
+    }
+
+    @Test
+    void takesTheOldestOfEqualTransactions() {
+        PendingTransactions pending = new PendingTransactions();
+        Transaction first = transaction(1);
+        Transaction second = transaction(1);
+        pending.add(first);
+        pending.add(transaction(2));
+        pending.add(second);
+
+        assertSame(first, pending.take(transaction(1)));
+        assertSame(second, pending.take(transaction(1)));
+        assertFalse(pending.contains(transaction(1)));
+        assertEquals(List.of(transaction(2)), new ArrayList<>(pending));
+    }
+
+    @Test
+    void takeReturnsNullWhenNothingMatches() {
+        PendingTransactions pending = new PendingTransactions();
+        pending.add(transaction(1));
+
+        assertNull(pending.take(transaction(2)));
+        assertNull(pending.take(new Transaction(key2, key1, 1)));
+        assertEquals(1, pending.size());
+    }
+
+    @Test
+    void snapshotIsUnaffectedByLaterChanges() {
+        PendingTransactions pending = new PendingTransactions();
+        pending.add(transaction(1));
+        pending.add(transaction(2));
+        Collection<Transaction> snapshot = pending.snapshot();
+
+        pending.take(transaction(1));
+        pending.add(transaction(3));
+
+        assertEquals(List.of(transaction(1), transaction(2)), new ArrayList<>(snapshot));
+        assertEquals(2, snapshot.size());
+        assertEquals(List.of(transaction(2), transaction(3)), new ArrayList<>(pending));
+    }
+
+    @Test
+    void keepsTheOrderAcrossCompactions() {
+        PendingTransactions pending = new PendingTransactions();
+        List<Transaction> expected = new ArrayList<>();
+        Collection<Transaction> snapshot = null;
+        List<Transaction> atSnapshot = null;
+        // enough removals to compact the array several times
+        for (long amount = 0; amount < 200; amount++) {
+            pending.add(transaction(amount));
+            expected.add(transaction(amount));
+            if (amount % 3 != 0) {
+                pending.take(transaction(amount - 1));
+                expected.remove(transaction(amount - 1));
+            }
+            if (amount == 100) {
+                snapshot = pending.snapshot();
+                atSnapshot = new ArrayList<>(expected);
+            }
+        }
+
+        assertEquals(expected, new ArrayList<>(pending));
+        assertEquals(expected.size(), pending.size());
+        assertEquals(atSnapshot, new ArrayList<>(snapshot));
+    }
+}
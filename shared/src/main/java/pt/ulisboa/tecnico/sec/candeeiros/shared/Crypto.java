@@ -16,31 +16,56 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.Base64;
 
 public class Crypto {
 	private static final Logger logger = LoggerFactory.getLogger(Crypto.class);
+	// Every public key decoded from bytes goes through this cache
+	// Engines are reused by each thread; init(Sign|Verify) resets them between operations
+	private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> newEngine(Signature::getInstance, "SHA256withRSA"));
+	private static final ThreadLocal<KeyFactory> keyFactories = ThreadLocal.withInitial(() -> newEngine(KeyFactory::getInstance, "RSA"));
+	private static final PublicKeyCache publicKeys = new PublicKeyCache(Integer.getInteger("crypto.keyCache.size", 4096));
+
+	private interface EngineFactory<T> {
+		T getInstance(String algorithm) throws NoSuchAlgorithmException;
+	}
 
-	public static PublicKey keyFromString(String key) throws InvalidKeySpecException {
+	private static <T> T newEngine(EngineFactory<T> factory, String algorithm) {
 		try {
-			return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(
-					Base64.getDecoder().decode(key)
-			));
-		}  catch (NoSuchAlgorithmException e) {
-			logger.error("Unreachable Block. No such algorithm RSA");
-			e.printStackTrace();
-			return null;
+			return factory.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// Should never happen
+			logger.error("Unreachable block: No such algorithm {}", algorithm);
+			throw new IllegalStateException(e);
 		}
 	}
 
+	/**
+	 * RSA key factory of the calling thread.
+	 */
+	static KeyFactory rsaKeyFactory() {
+		return keyFactories.get();
+	}
+
+	public static PublicKeyCache publicKeyCache() {
+		return publicKeys;
+	}
+
+	public static PublicKey keyFromString(String key) throws InvalidKeySpecException {
+		return keyFromBytes(Base64.getDecoder().decode(key));
+	}
+
+	public static PublicKey keyFromBytes(byte[] key) throws InvalidKeySpecException {
+		return publicKeys.intern(ByteString.copyFrom(key));
+	}
+
 	public static PrivateKey privateKeyFromFileOrExit(String filename){
 		byte[] keyBytes;
 		try {
 			keyBytes = Files.readAllBytes(Paths.get(filename));
 			PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-			return KeyFactory.getInstance("RSA").generatePrivate(spec);
-		} catch (IOException | InvalidKeySpecException | NoSuchAlgorithmException e) {
+			return rsaKeyFactory().generatePrivate(spec);
+		} catch (IOException | InvalidKeySpecException e) {
 			logger.error("Failed to read private key from file {}", filename);
 			e.printStackTrace();
 			return null;
@@ -51,8 +76,19 @@ public class Crypto {
 		return new String(Base64.getEncoder().encode(key.getEncoded()));
 	}
 
+	/**
+	 * Short form of the key for logs: the hex of its short id (see PublicKeyCache) for public keys.
+	 */
 	public static String keyAsShortString(Key key) {
-		return new String(Base64.getEncoder().encode(key.getEncoded())).substring(45, 55);
+		if (!(key instanceof PublicKey))
+			return new String(Base64.getEncoder().encode(key.getEncoded())).substring(45, 55);
+		try {
+			return String.format("%016x", publicKeys.shortId((PublicKey) key));
+		} catch (InvalidKeySpecException e) {
+			// Should never happen, the key was decoded from this encoding
+			e.printStackTrace();
+			return keyAsString(key);
+		}
 	}
 
 	public static Bank.PublicKey encodePublicKey(PublicKey publicKey) {
@@ -60,61 +96,73 @@ public class Crypto {
 	}
 
 	public static PublicKey decodePublicKey(Bank.PublicKey publicKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
-		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey.getKeyBytes().toByteArray()));
-	}
-
-	private static byte[] flatten(byte[][] first) {
-        byte[] result = null;
-        for (byte[] curr : first) {
-            result = concat(result, curr);
-        }
-        return result;
-    }
-	private static byte[] concat(byte[] first, byte[] second) {
-        if (first == null) {
-            if (second == null) {
-                return null;
-            }
-            return second;
-        }
-        if (second == null) {
-            return first;
-        }
-        byte[] result = Arrays.copyOf(first, first.length + second.length);
-        System.arraycopy(second, 0, result, first.length, second.length);
-        return result;
-    }
+		return publicKeys.intern(publicKey.getKeyBytes());
+	}
 
+	public static PublicKey decodePublicKey(ByteString keyBytes) throws InvalidKeySpecException {
+		return publicKeys.intern(keyBytes);
+	}
 
 	public static byte[] sign(PrivateKey privateKey, byte[]... plaintext) throws SignatureException, InvalidKeyException {
-
-		Signature privateSignature = null;
-		try {
-			privateSignature = Signature.getInstance("SHA256withRSA");
-		} catch (NoSuchAlgorithmException e) {
-			// Should never happen
-			logger.error("Unreachable block: No such algorithm SHA256withRSA");
-			e.printStackTrace();
-		}
+		Signature privateSignature = signatures.get();
 		privateSignature.initSign(privateKey);
-		privateSignature.update(flatten(plaintext));
+		update(privateSignature, plaintext);
 		return privateSignature.sign();
 	}
 
 	public static boolean verifySignature(PublicKey publicKey, byte[] signature ,  byte[]... plaintext) throws InvalidKeyException, SignatureException{
-		Signature privateSignature = null;
-		try {
-			privateSignature = Signature.getInstance("SHA256withRSA");
-		} catch (NoSuchAlgorithmException e) {
-			// Should never happen
-			logger.error("Unreachable block: No such algorithm SHA256withRSA");
-			e.printStackTrace();
+		Signature publicSignature = signatures.get();
+		publicSignature.initVerify(publicKey);
+		update(publicSignature, plaintext);
+		return publicSignature.verify(signature);
+	}
+
+	/**
+	 * The calling thread's signature engine, ready to verify data fed in pieces with the key. It is the one sign
+	 * and verifySignature use, so it is only valid until the thread's next call to either.
+	 */
+	static Signature threadVerifier(PublicKey publicKey) throws InvalidKeyException {
+		Signature signature = signatures.get();
+		signature.initVerify(publicKey);
+		return signature;
+	}
+
+	/**
+	 * Signature engine for data fed in pieces with {@link #update(Signature, ByteString)}. Unlike sign and
+	 * verifySignature it is not shared with the thread, as the caller may interleave it with other operations.
+	 */
+	public static Signature newSigner(PrivateKey privateKey) throws InvalidKeyException {
+		Signature signature = newEngine(Signature::getInstance, "SHA256withRSA");
+		signature.initSign(privateKey);
+		return signature;
+	}
+
+	public static Signature newVerifier(PublicKey publicKey) throws InvalidKeyException {
+		Signature signature = newEngine(Signature::getInstance, "SHA256withRSA");
+		signature.initVerify(publicKey);
+		return signature;
+	}
+
+	public static MessageDigest newDigest() {
+		return newEngine(MessageDigest::getInstance, "SHA-256");
+	}
+
+	// Feeds the bytes without copying them out of the ByteString
+	public static void update(Signature signature, ByteString bytes) throws SignatureException {
+		signature.update(bytes.asReadOnlyByteBuffer());
+	}
+
+	public static void update(MessageDigest digest, ByteString bytes) {
+		digest.update(bytes.asReadOnlyByteBuffer());
+	}
+
+	// The parts are signed as if they were concatenated; null parts are skipped
+	private static void update(Signature signature, byte[][] parts) throws SignatureException {
+		for (byte[] part : parts) {
+			if (part != null)
+				signature.update(part);
 		}
-		privateSignature.initVerify(publicKey);
-		privateSignature.update(flatten(plaintext));
-		return privateSignature.verify(signature);
 	}
-	
 
 	public static Key readKeyOrExit(String keyPath, String type) {
 		try {
@@ -134,7 +182,7 @@ public class Crypto {
 			encoded = new byte[fis.available()];
 			fis.read(encoded);
 		}
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		KeyFactory keyFactory = rsaKeyFactory();
 		if (type.equals("pub")) {
 			X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
 			return keyFactory.generatePublic(keySpec);
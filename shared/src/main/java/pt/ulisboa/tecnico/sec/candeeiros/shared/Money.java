@@ -0,0 +1,199 @@
+package pt.ulisboa.tecnico.sec.candeeiros.shared;
+
+import pt.ulisboa.tecnico.sec.candeeiros.Bank;
+
+import java.math.BigDecimal;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Amounts of money held as longs counting hundredths of a unit, so they are compared and added without
+ * allocating, and with overflow checked.
+ * <p>
+ * The canonical decimal form of an amount has no sign, no leading zeros and at most two decimal places, without
+ * trailing zeros ("100", "0.5", "12.25"); it is what formatting gives. Clients sign the string they sent, and
+ * older clients and ledgers also wrote plain decimals in other forms ("10.0", "05"), which are still parsed.
+ * For those the string itself has to be kept to show the amount as it was signed (see nonCanonical).
+ */
+public final class Money {
+    public static final int SCALE = 2;
+    private static final long UNIT = 100;
+
+    // Where the bytes of a decimal go, without capturing it, so passing one allocates nothing
+    private interface ByteSink<T, E extends Exception> {
+        void put(T target, byte b) throws E;
+    }
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount written as a plain decimal (digits and at most one point), without allocating. Decimal
+     * places past the second must be zeros.
+     */
+    public static long parse(String amount) {
+        int length = amount.length();
+        int point = amount.indexOf('.');
+        int whole = point < 0 ? length : point;
+        int decimals = point < 0 ? 0 : length - point - 1;
+        if (whole + decimals == 0)
+            throw new NumberFormatException("Invalid amount: " + amount);
+
+        try {
+            long units = 0;
+            for (int i = 0; i < whole; i++)
+                units = Math.addExact(Math.multiplyExact(units, 10), digit(amount, i));
+            units = Math.multiplyExact(units, UNIT);
+            long fraction = 0;
+            for (int i = 0; i < Math.max(decimals, SCALE); i++) {
+                int digit = i < decimals ? digit(amount, point + 1 + i) : 0;
+                if (i < SCALE)
+                    fraction = fraction * 10 + digit;
+                else if (digit != 0)
+                    throw new NumberFormatException("Too many decimal places: " + amount);
+            }
+            return Math.addExact(units, fraction);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount too large: " + amount);
+        }
+    }
+
+    private static int digit(String amount, int index) {
+        char c = amount.charAt(index);
+        if (c < '0' || c > '9')
+            throw new NumberFormatException("Invalid amount: " + amount);
+        return c - '0';
+    }
+
+    public static String toString(long amount) {
+        if (amount < 0)
+            return "-" + toString(Math.negateExact(amount));
+        long whole = amount / UNIT;
+        long fraction = amount % UNIT;
+        if (fraction == 0)
+            return Long.toString(whole);
+        if (fraction % 10 == 0)
+            return whole + "." + fraction / 10;
+        return whole + "." + (fraction < 10 ? "0" : "") + fraction;
+    }
+
+    /**
+     * An object whose toString is the decimal form of the amount, which is only formatted if it is asked for, as
+     * when it is logged.
+     */
+    public static Object formatted(long amount) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return Money.toString(amount);
+            }
+        };
+    }
+
+    /**
+     * Whether the decimal is what formatting the amount gives, compared digit by digit without formatting it.
+     */
+    public static boolean isCanonical(String decimal, long amount) {
+        // has no canonical form, toString fails on it
+        if (amount == Long.MIN_VALUE)
+            return false;
+        long magnitude = Math.abs(amount);
+        int i = decimal.length();
+        long fraction = magnitude % UNIT;
+        if (fraction != 0) {
+            int places = fraction % 10 == 0 ? 1 : SCALE;
+            if (places == 1)
+                fraction /= 10;
+            for (int place = 0; place < places; place++, fraction /= 10) {
+                if (i == 0 || decimal.charAt(--i) != '0' + fraction % 10)
+                    return false;
+            }
+            if (i == 0 || decimal.charAt(--i) != '.')
+                return false;
+        }
+        long whole = magnitude / UNIT;
+        do {
+            if (i == 0 || decimal.charAt(--i) != '0' + whole % 10)
+                return false;
+            whole /= 10;
+        } while (whole != 0);
+        if (amount < 0 && (i == 0 || decimal.charAt(--i) != '-'))
+            return false;
+        return i == 0;
+    }
+
+    /**
+     * The decimal to keep alongside an amount read from it: null if formatting the amount gives it back,
+     * otherwise the decimal itself, as that is the string that was signed.
+     */
+    public static String nonCanonical(String decimal, long amount) {
+        return isCanonical(decimal, amount) ? null : decimal;
+    }
+
+    /**
+     * The decimal to keep alongside the transaction's amount, see nonCanonical: always null if it was sent in
+     * hundredths.
+     */
+    public static String nonCanonical(Bank.Transaction transaction, long amount) {
+        return transaction.getAmount().isEmpty() ? null : nonCanonical(transaction.getAmount(), amount);
+    }
+
+    /**
+     * Feeds the decimal form of the amount to the signature, as the bytes of its string would be, without
+     * formatting it. Signatures cover the decimal form of an amount sent in hundredths.
+     */
+    public static void update(Signature signature, long amount) throws SignatureException {
+        write(amount, signature, Signature::update);
+    }
+
+    public static void update(MessageDigest digest, long amount) {
+        write(amount, digest, MessageDigest::update);
+    }
+
+    private static <T, E extends Exception> void write(long amount, T target, ByteSink<T, E> sink) throws E {
+        if (amount < 0) {
+            sink.put(target, (byte) '-');
+            amount = Math.negateExact(amount);
+        }
+        long whole = amount / UNIT;
+        long fraction = amount % UNIT;
+        long scale = 1;
+        while (whole / scale >= 10)
+            scale *= 10;
+        for (; scale > 0; scale /= 10)
+            sink.put(target, (byte) ('0' + whole / scale % 10));
+        if (fraction != 0) {
+            sink.put(target, (byte) '.');
+            sink.put(target, (byte) ('0' + fraction / 10));
+            if (fraction % 10 != 0)
+                sink.put(target, (byte) ('0' + fraction % 10));
+        }
+    }
+
+    /**
+     * Converts a decimal written in any form, as in the text ledgers LedgerMigration converts.
+     */
+    public static long fromDecimal(String decimal) {
+        try {
+            return new BigDecimal(decimal).movePointRight(SCALE).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + decimal);
+        }
+    }
+
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Amount of the transaction: the decimal one if set, otherwise the one in hundredths.
+     */
+    public static long of(Bank.Transaction transaction) {
+        return transaction.getAmount().isEmpty() ? transaction.getAmountUnits() : parse(transaction.getAmount());
+    }
+}
@@ -1,75 +1,125 @@
 package pt.ulisboa.tecnico.sec.candeeiros.shared;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import pt.ulisboa.tecnico.sec.candeeiros.Bank;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Base64;
 
-public class Nonce {
-    private final byte[] bytes;
-    private static int accountNumber = 0;
-
-    private Nonce(byte[] bytes) {
-        if (bytes.length != 16) {
-            throw new NumberFormatException();
-        }
-        this.bytes = bytes;
+/**
+ * 128-bit nonce, held as two longs. Encoded it is 16 bytes with the least significant byte first, which is how
+ * the byte array it used to be was incremented, so encodings are unchanged.
+ */
+public final class Nonce {
+    public static final int SIZE = 16;
+    private static final SecureRandom random = new SecureRandom();
+    private final long low;
+    private final long high;
+
+    private Nonce(long low, long high) {
+        this.low = low;
+        this.high = high;
     }
 
     public Nonce nextNonce() {
-        byte[] bytes = this.bytes.clone();
+        long low = this.low + 1;
+        return new Nonce(low, low == 0 ? high + 1 : high);
+    }
 
-        int i = -1;
-        do {
-            i++;
-            bytes[i] += 1;
-        } while (bytes[i] == 0 && i < bytes.length);
-        return new Nonce(bytes);
+    /**
+     * Whether the nonce is the one following this one, compared without decoding it.
+     */
+    public boolean isNext(Bank.Nonce nonce) {
+        ByteString bytes = nonce.getNonceBytes();
+        if (bytes.size() != SIZE)
+            return false;
+        long low = this.low + 1;
+        long high = low == 0 ? this.high + 1 : this.high;
+        return readLong(bytes, 0) == low && readLong(bytes, 8) == high;
     }
 
     public static Nonce newNonce(byte[] bytes) {
-        return new Nonce(bytes.clone());
+        if (bytes.length != SIZE) {
+            throw new NumberFormatException();
+        }
+        long low = 0;
+        long high = 0;
+        for (int i = 7; i >= 0; i--) {
+            low = low << 8 | (bytes[i] & 0xff);
+            high = high << 8 | (bytes[i + 8] & 0xff);
+        }
+        return new Nonce(low, high);
     }
 
     public static Nonce newNonce() {
-        SecureRandom sr = new SecureRandom();
-        byte[] bytes = new byte[16];
-        sr.nextBytes(bytes);
-        return new Nonce(bytes);
+        return new Nonce(random.nextLong(), random.nextLong());
     }
 
-    public static Nonce newAccountNonce() {
-        byte[] bytes = new byte[16];
-        Arrays.fill(bytes, (byte) 0);
-        bytes[15] = (byte) accountNumber;
-        bytes[14] = (byte) (accountNumber / 256);
-        bytes[13] = (byte) (accountNumber / 256*256);
-        bytes[12] = (byte) (accountNumber / 256*256*256);
-        accountNumber++;
-        return new Nonce(bytes);
+    /**
+     * First nonce of the account with this key: the first 16 bytes of the SHA-256 of its encoding. It depends on
+     * the key alone, so every replica derives the same one without sharing any counter, and accounts get distinct
+     * nonces however many are opened and however concurrently.
+     */
+    public static Nonce newAccountNonce(PublicKey key) {
+        byte[] digest = Crypto.newDigest().digest(key.getEncoded());
+        return newNonce(Arrays.copyOf(digest, SIZE));
     }
 
     public static Nonce fromString(String nonce) {
-        return new Nonce(Base64.getDecoder().decode(nonce));
+        return newNonce(Base64.getDecoder().decode(nonce));
     }
 
     public static Nonce decode(Bank.Nonce nonce) {
-        return new Nonce(nonce.getNonceBytes().toByteArray());
+        ByteString bytes = nonce.getNonceBytes();
+        if (bytes.size() != SIZE) {
+            throw new NumberFormatException();
+        }
+        return new Nonce(readLong(bytes, 0), readLong(bytes, 8));
     }
 
     public Bank.Nonce encode() {
-        return Bank.Nonce.newBuilder().setNonceBytes(ByteString.copyFrom(bytes)).build();
+        // the array is not shared, so the ByteString can wrap it instead of copying it
+        return Bank.Nonce.newBuilder().setNonceBytes(UnsafeByteOperations.unsafeWrap(getBytes())).build();
+    }
+
+    public static Nonce readFrom(DataInput in) throws IOException {
+        long low = Long.reverseBytes(in.readLong());
+        return new Nonce(low, Long.reverseBytes(in.readLong()));
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(Long.reverseBytes(low));
+        out.writeLong(Long.reverseBytes(high));
     }
 
+    /**
+     * The 16 bytes of the nonce, in a new array.
+     */
     public byte[] getBytes() {
+        byte[] bytes = new byte[SIZE];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (low >>> 8 * i);
+            bytes[i + 8] = (byte) (high >>> 8 * i);
+        }
         return bytes;
     }
 
+    private static long readLong(ByteString bytes, int offset) {
+        long value = 0;
+        for (int i = offset + 7; i >= offset; i--)
+            value = value << 8 | (bytes.byteAt(i) & 0xff);
+        return value;
+    }
+
     @Override
     public String toString() {
-        return new String(Base64.getEncoder().encode(bytes));
+        return new String(Base64.getEncoder().encode(getBytes()));
     }
 
     @Override
@@ -77,11 +127,11 @@ public class Nonce {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Nonce nonce = (Nonce) o;
-        return Arrays.equals(bytes, nonce.bytes);
+        return low == nonce.low && high == nonce.high;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        return 31 * Long.hashCode(low) + Long.hashCode(high);
     }
 }
@@ -0,0 +1,139 @@
+package pt.ulisboa.tecnico.sec.candeeiros.shared;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of decoded RSA public keys, keyed by their X.509 encoding. Decoding the same bytes again
+ * returns the same PublicKey instance, so keys used as map keys compare by identity before falling back to
+ * comparing encodings. Each key also gets a short id (the first 8 bytes of the SHA-256 of its encoding),
+ * computed once, and looked up by the key instance. The least recently used keys are evicted when the cache is
+ * full.
+ */
+public class PublicKeyCache implements PublicKeyCacheMXBean {
+    private final int capacity;
+    // guarded by entries; access ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<ByteString, CachedKey> entries;
+    // guarded by entries; the same entries, by the key instance handed out for them
+    private final IdentityHashMap<PublicKey, CachedKey> byKey;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    private static final class CachedKey {
+        private final PublicKey key;
+        private final long shortId;
+
+        private CachedKey(PublicKey key, long shortId) {
+            this.key = key;
+            this.shortId = shortId;
+        }
+    }
+
+    public PublicKeyCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, CachedKey> eldest) {
+                if (size() <= PublicKeyCache.this.capacity)
+                    return false;
+                byKey.remove(eldest.getValue().key);
+                return true;
+            }
+        };
+        this.byKey = new IdentityHashMap<>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Returns the canonical key for this encoding, decoding it only if it is not cached.
+     */
+    public PublicKey intern(ByteString encoded) throws InvalidKeySpecException {
+        return entry(encoded).key;
+    }
+
+    /**
+     * Short id of the key, stable across runs and replicas. Keys handed out by the cache are found without
+     * encoding them.
+     */
+    public long shortId(PublicKey key) throws InvalidKeySpecException {
+        synchronized (entries) {
+            CachedKey entry = byKey.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.shortId;
+            }
+        }
+        // getEncoded returns a fresh copy, so it can be wrapped as is
+        return entry(UnsafeByteOperations.unsafeWrap(key.getEncoded())).shortId;
+    }
+
+    private CachedKey entry(ByteString encoded) throws InvalidKeySpecException {
+        synchronized (entries) {
+            CachedKey entry = entries.get(encoded);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+
+        // decoded outside the lock; if another thread decoded the same key meanwhile, its instance is kept
+        CachedKey decoded = new CachedKey(decode(encoded), shortIdOf(encoded));
+        synchronized (entries) {
+            CachedKey entry = entries.putIfAbsent(encoded, decoded);
+            if (entry != null)
+                return entry;
+            byKey.put(decoded.key, decoded);
+            return decoded;
+        }
+    }
+
+    private static PublicKey decode(ByteString encoded) throws InvalidKeySpecException {
+        return Crypto.rsaKeyFactory().generatePublic(new X509EncodedKeySpec(encoded.toByteArray()));
+    }
+
+    private static long shortIdOf(ByteString encoded) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(encoded.asReadOnlyByteBuffer());
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // Should never happen
+            throw new IllegalStateException("No such algorithm SHA-256", e);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+}
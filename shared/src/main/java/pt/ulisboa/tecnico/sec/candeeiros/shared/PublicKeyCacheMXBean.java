@@ -0,0 +1,21 @@
+package pt.ulisboa.tecnico.sec.candeeiros.shared;
+
+/**
+ * Gauges of the decoded public key cache, published over JMX so its hit rate can be watched under load.
+ */
+public interface PublicKeyCacheMXBean {
+    int getSize();
+
+    int getCapacity();
+
+    /**
+     * Lookups answered from the cache, since startup.
+     */
+    long getHits();
+
+    /**
+     * Lookups that had to decode the key, since startup. Misses well past the size mean the cache is too small
+     * for the accounts in use (crypto.keyCache.size).
+     */
+    long getMisses();
+}
@@ -2,10 +2,10 @@ package pt.ulisboa.tecnico.sec.candeeiros.shared;
 
 import pt.ulisboa.tecnico.sec.candeeiros.Bank;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
-import java.util.ArrayList;
 import java.util.List;
 
 public class Signatures {
@@ -63,9 +63,12 @@ public class Signatures {
         return Crypto.sign(key, sourceKey, destinationKey, amount.getBytes(), sourceNonce);
     }
 
-    public static boolean verifySendAmountRequestSignature(byte[] signature, PublicKey signingKey, byte[] sourceKey, byte[] destinationKey, String amount, byte[] sourceNonce) {
+    public static boolean verifySendAmountRequestSignature(byte[] signature, PublicKey signingKey, Bank.Transaction transaction, byte[] sourceNonce) {
         try {
-            return Crypto.verifySignature(signingKey, signature, sourceKey, destinationKey, amount.getBytes(), sourceNonce);
+            Signature verifier = Crypto.threadVerifier(signingKey);
+            updateTransfer(verifier, transaction);
+            verifier.update(sourceNonce);
+            return verifier.verify(signature);
         } catch (InvalidKeyException | SignatureException e) {
             return false;
         }
@@ -87,14 +90,29 @@ public class Signatures {
         return Crypto.sign(key, sourceKey, destinationKey, amount.getBytes(), destinationNonce, new byte[] {accept ? (byte) 1 : 0});
     }
 
-    public static boolean verifyReceiveAmountRequestSignature(byte[] signature, PublicKey signingKey, byte[] sourceKey, byte[] destinationKey, String amount, byte[] destinationNonce, boolean accept) {
+    public static boolean verifyReceiveAmountRequestSignature(byte[] signature, PublicKey signingKey, Bank.Transaction transaction, byte[] destinationNonce, boolean accept) {
         try {
-            return Crypto.verifySignature(signingKey, signature, sourceKey, destinationKey, amount.getBytes(), destinationNonce, new byte[] {accept ? (byte) 1 : 0});
+            Signature verifier = Crypto.threadVerifier(signingKey);
+            updateTransfer(verifier, transaction);
+            verifier.update(destinationNonce);
+            verifier.update(accept ? (byte) 1 : 0);
+            return verifier.verify(signature);
         } catch (InvalidKeyException | SignatureException e) {
             return false;
         }
 }
 
+    // The keys of the transaction and its amount as it was signed, fed without copying them or formatting an
+    // amount sent in hundredths (see Money.update)
+    private static void updateTransfer(Signature signature, Bank.Transaction transaction) throws SignatureException {
+        Crypto.update(signature, transaction.getSourcePublicKey().getKeyBytes());
+        Crypto.update(signature, transaction.getDestinationPublicKey().getKeyBytes());
+        if (transaction.getAmount().isEmpty())
+            Money.update(signature, transaction.getAmountUnits());
+        else
+            Crypto.update(signature, transaction.getAmountBytes());
+    }
+
     public static byte[] signReceiveAmountResponse(PrivateKey key, byte[] nonce, String status) throws SignatureException, InvalidKeyException {
         return Crypto.sign(key, nonce, status.getBytes());
     }
@@ -107,74 +125,105 @@ public class Signatures {
         }
 }
 
+    // Audit responses are signed incrementally, one transaction at a time, so that no copy of the whole
+    // response is built to sign it. The data signed is the concatenation of the fields below.
+
+    // A check account response signs the challenge nonce followed by the SHA-256 of its payload (status, balance
+    // and pending transactions), so a server can keep the digest of an unchanged account and sign each request
+    // without hashing the payload again.
+
     public static byte[] signCheckAccountResponse(PrivateKey key, byte[] challengeNonce, String status, String balance, List<Bank.NonRepudiableTransaction> transactions) throws SignatureException, InvalidKeyException {
-        List<byte[]> data = getCheckAccountDataToSign(challengeNonce, status, balance, transactions);
-        return Crypto.sign(key, data.toArray(new byte[0][]));
+        return signCheckAccountBinding(key, challengeNonce, checkAccountPayloadDigest(status, balance, transactions));
+    }
+
+    public static byte[] signCheckAccountBinding(PrivateKey key, byte[] challengeNonce, byte[] payloadDigest) throws SignatureException, InvalidKeyException {
+        return Crypto.sign(key, challengeNonce, payloadDigest);
     }
 
     public static boolean verifyCheckAccountResponseSignature(byte[] signature, PublicKey signingKey, byte[] challengeNonce, String status, String balance, List<Bank.NonRepudiableTransaction> transactions) {
-        List<byte[]> data = getCheckAccountDataToSign(challengeNonce, status, balance, transactions);
         try {
-            return Crypto.verifySignature(signingKey, signature, data.toArray(new byte[0][]));
+            return Crypto.verifySignature(signingKey, signature, challengeNonce, checkAccountPayloadDigest(status, balance, transactions));
         } catch (InvalidKeyException | SignatureException e) {
             return false;
         }
-}
+    }
 
-    private static List<byte[]> getCheckAccountDataToSign(byte[] challengeNonce, String status, String balance, List<Bank.NonRepudiableTransaction> transactions) {
-        List<byte[]> data = new ArrayList<>();
-        data.add(challengeNonce);
-        data.add(status.getBytes());
-        data.add(balance.getBytes());
-        for (Bank.NonRepudiableTransaction transaction : transactions) {
-            data.add(transaction.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray());
-            data.add(transaction.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray());
-            data.add(transaction.getTransaction().getAmount().getBytes());
-            data.add(transaction.getSourceNonce().getNonceBytes().toByteArray());
-            data.add(transaction.getSourceSignature().getSignatureBytes().toByteArray());
-        }
-        return data;
+    public static byte[] checkAccountPayloadDigest(String status, String balance, List<Bank.NonRepudiableTransaction> transactions) {
+        MessageDigest digest = Crypto.newDigest();
+        digest.update(status.getBytes());
+        digest.update(balance.getBytes());
+        for (Bank.NonRepudiableTransaction transaction : transactions)
+            updatePendingTransaction(digest, transaction);
+        return digest.digest();
     }
 
-    public static byte[] signAuditResponse(PrivateKey key, byte[] challengeNonce, String status, List<Bank.NonRepudiableTransaction> transactions) throws SignatureException, InvalidKeyException {
-        List<byte[]> data = getAuditDataToSign(challengeNonce, status, transactions);
-        return Crypto.sign(key, data.toArray(new byte[0][]));
+    public static void updatePendingTransaction(Signature signature, Bank.NonRepudiableTransaction transaction) throws SignatureException {
+        updateTransfer(signature, transaction.getTransaction());
+        Crypto.update(signature, transaction.getSourceNonce().getNonceBytes());
+        Crypto.update(signature, transaction.getSourceSignature().getSignatureBytes());
     }
 
-    public static boolean verifyAuditResponseSignature(byte[] signature, PublicKey signingKey, byte[] challengeNonce, String status, List<Bank.NonRepudiableTransaction> transactions) {
-        List<byte[]> data = getAuditDataToSign(challengeNonce, status, transactions);
+    // The same data, hashed
+    public static void updatePendingTransaction(MessageDigest digest, Bank.NonRepudiableTransaction transaction) {
+        Bank.Transaction transfer = transaction.getTransaction();
+        Crypto.update(digest, transfer.getSourcePublicKey().getKeyBytes());
+        Crypto.update(digest, transfer.getDestinationPublicKey().getKeyBytes());
+        if (transfer.getAmount().isEmpty())
+            Money.update(digest, transfer.getAmountUnits());
+        else
+            Crypto.update(digest, transfer.getAmountBytes());
+        Crypto.update(digest, transaction.getSourceNonce().getNonceBytes());
+        Crypto.update(digest, transaction.getSourceSignature().getSignatureBytes());
+    }
+
+    public static byte[] signAuditResponse(PrivateKey key, byte[] challengeNonce, String status, long offset, long nextOffset, boolean hasMore, List<Bank.NonRepudiableTransaction> transactions) throws SignatureException, InvalidKeyException {
+        Signature signature = Crypto.newSigner(key);
+        updateAuditHeader(signature, challengeNonce, status, offset, nextOffset, hasMore);
+        for (Bank.NonRepudiableTransaction transaction : transactions)
+            updateAuditTransaction(signature, transaction);
+        return signature.sign();
+    }
+
+    public static boolean verifyAuditResponseSignature(byte[] signature, PublicKey signingKey, byte[] challengeNonce, String status, long offset, long nextOffset, boolean hasMore, List<Bank.NonRepudiableTransaction> transactions) {
         try {
-            return Crypto.verifySignature(signingKey, signature, data.toArray(new byte[0][]));
+            Signature verifier = Crypto.newVerifier(signingKey);
+            updateAuditHeader(verifier, challengeNonce, status, offset, nextOffset, hasMore);
+            for (Bank.NonRepudiableTransaction transaction : transactions)
+                updateAuditTransaction(verifier, transaction);
+            return verifier.verify(signature);
         } catch (InvalidKeyException | SignatureException e) {
             return false;
         }
     }
 
-    private static List<byte[]> getAuditDataToSign(byte[] challengeNonce, String status, List<Bank.NonRepudiableTransaction> transactions) {
-        List<byte[]> data = new ArrayList<>();
-        data.add(challengeNonce);
-        data.add(status.getBytes());
-        for (Bank.NonRepudiableTransaction transaction : transactions) {
-            data.add(transaction.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray());
-            data.add(transaction.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray());
-            data.add(transaction.getTransaction().getAmount().getBytes());
-            data.add(transaction.getSourceNonce().getNonceBytes().toByteArray());
-            data.add(transaction.getSourceSignature().getSignatureBytes().toByteArray());
-            data.add(transaction.getDestinationNonce().getNonceBytes().toByteArray());
-            data.add(transaction.getDestinationSignature().getSignatureBytes().toByteArray());
-        }
-        return data;
+    // The page bounds are signed so that a page cannot be passed off as another part of the history, nor the
+    // last page hidden by clearing hasMore
+    public static void updateAuditHeader(Signature signature, byte[] challengeNonce, String status, long offset, long nextOffset, boolean hasMore) throws SignatureException {
+        signature.update(challengeNonce);
+        signature.update(status.getBytes());
+        signature.update(ByteBuffer.allocate(17).putLong(offset).putLong(nextOffset).put(hasMore ? (byte) 1 : 0).array());
+    }
+
+    public static void updateAuditTransaction(Signature signature, Bank.NonRepudiableTransaction transaction) throws SignatureException {
+        updatePendingTransaction(signature, transaction);
+        Crypto.update(signature, transaction.getDestinationNonce().getNonceBytes());
+        Crypto.update(signature, transaction.getDestinationSignature().getSignatureBytes());
+    }
+
+    // The same data, hashed, which is what replicas compare their histories by
+    public static void updateAuditTransaction(MessageDigest digest, Bank.NonRepudiableTransaction transaction) {
+        updatePendingTransaction(digest, transaction);
+        Crypto.update(digest, transaction.getDestinationNonce().getNonceBytes());
+        Crypto.update(digest, transaction.getDestinationSignature().getSignatureBytes());
     }
 
 
     public static boolean verifyPendingTransactionSignature(Bank.NonRepudiableTransaction transaction) {
         try {
-            return Crypto.verifySignature(Crypto.decodePublicKey(transaction.getTransaction().getSourcePublicKey()),
-                    transaction.getSourceSignature().getSignatureBytes().toByteArray(),
-                    transaction.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray(),
-                    transaction.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray(),
-                    transaction.getTransaction().getAmount().getBytes(),
-                    transaction.getSourceNonce().getNonceBytes().toByteArray());
+            Signature verifier = Crypto.threadVerifier(Crypto.decodePublicKey(transaction.getTransaction().getSourcePublicKey()));
+            updateTransfer(verifier, transaction.getTransaction());
+            Crypto.update(verifier, transaction.getSourceNonce().getNonceBytes());
+            return verifier.verify(transaction.getSourceSignature().getSignatureBytes().toByteArray());
         } catch (NoSuchAlgorithmException  | InvalidKeySpecException | SignatureException | InvalidKeyException e) {
             return false;
         }
@@ -182,13 +231,11 @@ public class Signatures {
 
     public static boolean verifyAcceptedTransactionSignature(Bank.NonRepudiableTransaction transaction) {
         try {
-            return Crypto.verifySignature(Crypto.decodePublicKey(transaction.getTransaction().getDestinationPublicKey()),
-                    transaction.getDestinationSignature().getSignatureBytes().toByteArray(),
-                    transaction.getTransaction().getSourcePublicKey().getKeyBytes().toByteArray(),
-                    transaction.getTransaction().getDestinationPublicKey().getKeyBytes().toByteArray(),
-                    transaction.getTransaction().getAmount().getBytes(),
-                    transaction.getDestinationNonce().getNonceBytes().toByteArray(),
-                    new byte[] {(byte) 1});
+            Signature verifier = Crypto.threadVerifier(Crypto.decodePublicKey(transaction.getTransaction().getDestinationPublicKey()));
+            updateTransfer(verifier, transaction.getTransaction());
+            Crypto.update(verifier, transaction.getDestinationNonce().getNonceBytes());
+            verifier.update((byte) 1);
+            return verifier.verify(transaction.getDestinationSignature().getSignatureBytes().toByteArray());
         } catch (NoSuchAlgorithmException  | InvalidKeySpecException | SignatureException | InvalidKeyException e) {
             return false;
         }
@@ -0,0 +1,107 @@
+package pt.ulisboa.tecnico.sec.candeeiros.shared;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.sec.candeeiros.Bank;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MoneyTest {
+    private static final long[] AMOUNTS = {0, 1, 5, 9, 10, 50, 99, 100, 101, 110, 1000, 1234, 100000,
+            -1, -10, -105, Long.MAX_VALUE, -Long.MAX_VALUE};
+
+    @Test
+    void parsesPlainDecimals() {
+        assertEquals(10000, Money.parse("100"));
+        assertEquals(50, Money.parse("0.5"));
+        assertEquals(1225, Money.parse("12.25"));
+        assertEquals(100, Money.parse("1.000"), "places past the second may be zeros");
+    }
+
+    @Test
+    void parsesOlderFormsButKeepsThemAsSigned() {
+        assertEquals(500, Money.parse("05"));
+        assertEquals(50, Money.parse(".5"));
+        assertEquals(500, Money.parse("5."));
+        assertEquals(1000, Money.parse("10.0"));
+        for (String decimal : new String[] {"05", ".5", "5.", "10.0", "0.50", "00"})
+            assertEquals(decimal, Money.nonCanonical(decimal, Money.parse(decimal)));
+        assertNull(Money.nonCanonical("0", Money.parse("0")));
+    }
+
+    @Test
+    void rejectsWhatIsNotAnAmount() {
+        for (String decimal : new String[] {"1.001", "0.009", "", ".", "-5", "+5", "1.2.3", "1e3", " 1", "1,5"})
+            assertThrows(NumberFormatException.class, () -> Money.parse(decimal), decimal);
+    }
+
+    @Test
+    void overflowsPastLongMaxValue() {
+        assertEquals(Long.MAX_VALUE, Money.parse("92233720368547758.07"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("92233720368547758.08"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("92233720368547759"));
+        assertThrows(NumberFormatException.class, () -> Money.fromDecimal("92233720368547758.08"));
+        assertThrows(ArithmeticException.class, () -> Money.add(Long.MAX_VALUE, 1));
+        assertThrows(ArithmeticException.class, () -> Money.subtract(-Long.MAX_VALUE, 2));
+    }
+
+    @Test
+    void formatsNegativeAmounts() {
+        assertEquals("-0.01", Money.toString(-1));
+        assertEquals("-1.05", Money.toString(-105));
+        assertEquals("-1.5", Money.toString(-150));
+        assertEquals(-150, Money.fromDecimal("-1.5"));
+        assertTrue(Money.isCanonical("-1.05", -105));
+        assertFalse(Money.isCanonical("1.05", -105));
+        assertFalse(Money.isCanonical("-1.05", 105));
+        assertFalse(Money.isCanonical("-0", 0));
+        assertFalse(Money.isCanonical("", Long.MIN_VALUE), "has no canonical form");
+    }
+
+    @Test
+    void formattingAndParsingRoundTrip() {
+        for (long amount : AMOUNTS) {
+            String decimal = Money.toString(amount);
+            assertEquals(amount, Money.fromDecimal(decimal), decimal);
+            assertTrue(Money.isCanonical(decimal, amount), decimal);
+            assertNull(Money.nonCanonical(decimal, amount), decimal);
+            if (amount >= 0)
+                assertEquals(amount, Money.parse(decimal), decimal);
+        }
+    }
+
+    @Test
+    void formatsOnlyWhenAsked() {
+        assertEquals("12.25", Money.formatted(1225).toString());
+        assertEquals("-0.5", String.valueOf(Money.formatted(-50)));
+    }
+
+    @Test
+    void feedsTheBytesOfTheDecimal() throws NoSuchAlgorithmException {
+        for (long amount : AMOUNTS) {
+            MessageDigest expected = MessageDigest.getInstance("SHA-256");
+            MessageDigest actual = MessageDigest.getInstance("SHA-256");
+            expected.update(Money.toString(amount).getBytes(StandardCharsets.US_ASCII));
+            Money.update(actual, amount);
+            assertArrayEquals(expected.digest(), actual.digest(), Money.toString(amount));
+        }
+    }
+
+    @Test
+    void takesTheAmountFromEitherField() {
+        Bank.Transaction units = Bank.Transaction.newBuilder().setAmountUnits(1050).build();
+        Bank.Transaction decimal = Bank.Transaction.newBuilder().setAmount("10.50").build();
+        assertEquals(1050, Money.of(units));
+        assertEquals(1050, Money.of(decimal));
+        assertNull(Money.nonCanonical(units, 1050));
+        assertEquals("10.50", Money.nonCanonical(decimal, 1050));
+    }
+}
@@ -0,0 +1,64 @@
+package pt.ulisboa.tecnico.sec.candeeiros.shared;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PublicKeyCacheTest {
+    private static ByteString newKey() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return ByteString.copyFrom(generator.generateKeyPair().getPublic().getEncoded());
+    }
+
+    @Test
+    void decodesEachEncodingOnce() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(4);
+        ByteString encoded = newKey();
+        PublicKey key = cache.intern(encoded);
+        assertSame(key, cache.intern(ByteString.copyFrom(encoded.toByteArray())));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    void findsTheShortIdOfItsOwnKeysWithoutEncodingThem() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(4);
+        ByteString encoded = newKey();
+        PublicKey key = cache.intern(encoded);
+        long shortId = cache.shortId(key);
+        assertEquals(shortId, cache.shortId(key));
+        assertEquals(1, cache.getMisses());
+
+        // another instance of the same key has the same id, stable across caches
+        PublicKey copy = Crypto.rsaKeyFactory().generatePublic(new X509EncodedKeySpec(encoded.toByteArray()));
+        assertEquals(shortId, new PublicKeyCache(4).shortId(copy));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PublicKeyCache cache = new PublicKeyCache(2);
+        ByteString first = newKey();
+        ByteString second = newKey();
+        PublicKey evicted = cache.intern(first);
+        cache.intern(second);
+        cache.intern(second);
+        cache.intern(newKey());
+        assertEquals(2, cache.getSize());
+
+        // evicted along with its entry by instance, so it is decoded again
+        cache.shortId(evicted);
+        assertEquals(4, cache.getMisses());
+        assertNotSame(evicted, cache.intern(first));
+    }
+}